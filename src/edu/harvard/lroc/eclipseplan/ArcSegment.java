@@ -0,0 +1,171 @@
+/* ArcSegment.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+/**
+ * A run of control points of an MLCSequence through which the gantry turns
+ * one way.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class ArcSegment {
+    /**
+     * 
+     * @param seq MLC sequence
+     * @param firstStep first step of the arc
+     * @param lastStep last step of the arc
+     * @param direction MLCSequence.CW or MLCSequence.CC
+     */
+    ArcSegment(MLCSequence seq, int firstStep, int lastStep, int direction) {
+        this.beamName = seq.getBeamName();
+        this.firstStep = firstStep;
+        this.lastStep = lastStep;
+        this.direction = direction;
+        this.startAngle = seq.getGantryAngle(firstStep);
+        this.stopAngle = seq.getGantryAngle(lastStep);
+        this.startWeight = seq.getCumulativeMetersetWeight(firstStep);
+        this.stopWeight = seq.getCumulativeMetersetWeight(lastStep);
+        
+        double length = 0.;
+        for (int step = firstStep; step < lastStep; ++step) {
+            length += Math.abs(MLCSequence.angleDifference(seq.getGantryAngle(step),
+                    seq.getGantryAngle(step + 1), direction));
+        }
+        this.arcLength = length;
+    }
+    
+    /**
+     * 
+     * @return first step of the arc
+     */
+    public int getFirstStep() {
+        return this.firstStep;
+    }
+    
+    /**
+     * 
+     * @return last step of the arc
+     */
+    public int getLastStep() {
+        return this.lastStep;
+    }
+    
+    /**
+     * 
+     * @return MLCSequence.CW or MLCSequence.CC
+     */
+    public int getDirection() {
+        return this.direction;
+    }
+    
+    /**
+     * 
+     * @return gantry angle at the first step (degrees)
+     */
+    public double getStartAngle() {
+        return this.startAngle;
+    }
+    
+    /**
+     * 
+     * @return gantry angle at the last step (degrees)
+     */
+    public double getStopAngle() {
+        return this.stopAngle;
+    }
+    
+    /**
+     * 
+     * @return angle the gantry turns through (degrees)
+     */
+    public double getArcLength() {
+        return this.arcLength;
+    }
+    
+    /**
+     * 
+     * @return fraction of the beam meterset delivered during the arc
+     */
+    public double getMetersetWeight() {
+        return this.stopWeight - this.startWeight;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%s: steps %d-%d, gantry %.1f to %.1f %s (%.1f deg), meterset weight %.4f",
+                this.beamName, this.firstStep, this.lastStep, this.startAngle, this.stopAngle,
+                (this.direction == MLCSequence.CW) ? "CW" : "CC", this.arcLength, this.getMetersetWeight());
+    }
+    
+    /** beam name */
+    private String beamName;
+    
+    /** first step */
+    private int firstStep;
+    
+    /** last step */
+    private int lastStep;
+    
+    /** direction of rotation */
+    private int direction;
+    
+    /** gantry angle at the first step (degrees) */
+    private double startAngle;
+    
+    /** gantry angle at the last step (degrees) */
+    private double stopAngle;
+    
+    /** angle turned through (degrees) */
+    private double arcLength;
+    
+    /** cumulative meterset weight at the first step */
+    private double startWeight;
+    
+    /** cumulative meterset weight at the last step */
+    private double stopWeight;
+    
+    
+    /**
+     * Simple test program
+     * @param args commandline arguments: RTPLAN file
+     */
+    public static void main(String[] args) {
+        try {
+            BeamSequence beams = new BeamSequence(args[0]);
+            for (Beam beam : beams.getBeamMap().values()) {
+                for (ArcSegment arc : beam.getArcSegments()) {
+                    System.out.println(arc);
+                }
+            }
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -35,6 +35,7 @@
 package edu.harvard.lroc.eclipseplan;
 
 import java.io.*;
+import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -101,6 +102,9 @@ public class Beam {
     /** Dose rate  (MU/min) */
     private Double doseRate;
     
+    /** Beam meterset (MU), from the fraction group of the plan */
+    private Double meterset;
+    
     // Assume we will always have ASYMX and ASYMY jaws, i.e. asymmetric
     
     /** X- and Y- jaws */
@@ -109,12 +113,21 @@ public class Beam {
     /** Gantry angle */
     private Double gantryAngle;
     
-    /** Isocenter position */
+    /** Collimator angle (BeamLimitingDeviceAngle) */
+    private Double collimatorAngle = 0.;
+    
+    /** Couch angle (PatientSupportAngle) */
+    private Double couchAngle = 0.;
+    
+    /** Isocenter position (mm) */
     private Double isocenter[] = new Double[3];
     
     /** Source-surface distance */
     private Double ssd;
     
+    /** Source-axis distance (mm) */
+    private Double sourceAxisDistance = 1000.;
+    
     /** This beam uses MLC */
     private boolean hasMLC_p;
     
@@ -138,16 +151,50 @@ public class Beam {
         return doseRate;
     }
 
+    /** @return beam meterset (MU), or null if the plan has none */
+    public Double getMeterset() {
+        return meterset;
+    }
+
+    /**
+     * The meterset is in the fraction group of the plan, not the beam, so
+     * it is set by BeamSequence.
+     * @param meterset beam meterset (MU)
+     */
+    void setMeterset(Double meterset) {
+        this.meterset = meterset;
+    }
+
     /** @return gantry angle */
     public Double getGantryAngle() {
         return gantryAngle;
     }
 
-    /** @return isocenter position */
+    /** @return jaws of the first control point */
+    public Jaws getJaws() {
+        return jaws;
+    }
+
+    /** @return collimator angle */
+    public Double getCollimatorAngle() {
+        return collimatorAngle;
+    }
+
+    /** @return couch angle */
+    public Double getCouchAngle() {
+        return couchAngle;
+    }
+
+    /** @return isocenter position (mm) */
     public Double[] getIsocenter() {
         return isocenter;
     }
 
+    /** @return MLC sequence, or null if this beam is not dynamic */
+    public MLCSequence getMLCSequence() {
+        return mlcSequence;
+    }
+
     /** @return name of beam */
     public String getName() {
         return name;
@@ -168,6 +215,11 @@ public class Beam {
         return radiationType;
     }
 
+    /** @return source-axis distance (mm) */
+    public Double getSourceAxisDistance() {
+        return sourceAxisDistance;
+    }
+
     /** @return source-surface distance */
     public Double getSsd() {
         return ssd;
@@ -185,6 +237,24 @@ public class Beam {
         return this.hasMLC_p;
     }
     
+    /**
+     * A dynamic beam is either a sliding window field, at one gantry angle,
+     * or an arc, with the gantry angle of each control point in the MLC
+     * sequence; getGantryAngle() is that of the first.
+     * @return predicate: the gantry turns during this beam
+     */
+    public boolean isArc() {
+        return this.mlcSequence != null && this.mlcSequence.isArc();
+    }
+    
+    /**
+     * 
+     * @return the arcs of this beam; none if it is not an arc
+     */
+    public Vector<ArcSegment> getArcSegments() {
+        return (this.mlcSequence == null) ? new Vector<ArcSegment>() : this.mlcSequence.getArcSegments();
+    }
+    
     /** Populates the Beam object with info from a Dicom object */
     private void readDicomInfo(DicomObject beamDcm) {
         if (this.debug_p) {
@@ -211,6 +281,23 @@ public class Beam {
             DicomObject ctrlPtDcm = (DicomObject) beamDcm.get(DDict.dControlPointSequence, 0);
             this.gantryAngle = new Double(ctrlPtDcm.getS(DDict.dGantryAngle, 0));
             this.jaws = new Jaws(ctrlPtDcm);
+            if (ctrlPtDcm.getS(DDict.dNominalBeamEnergy) != null) {
+                this.nominalBeamEnergy = Double.valueOf(ctrlPtDcm.getS(DDict.dNominalBeamEnergy).trim());
+            }
+            if (ctrlPtDcm.getS(DDict.dBeamLimitingDeviceAngle) != null) {
+                this.collimatorAngle = Double.valueOf(ctrlPtDcm.getS(DDict.dBeamLimitingDeviceAngle).trim());
+            }
+            if (ctrlPtDcm.getS(DDict.dPatientSupportAngle) != null) {
+                this.couchAngle = Double.valueOf(ctrlPtDcm.getS(DDict.dPatientSupportAngle).trim());
+            }
+            if (ctrlPtDcm.getSize(DDict.dIsocenterPosition) == 3) {
+                for (int i = 0; i < 3; ++i) {
+                    this.isocenter[i] = Double.valueOf(ctrlPtDcm.getS(DDict.dIsocenterPosition, i).trim());
+                }
+            }
+            if (beamDcm.getS(DDict.dSourceAxisDistance) != null) {
+                this.sourceAxisDistance = Double.valueOf(beamDcm.getS(DDict.dSourceAxisDistance).trim());
+            }
             
             if (this.hasMLC_p)
                 this.mlcSequence = new MLCSequence(this.patientID, beamDcm);
@@ -260,7 +347,9 @@ public class Beam {
         strbuff.append("Beam number: ");
         strbuff.append(this.number);
         
-        if (this.hasMLC_p)
+        if (this.isArc())
+            strbuff.append(", ARC, ");
+        else if (this.hasMLC_p)
             strbuff.append(", DYNAMIC, ");
         else
             strbuff.append(", STATIC, ");
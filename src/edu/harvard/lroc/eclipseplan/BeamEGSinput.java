@@ -36,6 +36,42 @@
 
 package edu.harvard.lroc.eclipseplan;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+// A BEAMnrc input is almost all the same for every beam of a linac: only
+// the energy, the jaws and the DYNVMLC leaves change. So the input is made
+// from a per-linac template, a complete .egsinp in which the values that
+// change are placeholders:
+//     ${PATIENT_ID}  ${BEAM_NAME}  ${BEAM_NUMBER}
+//     ${ENERGY}        nominal beam energy (MeV)
+//     ${X1} ${X2} ${Y1} ${Y2}
+//                      jaws of the first control point, at the isocentre
+//                      (cm); ${X1@z} etc. are projected from the source to
+//                      a plane z cm from it, e.g. that of the jaws
+//     ${N_LEAF_PAIRS}  ${N_FIELDS}
+//     ${MLC_LEAVES}    DYNVMLC initial leaf block, one line per leaf pair
+//     ${MLC_FILE}      DYNVMLC sequence file, written next to the .egsinp
+//     ${MLC_GEOMETRY}  leaf geometry, if one was set
+// A template is parsed once into its text and placeholders, and kept (as
+// long as the file is unchanged), so rendering is only appending strings;
+// the beams are rendered and written in parallel, each with its own
+// buffers.
+
 /**
  * Encapsulates data needed to create a BEAMnrc input file
  * @author David Chin
@@ -46,12 +82,31 @@ public class BeamEGSinput {
     /** Creates a new instance of BeamEGSinput */
     public BeamEGSinput() {
     }
-
+    
+    /**
+     * 
+     * @param templateFile BEAMnrc input template of the linac
+     * @param beams beams of the plan
+     * @throws java.io.IOException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException if the
+     *         template is bad
+     */
+    public BeamEGSinput(File templateFile, BeamSequence beams) throws IOException, EclipsePlanException {
+        this.template = Template.get(templateFile);
+        this.beam = beams.getBeamMap().values().toArray(new Beam[beams.getNBeams()]);
+    }
+    
     /**
      * Array of beams for the run.
      */
-    private Beam[] beam;
-
+    private Beam[] beam = new Beam[0];
+    
+    /** parsed template */
+    private Template template;
+    
+    /** leaf geometry, for ${MLC_GEOMETRY} */
+    private MLCLeafGeometry leafGeometry;
+    
     /**
      * Indexed getter for property beam.
      * @param index Index of the property.
@@ -60,7 +115,7 @@ public class BeamEGSinput {
     public Beam getBeam(int index) {
         return this.beam[index];
     }
-
+    
     /**
      * Indexed setter for property beam.
      * @param index Index of the property.
@@ -69,5 +124,292 @@ public class BeamEGSinput {
     public void setBeam(int index, Beam beam) {
         this.beam[index] = beam;
     }
-
+    
+    /**
+     * 
+     * @return number of beams
+     */
+    public int getNBeams() {
+        return this.beam.length;
+    }
+    
+    /**
+     * 
+     * @param leafGeometry leaf geometry, for ${MLC_GEOMETRY}
+     */
+    public void setLeafGeometry(MLCLeafGeometry leafGeometry) {
+        this.leafGeometry = leafGeometry;
+    }
+    
+    /**
+     * 
+     * @param beam beam
+     * @return name of its files, without extension
+     */
+    public static String baseName(Beam beam) {
+        return beam.getPatientID() + "_" + beam.getName();
+    }
+    
+    /**
+     * Fill in the template for one beam.
+     * @param beam beam
+     * @param mlcFile DYNVMLC sequence file of the beam, for ${MLC_FILE}
+     * @return BEAMnrc input
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException if the
+     *         template wants something the beam does not have
+     */
+    public String render(Beam beam, File mlcFile) throws EclipsePlanException {
+        StringBuilder out = new StringBuilder(this.template.length);
+        MLCSequence seq = beam.getMLCSequence();
+        
+        for (int p = 0; p < this.template.names.length; ++p) {
+            out.append(this.template.texts[p]);
+            String name = this.template.names[p];
+            double z = this.template.planes[p];
+            
+            if (name.equals("PATIENT_ID")) {
+                out.append(beam.getPatientID());
+            } else if (name.equals("BEAM_NAME")) {
+                out.append(beam.getName());
+            } else if (name.equals("BEAM_NUMBER")) {
+                out.append(beam.getNumber());
+            } else if (name.equals("ENERGY")) {
+                if (beam.getNominalBeamEnergy() == null) {
+                    throw new EclipsePlanException("No nominal beam energy for beam " + beam.getName());
+                }
+                out.append(beam.getNominalBeamEnergy());
+            } else if (name.equals("X1") || name.equals("X2") || name.equals("Y1") || name.equals("Y2")) {
+                Double[] pair = (name.charAt(0) == 'X') ? beam.getJaws().getX() : beam.getJaws().getY();
+                Double jaw = pair[name.charAt(1) - '1'];
+                if (jaw == null) {
+                    throw new EclipsePlanException("No " + name + " jaw for beam " + beam.getName());
+                }
+                // mm at the isocentre to cm at z
+                double scale = Double.isNaN(z) ? 0.1 : z / beam.getSourceAxisDistance();
+                out.append(String.format("%f", jaw * scale));
+            } else if (name.equals("MLC_GEOMETRY")) {
+                if (this.leafGeometry == null) {
+                    throw new EclipsePlanException("No leaf geometry set for " + this.template.file);
+                }
+                out.append(this.leafGeometry.egsnrcFormat());
+            } else {
+                // the rest are of the MLC
+                if (seq == null) {
+                    throw new EclipsePlanException("${" + name + "} in " + this.template.file
+                            + " but no MLC sequence for beam " + beam.getName());
+                }
+                if (name.equals("N_LEAF_PAIRS")) {
+                    out.append(seq.getNLeafPairs());
+                } else if (name.equals("N_FIELDS")) {
+                    out.append(seq.getNSteps());
+                } else if (name.equals("MLC_FILE")) {
+                    out.append(mlcFile.getAbsolutePath());
+                } else if (name.equals("MLC_LEAVES")) {
+                    out.append(initialPositions(seq));
+                }
+            }
+        }
+        out.append(this.template.texts[this.template.names.length]);
+        
+        return out.toString();
+    }
+    
+    /**
+     * 
+     * @param seq MLC sequence
+     * @return the DYNVMLC initial leaf block, without the last newline
+     */
+    private static String initialPositions(MLCSequence seq) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * seq.getNLeafPairs());
+        try {
+            new DynVMLCWriter().writeInitialPositions(seq, Channels.newChannel(bytes));
+        } catch (IOException ex) {
+            // not from a byte array
+            throw new IllegalStateException(ex);
+        }
+        String block = bytes.toString();
+        return block.endsWith("\n") ? block.substring(0, block.length() - 1) : block;
+    }
+    
+    /**
+     * Write the BEAMnrc input of one beam, as dir/patientID_beamName.egsinp,
+     * and for a dynamic beam its DYNVMLC sequence, as
+     * dir/patientID_beamName.mlc.
+     * @param beam beam
+     * @param dir directory to write to
+     * @throws java.io.IOException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public void write(Beam beam, File dir) throws IOException, EclipsePlanException {
+        File mlcFile = new File(dir, baseName(beam) + ".mlc");
+        String egsinp = this.render(beam, mlcFile);
+        
+        if (beam.getMLCSequence() != null) {
+            new DynVMLCWriter().writeSequenceFile(beam.getMLCSequence(), mlcFile);
+        }
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, baseName(beam) + ".egsinp")),
+                "US-ASCII");
+        try {
+            out.write(egsinp);
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Write the BEAMnrc inputs of all the beams, in parallel.
+     * @param dir directory to write to
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public void writeAll(final File dir) throws EclipsePlanException {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final Beam b : this.beam) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException, EclipsePlanException {
+                    write(b, dir);
+                    return null;
+                }
+            });
+        }
+        
+        TaskPool.invokeAll(tasks, "writing BEAMnrc inputs");
+    }
+    
+    /**
+     * A template, parsed: texts[0], names[0], texts[1], ..., texts[n].
+     */
+    private static class Template {
+        /**
+         * Parse a template.
+         * @param file template file
+         * @throws java.io.IOException
+         * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+         */
+        private Template(File file) throws IOException, EclipsePlanException {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            
+            StringBuilder text = new StringBuilder();
+            Reader in = new InputStreamReader(new FileInputStream(file), "US-ASCII");
+            try {
+                char[] buf = new char[1 << 14];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    text.append(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            this.length = text.length();
+            
+            List<String> textList = new ArrayList<String>();
+            List<String> nameList = new ArrayList<String>();
+            List<Double> planeList = new ArrayList<Double>();
+            int from = 0;
+            int start;
+            while ((start = text.indexOf("${", from)) >= 0) {
+                int end = text.indexOf("}", start);
+                if (end < 0) {
+                    throw new EclipsePlanException("Unterminated ${ in " + file);
+                }
+                String name = text.substring(start + 2, end).trim();
+                double z = Double.NaN;
+                int at = name.indexOf('@');
+                if (at >= 0) {
+                    try {
+                        z = Double.parseDouble(name.substring(at + 1).trim());
+                    } catch (NumberFormatException ex) {
+                        throw new EclipsePlanException("Bad plane in ${" + name + "} in " + file);
+                    }
+                    name = name.substring(0, at).trim();
+                }
+                if (!PLACEHOLDERS.contains(name) || (at >= 0 && !JAWS.contains(name))) {
+                    throw new EclipsePlanException("Unknown placeholder ${" + text.substring(start + 2, end)
+                            + "} in " + file);
+                }
+                
+                textList.add(text.substring(from, start));
+                nameList.add(name);
+                planeList.add(z);
+                from = end + 1;
+            }
+            textList.add(text.substring(from));
+            
+            this.texts = textList.toArray(new String[textList.size()]);
+            this.names = nameList.toArray(new String[nameList.size()]);
+            this.planes = new double[planeList.size()];
+            for (int p = 0; p < this.planes.length; ++p) {
+                this.planes[p] = planeList.get(p);
+            }
+        }
+        
+        /**
+         * 
+         * @param file template file
+         * @return the parsed template, parsed now if it has not been, or
+         *         the file has changed since
+         * @throws java.io.IOException
+         * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+         */
+        private static Template get(File file) throws IOException, EclipsePlanException {
+            String key = file.getCanonicalPath();
+            synchronized (cache) {
+                Template template = cache.get(key);
+                if (template == null || template.lastModified != file.lastModified()) {
+                    template = new Template(file);
+                    cache.put(key, template);
+                }
+                return template;
+            }
+        }
+        
+        /** template file */
+        private File file;
+        
+        /** modification time of the file when parsed */
+        private long lastModified;
+        
+        /** length of the template */
+        private int length;
+        
+        /** text before each placeholder, then the text after the last */
+        private String[] texts;
+        
+        /** placeholder names */
+        private String[] names;
+        
+        /** plane of each placeholder (cm from the source), or NaN */
+        private double[] planes;
+        
+        /** parsed templates, by canonical path */
+        private static final Map<String, Template> cache = new HashMap<String, Template>();
+    }
+    
+    /** names of the placeholders */
+    private static final List<String> PLACEHOLDERS = Arrays.asList("PATIENT_ID", "BEAM_NAME",
+            "BEAM_NUMBER", "ENERGY", "X1", "X2", "Y1", "Y2", "N_LEAF_PAIRS", "N_FIELDS", "MLC_LEAVES",
+            "MLC_FILE", "MLC_GEOMETRY");
+    
+    /** placeholders which may be projected to a plane */
+    private static final List<String> JAWS = Arrays.asList("X1", "X2", "Y1", "Y2");
+    
+    
+    /**
+     * Simple test program
+     * @param args commandline arguments: RTPLAN file, BEAMnrc template,
+     *        output directory
+     */
+    public static void main(String[] args) {
+        try {
+            long start = System.currentTimeMillis();
+            BeamEGSinput input = new BeamEGSinput(new File(args[1]), new BeamSequence(args[0]));
+            input.writeAll(new File(args[2]));
+            System.out.println(input.getNBeams() + " BEAMnrc inputs written in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
 }
@@ -156,6 +156,8 @@ public class BeamSequence {
                 }
             }
 
+            this.readMetersets();
+            
             // infer if this is a dynamic beam from each individual beam type.
             // if any beam is dynamic,
             //       this whole sequence is dynamic, and
@@ -183,6 +185,34 @@ public class BeamSequence {
         }
     }
 
+    /**
+     * Set the meterset of each beam from the first fraction group of the
+     * plan, which refers to the beams by number.
+     * @throws com.archimed.dicom.DicomException
+     */
+    private void readMetersets() throws DicomException {
+        if (this.planDcm.getSize(DDict.dFractionGroupSequence) <= 0) {
+            return;
+        }
+        
+        DicomObject fractionGroup = this.planDcm.getSequenceItem(DDict.dFractionGroupSequence, 0);
+        int nRefs = fractionGroup.getSize(DDict.dReferencedBeamSequence);
+        for (int i = 0; i < nRefs; ++i) {
+            DicomObject refBeamDcm = fractionGroup.getSequenceItem(DDict.dReferencedBeamSequence, i);
+            String meterset = refBeamDcm.getS(DDict.dBeamMeterset);
+            if (meterset == null) {
+                continue;
+            }
+            
+            int number = refBeamDcm.getI(DDict.dReferencedBeamNumber);
+            for (Beam beam : this.beamMap.values()) {
+                if (beam.getNumber() != null && beam.getNumber() == number) {
+                    beam.setMeterset(Double.valueOf(meterset.trim()));
+                }
+            }
+        }
+    }
+    
     /** 
      * @return predicate: this beam is dynamic delivery
      */
@@ -165,6 +165,9 @@ public class CTImage implements Comparable<CTImage> {
             this.rescaleIntercept = x.intValue();
             this.rescaleSlope = y.intValue();
             
+            // series, to tell one CT from another of the same geometry
+            this.seriesInstanceUID = this.imageDcm.getS(DDict.dSeriesInstanceUID);
+            
             // anonymize
             this.imageDcm.set(DDict.dPatientName, "");
             
@@ -203,6 +206,14 @@ public class CTImage implements Comparable<CTImage> {
         return patientID;
     }
 
+    /**
+     * 
+     * @return SeriesInstanceUID of the CT series, or null if there is none
+     */
+    public String getSeriesInstanceUID() {
+        return seriesInstanceUID;
+    }
+
     /**
      * 
      * @return Window center
@@ -295,6 +306,9 @@ public class CTImage implements Comparable<CTImage> {
      */
     private String patientID;
     
+    /** SeriesInstanceUID */
+    private String seriesInstanceUID;
+    
     /** Z-coordinate of CT image */
     private Double zPosition;
     
@@ -0,0 +1,215 @@
+/* ContourDataDecoder.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// ContourData (3006,0050) is a DS element: the coordinates of all the points
+// of a contour as one long backslash-separated ASCII string. Going through
+// DicomObject.getS() makes a String per coordinate, which is then parsed
+// again. Instead, map the RS file, find every ContourData element in it,
+// and parse the values straight out of the mapped bytes.
+//
+// The elements are found by looking for the tag itself, (3006,0050) in
+// little endian, followed by either the VR "DS" and a 2-byte length
+// (explicit VR) or a 4-byte length (implicit VR). They come out in file
+// order, i.e. ROIContourSequence item by item, and within each item
+// ContourSequence item by item.
+//
+// Anything unexpected (big endian files, a value length running off the
+// end of the file) and the element is not used; callers should then check
+// the number of values against NumberOfContourPoints, and fall back to
+// DicomObject.getS() if they disagree.
+
+/**
+ * Bulk decoder for the ContourData elements of an RT structure set file.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class ContourDataDecoder {
+    /**
+     * 
+     * @param rsfile RT structure set file
+     * @throws java.io.IOException
+     */
+    public ContourDataDecoder(File rsfile) throws IOException {
+        this.rsfile = rsfile;
+        
+        RandomAccessFile raf = new RandomAccessFile(rsfile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file too large: " + rsfile);
+            }
+            this.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.buf.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        
+        this.scan();
+    }
+    
+    /** Find all the ContourData elements */
+    private void scan() {
+        int limit = this.buf.limit();
+        int[] offsets = new int[64];
+        int[] lengths = new int[64];
+        int n = 0;
+        
+        for (int p = 0; p + 8 <= limit; ++p) {
+            if (this.buf.get(p) != TAG_BYTES[0] || this.buf.get(p+1) != TAG_BYTES[1]
+                    || this.buf.get(p+2) != TAG_BYTES[2] || this.buf.get(p+3) != TAG_BYTES[3]) {
+                continue;
+            }
+            
+            int valueOffset;
+            long length;
+            if (this.buf.get(p+4) == 'D' && this.buf.get(p+5) == 'S') {
+                // explicit VR
+                length = this.buf.getShort(p+6) & 0xffff;
+                valueOffset = p + 8;
+            } else {
+                // implicit VR
+                length = this.buf.getInt(p+4) & 0xffffffffL;
+                valueOffset = p + 8;
+            }
+            
+            if (valueOffset + length > limit) {
+                // not an element after all
+                continue;
+            }
+            
+            if (n == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * n);
+                lengths = Arrays.copyOf(lengths, 2 * n);
+            }
+            offsets[n] = valueOffset;
+            lengths[n] = (int) length;
+            ++n;
+            
+            p = valueOffset + (int) length - 1;
+        }
+        
+        this.offsets = Arrays.copyOf(offsets, n);
+        this.lengths = Arrays.copyOf(lengths, n);
+        
+        if (this.debug_p) {
+            System.out.println(this.rsfile + ": " + n + " ContourData elements");
+        }
+    }
+    
+    /**
+     * 
+     * @return number of ContourData elements in the file
+     */
+    public int getNElements() {
+        return this.offsets.length;
+    }
+    
+    /**
+     * 
+     * @param element element number, in file order
+     * @return number of values of the element
+     */
+    public int getNValues(int element) {
+        return DecimalParser.count(this.buf, this.offsets[element],
+                this.offsets[element] + this.lengths[element]);
+    }
+    
+    /**
+     * Decode one ContourData element.
+     * @param element element number, in file order
+     * @param out where to put the values: x0, y0, z0, x1, y1, z1, ...
+     * @param offset index in out of the first value
+     * @return number of values in the element; if more than fit, only those
+     *         which fit are stored
+     */
+    public int decode(int element, double[] out, int offset) {
+        return DecimalParser.parseAll(this.buf, this.offsets[element],
+                this.offsets[element] + this.lengths[element], out, offset);
+    }
+    
+    /**
+     * Decode one ContourData element.
+     * @param element element number, in file order
+     * @return the values: x0, y0, z0, x1, y1, z1, ...
+     */
+    public double[] decode(int element) {
+        double[] values = new double[this.getNValues(element)];
+        this.decode(element, values, 0);
+        return values;
+    }
+    
+    /** (3006,0050), little endian */
+    private static final byte[] TAG_BYTES = { 0x06, 0x30, 0x50, 0x00 };
+    
+    /** RS file */
+    private File rsfile;
+    
+    /** the mapped file */
+    private MappedByteBuffer buf;
+    
+    /** offsets of the values of each element */
+    private int[] offsets;
+    
+    /** lengths of the values of each element */
+    private int[] lengths;
+    
+    /** debug flag */
+    private boolean debug_p = false;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: RS file
+     */
+    public static void main(String[] args) {
+        try {
+            ContourDataDecoder decoder = new ContourDataDecoder(new File(args[0]));
+            int nValues = 0;
+            for (int i = 0; i < decoder.getNElements(); ++i) {
+                nValues += decoder.decode(i).length;
+            }
+            System.out.println("no. of contours: " + decoder.getNElements());
+            System.out.println("no. of points: " + nValues / 3);
+        } catch (IOException ex) {
+            Logger.getLogger(ContourDataDecoder.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
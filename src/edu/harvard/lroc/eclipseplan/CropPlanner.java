@@ -0,0 +1,272 @@
+/* CropPlanner.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.util.Arrays;
+import java.util.Vector;
+import javax.media.j3d.BoundingBox;
+import javax.vecmath.Point3d;
+
+// The crop is planned in voxel indices rather than mm, so that it can be
+// applied exactly: the union of the contour points of the structures,
+// grown by the margins, is snapped outwards to whole voxels, and every
+// slice is then cut to the same rectangle of voxels.
+//
+// Contour points lie within the voxels they belong to: in z, on the centre
+// of their slice, as the CT slice positions are the voxel centres.
+
+/**
+ * Plans a crop of a phantom to the union of several structures, plus
+ * margins.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class CropPlanner {
+    /**
+     * 
+     * @param phantom phantom to crop
+     */
+    public CropPlanner(Phantom phantom) {
+        this.phantom = phantom;
+    }
+    
+    /**
+     * 
+     * @param structureName name of a structure to keep within the crop
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public void addStructure(String structureName) throws EclipsePlanException {
+        if (!this.phantom.getStructures().getStructureMap().containsKey(structureName)) {
+            throw new EclipsePlanException("No such structure: " + structureName);
+        }
+        this.structureNames.add(structureName);
+    }
+    
+    /**
+     * 
+     * @param structureNames comma separated names of structures to keep
+     *        within the crop
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public void addStructures(String structureNames) throws EclipsePlanException {
+        for (String name : structureNames.split(",")) {
+            if (name.trim().length() > 0) {
+                this.addStructure(name.trim());
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @return names of structures to keep within the crop
+     */
+    public Vector<String> getStructureNames() {
+        return new Vector<String>(this.structureNames);
+    }
+    
+    /**
+     * 
+     * @param mx margin along x (mm)
+     * @param my margin along y (mm)
+     * @param mz margin along z (mm)
+     */
+    public void setMargins(double mx, double my, double mz) {
+        this.margin = new double[] { mx, my, mz };
+    }
+    
+    /**
+     * 
+     * @param margins margins (mm): one value for all axes, or "mx,my,mz"
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public void setMargins(String margins) throws EclipsePlanException {
+        String[] parts = margins.split(",");
+        try {
+            if (parts.length == 1) {
+                double m = Double.parseDouble(parts[0].trim());
+                this.setMargins(m, m, m);
+            } else if (parts.length == 3) {
+                this.setMargins(Double.parseDouble(parts[0].trim()),
+                        Double.parseDouble(parts[1].trim()),
+                        Double.parseDouble(parts[2].trim()));
+            } else {
+                throw new EclipsePlanException("Bad margins: " + margins);
+            }
+        } catch (NumberFormatException ex) {
+            throw new EclipsePlanException("Bad margins: " + margins);
+        }
+    }
+    
+    /**
+     * 
+     * @return margins along x, y and z (mm)
+     */
+    public double[] getMargins() {
+        return this.margin.clone();
+    }
+    
+    /**
+     * 
+     * @return voxel index bounds of the crop, { imin, imax, jmin, jmax,
+     *         kmin, kmax } with the upper bounds exclusive
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException if there are
+     *         no structures, or they miss the phantom
+     */
+    public int[] getIndexBounds() throws EclipsePlanException {
+        if (this.structureNames.isEmpty()) {
+            throw new EclipsePlanException("No structures to crop to");
+        }
+        
+        // exact extent of the contour points
+        double[] lo = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+        double[] hi = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        for (String name : this.structureNames) {
+            Structure structure = this.phantom.getStructures().getStructureMap().get(name);
+            for (int c = 0; c < structure.getNContours(); ++c) {
+                double[] xy = structure.getContourXY(c);
+                int n = structure.getNPoints(c);
+                for (int p = 0; p < n; ++p) {
+                    lo[VoxelGrid.X] = Math.min(lo[VoxelGrid.X], xy[2*p]);
+                    hi[VoxelGrid.X] = Math.max(hi[VoxelGrid.X], xy[2*p]);
+                    lo[VoxelGrid.Y] = Math.min(lo[VoxelGrid.Y], xy[2*p + 1]);
+                    hi[VoxelGrid.Y] = Math.max(hi[VoxelGrid.Y], xy[2*p + 1]);
+                }
+                if (n > 0) {
+                    lo[VoxelGrid.Z] = Math.min(lo[VoxelGrid.Z], structure.getContourZ(c));
+                    hi[VoxelGrid.Z] = Math.max(hi[VoxelGrid.Z], structure.getContourZ(c));
+                }
+            }
+        }
+        
+        if (lo[VoxelGrid.X] > hi[VoxelGrid.X]) {
+            throw new EclipsePlanException("No contours in " + this.structureNames);
+        }
+        
+        // snap outwards to whole voxels, within the phantom
+        VoxelGrid grid = this.phantom.getVoxelGrid();
+        int[] bounds = new int[6];
+        for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+            double a = lo[axis] - this.margin[axis];
+            double b = hi[axis] + this.margin[axis];
+            
+            bounds[2*axis] = this.voxelAtOrBelow(grid, axis, a);
+            bounds[2*axis + 1] = this.voxelAtOrBelow(grid, axis, b) + 1;
+            if (bounds[2*axis] >= grid.getN(axis) || bounds[2*axis + 1] <= 0) {
+                throw new EclipsePlanException(this.structureNames + " outside phantom");
+            }
+            bounds[2*axis] = Math.max(0, bounds[2*axis]);
+            bounds[2*axis + 1] = Math.min(grid.getN(axis), bounds[2*axis + 1]);
+        }
+        
+        if (this.debug_p) {
+            System.out.println("CropPlanner: " + this.structureNames + " -> "
+                    + Arrays.toString(bounds));
+        }
+        
+        return bounds;
+    }
+    
+    /**
+     * 
+     * @return region of the phantom kept by the crop (mm), from voxel edge
+     *         to voxel edge
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public BoundingBox getBoundingBox() throws EclipsePlanException {
+        int[] bounds = this.getIndexBounds();
+        VoxelGrid grid = this.phantom.getVoxelGrid();
+        return new BoundingBox(
+                new Point3d(grid.getEdge(VoxelGrid.X, bounds[0]),
+                        grid.getEdge(VoxelGrid.Y, bounds[2]),
+                        grid.getEdge(VoxelGrid.Z, bounds[4])),
+                new Point3d(grid.getEdge(VoxelGrid.X, bounds[1]),
+                        grid.getEdge(VoxelGrid.Y, bounds[3]),
+                        grid.getEdge(VoxelGrid.Z, bounds[5])));
+    }
+    
+    /**
+     * Crop the phantom.
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public void apply() throws EclipsePlanException {
+        this.phantom.crop(this.getIndexBounds());
+    }
+    
+    /**
+     * 
+     * @param grid voxel grid
+     * @param axis X, Y or Z
+     * @param value position (mm)
+     * @return index of the voxel containing value; -1 if below the grid,
+     *         and the number of voxels if above it
+     */
+    private int voxelAtOrBelow(VoxelGrid grid, int axis, double value) {
+        if (value < grid.getEdge(axis, 0)) {
+            return -1;
+        }
+        int i = grid.indexOf(axis, value);
+        return (i < 0) ? grid.getN(axis) : i;
+    }
+    
+    /** phantom to crop */
+    private Phantom phantom;
+    
+    /** structures to keep */
+    private Vector<String> structureNames = new Vector<String>();
+    
+    /** margins along x, y and z (mm) */
+    private double[] margin = { 0., 0., 0. };
+    
+    /** debug flag */
+    private boolean debug_p = false;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: patient ID, structure names (comma
+     *        separated), margins
+     */
+    public static void main(String[] args) {
+        Phantom phantom = new Phantom(args[0]);
+        CropPlanner planner = new CropPlanner(phantom);
+        
+        try {
+            planner.addStructures(args[1]);
+            if (args.length > 2) {
+                planner.setMargins(args[2]);
+            }
+            System.out.println("Before: " + phantom.getVoxelGrid());
+            System.out.println("Crop: " + planner.getBoundingBox());
+            planner.apply();
+            System.out.println("After: " + phantom.getVoxelGrid());
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/* DVH.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Dose-volume histogram of one structure. Bin b holds the volume receiving
+ * a dose in [b*binWidth, (b+1)*binWidth).
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DVH {
+    /**
+     * 
+     * @param structureName name of structure
+     * @param binWidth width of dose bins
+     * @param differential volume (cm^3) in each dose bin
+     * @param doseVolume sum of dose times volume (cm^3) over the structure
+     * @param minDose smallest dose in the structure
+     * @param maxDose largest dose in the structure
+     */
+    DVH(String structureName, double binWidth, double[] differential,
+            double doseVolume, double minDose, double maxDose) {
+        this.structureName = structureName;
+        this.binWidth = binWidth;
+        this.differential = differential;
+        this.minDose = minDose;
+        this.maxDose = maxDose;
+        
+        this.volume = 0.;
+        for (double v : differential) {
+            this.volume += v;
+        }
+        this.meanDose = (this.volume > 0.) ? doseVolume / this.volume : 0.;
+    }
+    
+    /**
+     * 
+     * @return name of structure
+     */
+    public String getStructureName() {
+        return this.structureName;
+    }
+    
+    /**
+     * 
+     * @return width of dose bins
+     */
+    public double getBinWidth() {
+        return this.binWidth;
+    }
+    
+    /**
+     * 
+     * @return number of dose bins
+     */
+    public int getNBins() {
+        return this.differential.length;
+    }
+    
+    /**
+     * 
+     * @return volume (cm^3) in each dose bin
+     */
+    public double[] getDifferential() {
+        return this.differential.clone();
+    }
+    
+    /**
+     * 
+     * @return volume (cm^3) receiving at least the lower dose of each bin
+     */
+    public double[] getCumulative() {
+        double[] cumulative = new double[this.differential.length];
+        double sum = 0.;
+        for (int b = this.differential.length - 1; b >= 0; --b) {
+            sum += this.differential[b];
+            cumulative[b] = sum;
+        }
+        return cumulative;
+    }
+    
+    /**
+     * 
+     * @return volume of the structure (cm^3)
+     */
+    public double getVolume() {
+        return this.volume;
+    }
+    
+    /**
+     * 
+     * @return mean dose
+     */
+    public double getMeanDose() {
+        return this.meanDose;
+    }
+    
+    /**
+     * 
+     * @return smallest dose
+     */
+    public double getMinDose() {
+        return this.minDose;
+    }
+    
+    /**
+     * 
+     * @return largest dose
+     */
+    public double getMaxDose() {
+        return this.maxDose;
+    }
+    
+    /**
+     * e.g. D95 is getDoseToVolume(0.95)
+     * @param fraction fraction of the volume of the structure
+     * @return smallest dose received by that fraction of the volume,
+     *         interpolated within the bin
+     */
+    public double getDoseToVolume(double fraction) {
+        double target = fraction * this.volume;
+        double sum = 0.;
+        for (int b = this.differential.length - 1; b >= 0; --b) {
+            if (sum + this.differential[b] >= target && this.differential[b] > 0.) {
+                return (b + 1 - (target - sum) / this.differential[b]) * this.binWidth;
+            }
+            sum += this.differential[b];
+        }
+        return 0.;
+    }
+    
+    /**
+     * e.g. V20 is getVolumeAtDose(20.) / getVolume()
+     * @param dose dose
+     * @return volume (cm^3) receiving at least dose, interpolated within
+     *         the bin; the whole volume for a dose at or below the bottom
+     *         of the histogram (0)
+     */
+    public double getVolumeAtDose(double dose) {
+        if (dose <= 0.) {
+            return this.volume;
+        }
+        
+        int bin = (int) (dose / this.binWidth);
+        if (bin >= this.differential.length) {
+            return 0.;
+        }
+        
+        double sum = 0.;
+        for (int b = this.differential.length - 1; b > bin; --b) {
+            sum += this.differential[b];
+        }
+        return sum + this.differential[bin] * (bin + 1 - dose / this.binWidth);
+    }
+    
+    /**
+     * Write the DVH as columns: bin lower dose, differential volume,
+     * cumulative volume (cm^3).
+     * @param file output file
+     * @throws java.io.FileNotFoundException
+     */
+    public void write(File file) throws FileNotFoundException {
+        PrintWriter out = new PrintWriter(file);
+        try {
+            out.println("# " + this);
+            out.println("# dose    differential (cm^3)    cumulative (cm^3)");
+            double[] cumulative = this.getCumulative();
+            for (int b = 0; b < this.differential.length; ++b) {
+                out.printf("%.6e  %.6e  %.6e\n", b * this.binWidth,
+                        this.differential[b], cumulative[b]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "DVH -- " + this.structureName + ": volume " + String.format("%.3f", this.volume)
+                + " cm^3; dose min " + this.minDose + ", mean " + this.meanDose
+                + ", max " + this.maxDose;
+    }
+    
+    /** structure name */
+    private String structureName;
+    
+    /** width of dose bins */
+    private double binWidth;
+    
+    /** volume (cm^3) in each dose bin */
+    private double[] differential;
+    
+    /** total volume (cm^3) */
+    private double volume;
+    
+    /** mean dose */
+    private double meanDose;
+    
+    /** smallest dose */
+    private double minDose;
+    
+    /** largest dose */
+    private double maxDose;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: none
+     */
+    public static void main(String[] args) {
+        // 1 cm^3 uniformly spread from 0 to 10
+        double[] differential = new double[100];
+        Arrays.fill(differential, 0.01);
+        DVH dvh = new DVH("test", 0.1, differential, 5., 0., 10.);
+        System.out.println(dvh);
+        System.out.println("D95 = " + dvh.getDoseToVolume(0.95) + " (0.5)");
+        System.out.println("V2 = " + dvh.getVolumeAtDose(2.) + " (0.8)");
+        System.out.println("V-1 = " + dvh.getVolumeAtDose(-1.) + " (1.0)");
+    }
+}
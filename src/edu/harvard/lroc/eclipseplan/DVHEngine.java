@@ -0,0 +1,404 @@
+/* DVHEngine.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import javax.vecmath.Point3d;
+
+// The dose grid need not be the CT grid (DOSXYZnrc may have been run on a
+// cropped or coarser phantom), so the structures are put on the dose grid
+// straight from their contours, through the StructureIndex of each.
+//
+// First each structure gets a mask of the dose voxels whose centres are
+// inside it. A voxel whose six face neighbours agree with it is taken to
+// be wholly inside or outside; only voxels on the boundary are sampled for
+// the fraction inside. Then one parallel pass over the dose voxels adds
+// volume times fraction to the histogram of each structure. Each worker
+// takes every n-th slice and keeps its own histograms, which are summed at
+// the end, so nothing is shared while the pass runs, and no copy of the
+// dose is made per structure.
+
+/**
+ * Computes dose-volume histograms of structures from a dose grid.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DVHEngine {
+    /**
+     * 
+     * @param dose dose grid, on the patient coordinates of the structures
+     * @param structures structure set
+     */
+    public DVHEngine(DoseGrid dose, StructureSet structures) {
+        this.dose = dose;
+        this.structures = structures;
+    }
+    
+    /**
+     * 
+     * @param nBins number of dose bins, from 0 to the largest dose
+     */
+    public void setNBins(int nBins) {
+        this.nBins = nBins;
+    }
+    
+    /**
+     * 
+     * @param doseScale factor applied to all doses, e.g. Gy per particle
+     *        to Gy
+     */
+    public void setDoseScale(double doseScale) {
+        this.doseScale = doseScale;
+    }
+    
+    /**
+     * 
+     * @param nSamples number of sample points along each axis of a boundary
+     *        voxel, for the fraction of it inside a structure
+     */
+    public void setNSamples(int nSamples) {
+        this.nSamples = nSamples;
+    }
+    
+    /**
+     * 
+     * @param structureNames names of structures
+     * @return DVH of each structure, by name
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public TreeMap<String, DVH> compute(List<String> structureNames) throws EclipsePlanException {
+        final VoxelGrid grid = this.dose.getGrid();
+        final int nz = grid.getNz();
+        final int nRois = structureNames.size();
+        
+        final StructureIndex[] indexes = new StructureIndex[nRois];
+        for (int r = 0; r < nRois; ++r) {
+            Structure structure = this.structures.getStructureMap().get(structureNames.get(r));
+            if (structure == null) {
+                throw new EclipsePlanException("No such structure: " + structureNames.get(r));
+            }
+            indexes[r] = structure.getIndex(grid);
+        }
+        
+        final double binWidth = Math.max(this.doseScale * this.dose.getMaxDose(), Double.MIN_VALUE) / this.nBins;
+        final float[] doses = this.dose.getDose();
+        final double scale = this.doseScale;
+        final int samples = this.nSamples;
+        final int bins = this.nBins;
+        
+        int nThreads = TaskPool.getNThreads();
+        
+        // voxel centres inside each structure
+        final StructureMask[] masks = new StructureMask[nRois];
+        final int[][] bounds = new int[nRois][];
+        for (int r = 0; r < nRois; ++r) {
+            masks[r] = new StructureMask(grid);
+            bounds[r] = voxelBounds(indexes[r], grid);
+        }
+        
+        List<Callable<Object>> maskTasks = new ArrayList<Callable<Object>>();
+        for (int k = 0; k < nz; ++k) {
+            final int kk = k;
+            maskTasks.add(new Callable<Object>() {
+                public Object call() {
+                    for (int r = 0; r < nRois; ++r) {
+                        if (bounds[r] != null && kk >= bounds[r][4] && kk < bounds[r][5]) {
+                            masks[r].setSlice(kk, centres(indexes[r], grid, bounds[r], kk));
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        TaskPool.invokeAll(maskTasks, "computing DVHs");
+        
+        // one pass over the dose, every nThreads-th slice per worker
+        List<Callable<double[][]>> doseTasks = new ArrayList<Callable<double[][]>>();
+        for (int t = 0; t < nThreads; ++t) {
+            final int first = t;
+            final int step = nThreads;
+            doseTasks.add(new Callable<double[][]>() {
+                public double[][] call() {
+                    double[][] hist = newHistograms(nRois, bins);
+                    
+                    for (int k = first; k < nz; k += step) {
+                        for (int r = 0; r < nRois; ++r) {
+                            if (bounds[r] != null && k >= bounds[r][4] && k < bounds[r][5]) {
+                                accumulate(indexes[r], masks[r], bounds[r], k, grid,
+                                        doses, scale, binWidth, samples, hist[r]);
+                            }
+                        }
+                    }
+                    return hist;
+                }
+            });
+        }
+        
+        int sum = this.nBins + 1;
+        int min = this.nBins + 2;
+        int max = this.nBins + 3;
+        double[][] total = newHistograms(nRois, this.nBins);
+        for (double[][] hist : TaskPool.invokeAll(doseTasks, "computing DVHs")) {
+            for (int r = 0; r < nRois; ++r) {
+                for (int b = 0; b <= sum; ++b) {
+                    total[r][b] += hist[r][b];
+                }
+                total[r][min] = Math.min(total[r][min], hist[r][min]);
+                total[r][max] = Math.max(total[r][max], hist[r][max]);
+            }
+        }
+        
+        TreeMap<String, DVH> dvhs = new TreeMap<String, DVH>();
+        for (int r = 0; r < nRois; ++r) {
+            double[] differential = new double[this.nBins];
+            System.arraycopy(total[r], 0, differential, 0, this.nBins);
+            // the largest dose falls just past the last bin
+            differential[this.nBins - 1] += total[r][this.nBins];
+            
+            boolean empty_p = total[r][min] == Double.POSITIVE_INFINITY;
+            DVH dvh = new DVH(structureNames.get(r), binWidth, differential, total[r][sum],
+                    empty_p ? 0. : total[r][min], empty_p ? 0. : total[r][max]);
+            dvhs.put(structureNames.get(r), dvh);
+            
+            if (this.debug_p) {
+                System.out.println(dvh);
+            }
+        }
+        return dvhs;
+    }
+    
+    /**
+     * 
+     * @param nRois number of structures
+     * @param nBins number of dose bins
+     * @return for each structure: the bins, one more bin for the largest
+     *         dose, then the sum of dose times volume, and the smallest and
+     *         largest doses
+     */
+    private static double[][] newHistograms(int nRois, int nBins) {
+        double[][] hist = new double[nRois][nBins + 4];
+        for (int r = 0; r < nRois; ++r) {
+            hist[r][nBins + 2] = Double.POSITIVE_INFINITY;
+            hist[r][nBins + 3] = Double.NEGATIVE_INFINITY;
+        }
+        return hist;
+    }
+    
+    /**
+     * Voxel centres of one slice inside a structure.
+     * @param index structure index
+     * @param grid dose grid
+     * @param bounds voxel bounds of the structure
+     * @param k z index
+     * @return the voxels, or null if none
+     */
+    private static MaskSlice centres(StructureIndex index, VoxelGrid grid, int[] bounds, int k) {
+        MaskSlice.Builder runs = new MaskSlice.Builder(grid.getNy(), 0);
+        for (int j = bounds[2]; j < bounds[3]; ++j) {
+            int start = -1;
+            for (int i = bounds[0]; i <= bounds[1]; ++i) {
+                boolean in_p = i < bounds[1] && index.containsVoxel(grid, i, j, k);
+                if (in_p && start < 0) {
+                    start = i;
+                } else if (!in_p && start >= 0) {
+                    runs.addRun(j, start, i);
+                    start = -1;
+                }
+            }
+        }
+        return runs.build();
+    }
+    
+    /**
+     * Add the voxels of one slice of one structure to its histogram.
+     * @param index structure index
+     * @param mask voxel centres inside the structure
+     * @param bounds voxel bounds of the structure
+     * @param k z index
+     * @param grid dose grid
+     * @param doses dose of each voxel
+     * @param scale dose scale
+     * @param binWidth width of dose bins
+     * @param samples sample points along each axis of a boundary voxel
+     * @param hist histogram, as from newHistograms()
+     */
+    private static void accumulate(StructureIndex index, StructureMask mask, int[] bounds, int k,
+            VoxelGrid grid, float[] doses, double scale, double binWidth, int samples, double[] hist) {
+        int nBins = hist.length - 4;
+        MaskSlice here = mask.getSlice(k);
+        MaskSlice below = (k > 0) ? mask.getSlice(k - 1) : null;
+        MaskSlice above = (k + 1 < grid.getNz()) ? mask.getSlice(k + 1) : null;
+        if (here == null && below == null && above == null) {
+            return;
+        }
+        
+        int nx = grid.getNx();
+        int ny = grid.getNy();
+        double dz = grid.getVoxelSize(VoxelGrid.Z, k);
+        for (int j = bounds[2]; j < bounds[3]; ++j) {
+            double dy = grid.getVoxelSize(VoxelGrid.Y, j);
+            for (int i = bounds[0]; i < bounds[1]; ++i) {
+                boolean in_p = here != null && here.isSet(i, j);
+                
+                // boundary unless all six neighbours agree
+                boolean boundary_p =
+                        (i > 0 && isSet(here, i - 1, j) != in_p)
+                        || (i + 1 < nx && isSet(here, i + 1, j) != in_p)
+                        || (j > 0 && isSet(here, i, j - 1) != in_p)
+                        || (j + 1 < ny && isSet(here, i, j + 1) != in_p)
+                        || (k > 0 && isSet(below, i, j) != in_p)
+                        || (k + 1 < grid.getNz() && isSet(above, i, j) != in_p);
+                
+                double fraction;
+                if (boundary_p) {
+                    fraction = index.voxelFraction(grid, i, j, k, samples);
+                } else {
+                    fraction = in_p ? 1. : 0.;
+                }
+                if (fraction <= 0.) {
+                    continue;
+                }
+                
+                // cm^3
+                double volume = fraction * grid.getVoxelSize(VoxelGrid.X, i) * dy * dz / 1000.;
+                double d = scale * doses[grid.index(i, j, k)];
+                // a negative dose (from a difference grid, say) counts in
+                // the first bin; min and mean keep its true value
+                int bin = Math.max(0, Math.min((int) (d / binWidth), nBins));
+                hist[bin] += volume;
+                hist[nBins + 1] += d * volume;
+                hist[nBins + 2] = Math.min(hist[nBins + 2], d);
+                hist[nBins + 3] = Math.max(hist[nBins + 3], d);
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @param slice slice, or null if empty
+     * @param i x index
+     * @param j y index
+     * @return predicate: voxel (i,j) of slice is set
+     */
+    private static boolean isSet(MaskSlice slice, int i, int j) {
+        return slice != null && slice.isSet(i, j);
+    }
+    
+    /**
+     * Voxels which might be partly inside a structure: those overlapping
+     * its bounding box, and one more all round.
+     * @param index spatial index of structure
+     * @param grid dose grid
+     * @return { imin, imax, jmin, jmax, kmin, kmax }, upper bounds
+     *         exclusive, or null if the structure misses the grid
+     */
+    static int[] voxelBounds(StructureIndex index, VoxelGrid grid) {
+        Structure structure = index.getStructure();
+        if (structure.getNContours() == 0) {
+            return null;
+        }
+        
+        Point3d lower = new Point3d();
+        Point3d upper = new Point3d();
+        structure.getBoundingBox().getLower(lower);
+        structure.getBoundingBox().getUpper(upper);
+        double[] lo = { lower.x, lower.y, index.getBottom() };
+        double[] hi = { upper.x, upper.y, index.getTop() };
+        
+        int[] bounds = new int[6];
+        for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+            bounds[2*axis] = Math.max(0, grid.firstCenterAtOrAbove(axis, lo[axis]) - 1);
+            bounds[2*axis + 1] = Math.min(grid.getN(axis),
+                    grid.firstCenterAtOrAbove(axis, hi[axis]) + 1);
+            if (bounds[2*axis] >= bounds[2*axis + 1]) {
+                return null;
+            }
+        }
+        return bounds;
+    }
+    
+    /** dose grid */
+    private DoseGrid dose;
+    
+    /** structure set */
+    private StructureSet structures;
+    
+    /** number of dose bins */
+    private int nBins = 1000;
+    
+    /** factor applied to all doses */
+    private double doseScale = 1.;
+    
+    /** sample points along each axis of a boundary voxel */
+    private int nSamples = 4;
+    
+    /** debug flag */
+    private boolean debug_p = false;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: patient ID, .3ddose file, structure
+     *        names...
+     */
+    public static void main(String[] args) {
+        Phantom phantom = new Phantom(args[0]);
+        
+        try {
+            DoseGrid dose = DoseGrid.read(new File(args[1]));
+            DVHEngine engine = new DVHEngine(dose, phantom.getStructures());
+            
+            Vector<String> names = new Vector<String>();
+            for (int a = 2; a < args.length; ++a) {
+                names.add(args[a]);
+            }
+            if (names.isEmpty()) {
+                names.addAll(phantom.getStructures().getStructureMap().keySet());
+            }
+            
+            long start = System.currentTimeMillis();
+            TreeMap<String, DVH> dvhs = engine.compute(names);
+            System.out.println("DVHs in " + (System.currentTimeMillis() - start) + " ms");
+            for (DVH dvh : dvhs.values()) {
+                System.out.println(dvh);
+                System.out.println("    D95 = " + dvh.getDoseToVolume(0.95));
+            }
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/* DecimalParser.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.nio.ByteBuffer;
+
+// Decimal strings in DICOM (DS) and in the EGSnrc output files are plain
+// ASCII: an optional sign, digits, an optional decimal point and more
+// digits, and an optional exponent. Most of them have 17 significant digits
+// or fewer and a small exponent, in which case the mantissa fits exactly in
+// a double and a single multiplication or division by an exact power of ten
+// gives the correctly rounded result (Clinger's fast path). Anything else
+// -- long mantissas, huge exponents, NaN, Infinity -- goes through
+// Double.parseDouble(), so the results are always those of
+// Double.parseDouble().
+
+/**
+ * Parses ASCII decimal numbers straight out of a ByteBuffer, without making
+ * any Strings along the way.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DecimalParser {
+    /** utility class */
+    private DecimalParser() {}
+    
+    /**
+     * Parse all the numbers in a range of bytes. Numbers are separated by
+     * backslashes (as in multi-valued DICOM elements) and/or whitespace; NUL
+     * padding is ignored.
+     * @param buf buffer holding the text; its position is not changed
+     * @param from index of first byte
+     * @param to index one past the last byte
+     * @param out where to put the numbers
+     * @param offset index in out of the first number
+     * @return how many numbers were found. If there are more than fit in
+     *         out, only those which fit are stored, but all are counted.
+     */
+    public static int parseAll(ByteBuffer buf, int from, int to, double[] out, int offset) {
+        int count = 0;
+        int i = from;
+        while (i < to) {
+            // skip separators
+            while (i < to && isSeparator(buf.get(i))) {
+                ++i;
+            }
+            if (i >= to) {
+                break;
+            }
+            
+            int start = i;
+            while (i < to && !isSeparator(buf.get(i))) {
+                ++i;
+            }
+            
+            if (offset + count < out.length) {
+                out[offset + count] = parse(buf, start, i);
+            }
+            ++count;
+        }
+        return count;
+    }
+    
+    /**
+     * Count the numbers in a range of bytes, separated as for parseAll().
+     * @param buf buffer holding the text; its position is not changed
+     * @param from index of first byte
+     * @param to index one past the last byte
+     * @return number of numbers
+     */
+    public static int count(ByteBuffer buf, int from, int to) {
+        int count = 0;
+        boolean inNumber = false;
+        for (int i = from; i < to; ++i) {
+            boolean sep = isSeparator(buf.get(i));
+            if (!sep && !inNumber) {
+                ++count;
+            }
+            inNumber = !sep;
+        }
+        return count;
+    }
+    
+    /**
+     * 
+     * @param b byte
+     * @return predicate: b separates numbers
+     */
+    public static boolean isSeparator(byte b) {
+        return b == '\\' || b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == 0;
+    }
+    
+    /**
+     * Parse one number.
+     * @param buf buffer holding the text; its position is not changed
+     * @param from index of first byte
+     * @param to index one past the last byte
+     * @return the number, as Double.parseDouble() would have it
+     * @throws NumberFormatException if the bytes are not a number
+     */
+    public static double parse(ByteBuffer buf, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        
+        if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            ++i;
+        }
+        
+        long mantissa = 0;
+        int nDigits = 0;        // significant digits in mantissa
+        int exp10 = 0;          // power of ten to apply to mantissa
+        boolean anyDigits = false;
+        
+        // integer part
+        for (; i < to; ++i) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9) {
+                break;
+            }
+            anyDigits = true;
+            if (nDigits < MAX_DIGITS) {
+                mantissa = 10 * mantissa + d;
+                if (mantissa != 0) {
+                    ++nDigits;
+                }
+            } else {
+                return slowParse(buf, from, to);
+            }
+        }
+        
+        // fraction
+        if (i < to && buf.get(i) == '.') {
+            for (++i; i < to; ++i) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                anyDigits = true;
+                if (nDigits < MAX_DIGITS) {
+                    mantissa = 10 * mantissa + d;
+                    if (mantissa != 0) {
+                        ++nDigits;
+                    }
+                    --exp10;
+                } else {
+                    return slowParse(buf, from, to);
+                }
+            }
+        }
+        
+        if (!anyDigits) {
+            return slowParse(buf, from, to);
+        }
+        
+        // exponent
+        if (i < to && (buf.get(i) == 'e' || buf.get(i) == 'E')) {
+            ++i;
+            boolean negExp = false;
+            if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) {
+                negExp = buf.get(i) == '-';
+                ++i;
+            }
+            
+            int exp = 0;
+            int expStart = i;
+            for (; i < to; ++i) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9 || exp > 10000) {
+                    break;
+                }
+                exp = 10 * exp + d;
+            }
+            if (i == expStart) {
+                return slowParse(buf, from, to);
+            }
+            exp10 += negExp ? -exp : exp;
+        }
+        
+        if (i != to) {
+            // trailing junk, or something exotic
+            return slowParse(buf, from, to);
+        }
+        
+        double value;
+        if (mantissa == 0) {
+            value = 0.;
+        } else if (mantissa < (1L << 53) && exp10 >= -MAX_EXACT_POWER && exp10 <= MAX_EXACT_POWER) {
+            value = exp10 < 0 ? mantissa / POWERS_OF_TEN[-exp10] : mantissa * POWERS_OF_TEN[exp10];
+        } else {
+            return slowParse(buf, from, to);
+        }
+        
+        // negate rather than multiply by -1, so "-0" is -0.0, as in
+        // Double.parseDouble()
+        return negative ? -value : value;
+    }
+    
+    /**
+     * Parse via Double.parseDouble().
+     * @param buf buffer holding the text
+     * @param from index of first byte
+     * @param to index one past the last byte
+     * @return the number
+     */
+    private static double slowParse(ByteBuffer buf, int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = from; i < to; ++i) {
+            chars[i - from] = (char) (buf.get(i) & 0xff);
+        }
+        return Double.parseDouble(new String(chars));
+    }
+    
+    /** more digits than this might overflow the long mantissa */
+    private static final int MAX_DIGITS = 18;
+    
+    /** largest power of ten which is exact in a double */
+    private static final int MAX_EXACT_POWER = 22;
+    
+    /** exact powers of ten */
+    private static final double[] POWERS_OF_TEN = new double[MAX_EXACT_POWER + 1];
+    static {
+        POWERS_OF_TEN[0] = 1.;
+        for (int i = 1; i <= MAX_EXACT_POWER; ++i) {
+            POWERS_OF_TEN[i] = 10. * POWERS_OF_TEN[i-1];
+        }
+    }
+    
+    
+    /** Simple test program
+     * @param args numbers to parse; with none, a few signed zeros
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            args = new String[] { "-0", "-0.0", "+0", "-0e5", "-1.5" };
+        }
+        for (String s : args) {
+            ByteBuffer buf = ByteBuffer.wrap(s.getBytes());
+            double[] values = new double[DecimalParser.count(buf, 0, buf.limit())];
+            DecimalParser.parseAll(buf, 0, buf.limit(), values, 0);
+            for (double v : values) {
+                System.out.println(v);
+            }
+            
+            // same bits as Double.parseDouble(), so -0.0 is not +0.0
+            if (values.length == 1 && Double.doubleToLongBits(values[0])
+                    != Double.doubleToLongBits(Double.parseDouble(s))) {
+                System.out.println("MISMATCH: " + s + " parsed as " + values[0]);
+            }
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/* DistanceTransform.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+// Margins by Euclidean distance transform.
+//
+// The squared distance from each voxel centre to the nearest voxel centre
+// of a set is separable: do the 1D transform along x for every row, then
+// along y on the result, then along z (Felzenszwalb & Huttenlocher,
+// "Distance transforms of sampled functions"). The 1D transform is the
+// lower envelope of parabolas rooted at the set voxels, which works just as
+// well with the actual voxel centres as with integer positions, so
+// anisotropic and irregular grids come for free. Every line along an axis
+// is independent, so each pass is spread over the processors.
+//
+// Different margins along each axis are handled by measuring each axis in
+// units of its margin: a voxel is then within the margin when the scaled
+// distance is at most 1, i.e. inside the ellipsoid with the margins as
+// semi-axes. An axis with zero margin is simply not transformed.
+//
+// Only the box around the structure, grown by the margin, is transformed;
+// the rest of the grid cannot change. For contraction the transform is of
+// the voxels outside the structure, within the box grown by one voxel.
+// The edge of the grid does not count as outside.
+
+/**
+ * Expands and contracts structure masks by 3D margins.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DistanceTransform {
+    /** utility class */
+    private DistanceTransform() {}
+    
+    /**
+     * Expand a mask by a margin.
+     * @param mask structure mask
+     * @param mx margin along x (mm)
+     * @param my margin along y (mm)
+     * @param mz margin along z (mm)
+     * @return mask of voxels whose centres are within the margin of a voxel
+     *         centre of mask
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public static StructureMask expand(StructureMask mask, double mx, double my, double mz)
+            throws EclipsePlanException {
+        VoxelGrid grid = mask.getGrid();
+        StructureMask result = new StructureMask(grid);
+        int[] bounds = mask.getIndexBounds();
+        if (bounds == null) {
+            return result;
+        }
+        
+        double[] margin = { mx, my, mz };
+        for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+            grow(grid, bounds, axis, margin[axis]);
+        }
+        
+        SubBox box = new SubBox(grid, bounds, margin);
+        box.seed(mask, true);
+        box.transform();
+        
+        // voxels within the margin
+        for (int c = 0; c < box.sz; ++c) {
+            result.setSlice(box.k0 + c, box.runs(c, true));
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Contract a mask by a margin.
+     * @param mask structure mask
+     * @param mx margin along x (mm)
+     * @param my margin along y (mm)
+     * @param mz margin along z (mm)
+     * @return mask of voxels of mask whose centres are further than the
+     *         margin from every voxel centre outside mask
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public static StructureMask contract(StructureMask mask, double mx, double my, double mz)
+            throws EclipsePlanException {
+        VoxelGrid grid = mask.getGrid();
+        StructureMask result = new StructureMask(grid);
+        int[] bounds = mask.getIndexBounds();
+        if (bounds == null) {
+            return result;
+        }
+        
+        // one more voxel all round, so the box has some outside in it
+        for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+            bounds[2*axis] = Math.max(0, bounds[2*axis] - 1);
+            bounds[2*axis + 1] = Math.min(grid.getN(axis), bounds[2*axis + 1] + 1);
+        }
+        
+        double[] margin = { mx, my, mz };
+        SubBox box = new SubBox(grid, bounds, margin);
+        box.seed(mask, false);
+        box.transform();
+        
+        // voxels of the mask beyond the margin
+        for (int c = 0; c < box.sz; ++c) {
+            result.setSlice(box.k0 + c, 
+                    MaskSlice.intersect(mask.getSlice(box.k0 + c), box.runs(c, false)));
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Ring around a structure, e.g. for dose fall-off.
+     * @param mask structure mask
+     * @param inner margin to the inside of the ring (mm), same along all axes
+     * @param outer margin to the outside of the ring (mm), same along all axes
+     * @return voxels within outer of mask, but not within inner of it
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public static StructureMask ring(StructureMask mask, double inner, double outer)
+            throws EclipsePlanException {
+        StructureMask outside = expand(mask, outer, outer, outer);
+        StructureMask inside = (inner > 0.) ? expand(mask, inner, inner, inner) : mask;
+        
+        return outside.subtract(inside);
+    }
+    
+    /**
+     * Grow index bounds along an axis by a margin, staying within the grid.
+     * @param grid voxel grid
+     * @param bounds { i0, i1, j0, j1, k0, k1 }, upper bounds exclusive
+     * @param axis X, Y or Z
+     * @param margin margin (mm)
+     */
+    private static void grow(VoxelGrid grid, int[] bounds, int axis, double margin) {
+        if (margin <= 0.) {
+            return;
+        }
+        
+        double lo = grid.getCenter(axis, bounds[2*axis]) - margin;
+        double hi = grid.getCenter(axis, bounds[2*axis + 1] - 1) + margin;
+        bounds[2*axis] = grid.firstCenterAtOrAbove(axis, lo - TOLERANCE);
+        bounds[2*axis + 1] = grid.firstCenterAtOrAbove(axis, hi + TOLERANCE);
+    }
+    
+    /**
+     * Part of the grid being transformed, with the distances.
+     */
+    private static class SubBox {
+        /**
+         * 
+         * @param grid voxel grid
+         * @param bounds { i0, i1, j0, j1, k0, k1 }, upper bounds exclusive
+         * @param margin margins (mm) along each axis
+         */
+        SubBox(VoxelGrid grid, int[] bounds, double[] margin) {
+            this.ny = grid.getNy();
+            this.i0 = bounds[0];
+            this.j0 = bounds[2];
+            this.k0 = bounds[4];
+            this.sx = bounds[1] - bounds[0];
+            this.sy = bounds[3] - bounds[2];
+            this.sz = bounds[5] - bounds[4];
+            this.margin = margin.clone();
+            
+            // voxel centres, in units of the margin
+            int[] start = { this.i0, this.j0, this.k0 };
+            int[] size = { this.sx, this.sy, this.sz };
+            for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+                this.position[axis] = new double[size[axis]];
+                if (margin[axis] > 0.) {
+                    for (int n = 0; n < size[axis]; ++n) {
+                        this.position[axis][n] = grid.getCenter(axis, start[axis] + n) / margin[axis];
+                    }
+                }
+            }
+            
+            this.dist = new float[this.sx * this.sy * this.sz];
+        }
+        
+        /**
+         * Set distance 0 on the voxels of the set, infinity elsewhere.
+         * @param mask structure mask
+         * @param inside_p true for the set to be the voxels of mask, false
+         *        for it to be the voxels outside mask
+         */
+        void seed(StructureMask mask, boolean inside_p) {
+            float in = inside_p ? 0.f : Float.POSITIVE_INFINITY;
+            float out = inside_p ? Float.POSITIVE_INFINITY : 0.f;
+            Arrays.fill(this.dist, out);
+            
+            for (int c = 0; c < this.sz; ++c) {
+                MaskSlice slice = mask.getSlice(this.k0 + c);
+                if (slice == null) {
+                    continue;
+                }
+                
+                for (int b = 0; b < this.sy; ++b) {
+                    int j = this.j0 + b;
+                    for (int r = 0; r < slice.getNRuns(j); ++r) {
+                        int from = Math.max(slice.getRunStart(j, r), this.i0);
+                        int to = Math.min(slice.getRunEnd(j, r), this.i0 + this.sx);
+                        if (from < to) {
+                            Arrays.fill(this.dist, this.index(from - this.i0, b, c),
+                                    this.index(to - this.i0, b, c), in);
+                        }
+                    }
+                }
+            }
+        }
+        
+        /**
+         * 
+         * @param c z index within the box
+         * @param within_p true for the voxels within the margin, false for
+         *        those beyond it
+         * @return runs of those voxels of slice c of the box
+         */
+        MaskSlice runs(int c, boolean within_p) {
+            MaskSlice.Builder runs = new MaskSlice.Builder(this.ny, 0);
+            for (int b = 0; b < this.sy; ++b) {
+                int start = -1;
+                for (int a = 0; a <= this.sx; ++a) {
+                    boolean set_p = a < this.sx 
+                            && (this.dist[this.index(a, b, c)] <= THRESHOLD) == within_p;
+                    if (set_p && start < 0) {
+                        start = a;
+                    } else if (!set_p && start >= 0) {
+                        runs.addRun(this.j0 + b, this.i0 + start, this.i0 + a);
+                        start = -1;
+                    }
+                }
+            }
+            return runs.build();
+        }
+        
+        /**
+         * Squared (scaled) distance transform, one axis after the other.
+         * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+         */
+        void transform() throws EclipsePlanException {
+            if (this.margin[VoxelGrid.X] > 0.) {
+                // rows along x, one task per slice
+                List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+                for (int c = 0; c < this.sz; ++c) {
+                    final int cc = c;
+                    tasks.add(new Callable<Object>() {
+                        public Object call() {
+                            Scratch s = new Scratch(sx);
+                            for (int b = 0; b < sy; ++b) {
+                                transformLine(index(0, b, cc), 1, sx, position[VoxelGrid.X], s);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                TaskPool.invokeAll(tasks, "in distance transform");
+            }
+            
+            if (this.margin[VoxelGrid.Y] > 0.) {
+                // columns along y, one task per slice
+                List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+                for (int c = 0; c < this.sz; ++c) {
+                    final int cc = c;
+                    tasks.add(new Callable<Object>() {
+                        public Object call() {
+                            Scratch s = new Scratch(sy);
+                            for (int a = 0; a < sx; ++a) {
+                                transformLine(index(a, 0, cc), sx, sy, position[VoxelGrid.Y], s);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                TaskPool.invokeAll(tasks, "in distance transform");
+            }
+            
+            if (this.margin[VoxelGrid.Z] > 0.) {
+                // lines along z, one task per row
+                List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+                for (int b = 0; b < this.sy; ++b) {
+                    final int bb = b;
+                    tasks.add(new Callable<Object>() {
+                        public Object call() {
+                            Scratch s = new Scratch(sz);
+                            for (int a = 0; a < sx; ++a) {
+                                transformLine(index(a, bb, 0), sx * sy, sz, position[VoxelGrid.Z], s);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                TaskPool.invokeAll(tasks, "in distance transform");
+            }
+        }
+        
+        /**
+         * 1D squared distance transform of one line of the box, in place.
+         * @param first index of first voxel of the line
+         * @param stride index step between voxels of the line
+         * @param n number of voxels in the line
+         * @param x (scaled) positions of the voxels of the line
+         * @param s scratch space
+         */
+        private void transformLine(int first, int stride, int n, double[] x, Scratch s) {
+            float[] d = this.dist;
+            for (int q = 0; q < n; ++q) {
+                s.f[q] = d[first + q * stride];
+            }
+            
+            // lower envelope of the parabolas f[q] + (x - x[q])^2
+            int k = -1;
+            for (int q = 0; q < n; ++q) {
+                if (s.f[q] == Float.POSITIVE_INFINITY) {
+                    continue;
+                }
+                
+                double fq = s.f[q] + x[q] * x[q];
+                while (k >= 0) {
+                    int r = s.v[k];
+                    double sect = (fq - (s.f[r] + x[r] * x[r])) / (2. * (x[q] - x[r]));
+                    if (sect <= s.z[k]) {
+                        --k;
+                    } else {
+                        ++k;
+                        s.v[k] = q;
+                        s.z[k] = sect;
+                        break;
+                    }
+                }
+                
+                if (k < 0) {
+                    k = 0;
+                    s.v[0] = q;
+                    s.z[0] = Double.NEGATIVE_INFINITY;
+                }
+                s.z[k+1] = Double.POSITIVE_INFINITY;
+            }
+            
+            if (k < 0) {
+                // nothing on this line; it stays at infinity
+                return;
+            }
+            
+            int j = 0;
+            for (int q = 0; q < n; ++q) {
+                while (s.z[j+1] < x[q]) {
+                    ++j;
+                }
+                int r = s.v[j];
+                double dx = x[q] - x[r];
+                d[first + q * stride] = (float) (dx * dx + s.f[r]);
+            }
+        }
+        
+        /**
+         * 
+         * @return index into dist of voxel (a,b,c) of the box
+         */
+        int index(int a, int b, int c) {
+            return a + this.sx * (b + this.sy * c);
+        }
+        
+        /** number of voxels along y of the whole grid */
+        int ny;
+        
+        /** first voxel of the box */
+        int i0, j0, k0;
+        
+        /** size of the box */
+        int sx, sy, sz;
+        
+        /** margins along each axis */
+        double[] margin;
+        
+        /** voxel centres along each axis, in units of the margin */
+        double[][] position = new double[3][];
+        
+        /** squared scaled distances */
+        float[] dist;
+    }
+    
+    /**
+     * Working space for the 1D transform of one line.
+     */
+    private static class Scratch {
+        Scratch(int n) {
+            this.f = new float[n];
+            this.v = new int[n];
+            this.z = new double[n + 1];
+        }
+        
+        /** copy of the line */
+        float[] f;
+        
+        /** roots of the parabolas in the lower envelope */
+        int[] v;
+        
+        /** boundaries between the parabolas in the lower envelope */
+        double[] z;
+    }
+    
+    /** squared scaled distance at the margin, allowing for rounding */
+    private static final double THRESHOLD = 1. + 1.e-9;
+    
+    /** rounding allowance when growing the box (mm) */
+    private static final double TOLERANCE = 1.e-6;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: patient ID, structure name, margin (mm)
+     */
+    public static void main(String[] args) {
+        Phantom phantom = new Phantom(args[0]);
+        double margin = Double.parseDouble(args[2]);
+        
+        try {
+            StructureMask mask = phantom.getMask(args[1]);
+            long start = System.currentTimeMillis();
+            StructureMask expanded = DistanceTransform.expand(mask, margin, margin, margin);
+            long mid = System.currentTimeMillis();
+            StructureMask contracted = DistanceTransform.contract(mask, margin, margin, margin);
+            long end = System.currentTimeMillis();
+            
+            System.out.println(args[1] + ": " + mask);
+            System.out.println("expanded (" + (mid - start) + " ms): " + expanded);
+            System.out.println("    " + expanded.getBoundingBox());
+            System.out.println("contracted (" + (end - mid) + " ms): " + contracted);
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
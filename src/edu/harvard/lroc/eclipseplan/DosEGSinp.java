@@ -36,16 +36,346 @@
 
 package edu.harvard.lroc.eclipseplan;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// DOSXYZnrc sources 20 (synchronized phase space) and 21 (synchronized
+// BEAMnrc shared library) take the beam as a table of settings, one per
+// control point:
+//     xiso, yiso, ziso, theta, phi, phicol, dsource, MU index
+// with the MU index the cumulative meterset weight of the control point:
+// the same index DYNVMLC reads from the .mlc file, so each history's leaf
+// positions and beam direction come from the same point of the delivery.
+// For a dynamic beam there is one setting per step of its MLCSequence,
+// each with the gantry, collimator and couch angles of that step, so an
+// arc is simulated through its whole rotation; a static beam has two, at
+// MU index 0 and 1.
+//
+// With gantry g, couch c and collimator col in IEC, and the phantom in
+// patient coordinates (as the egsphant is written), the direction from
+// the isocentre to the source is
+//     (sin g cos c, -cos g, -sin g sin c)
+// so
+//     theta  = acos(-sin g sin c)
+//     phi    = atan2(-cos g, sin g cos c)
+//     phicol = 270 - col - atan2(-sin c cos g, cos c)
+// All the settings of all the beams are converted together in one pass
+// over packed arrays.
+//
+// The egsphant voxels are centred on the CT pixels (see VoxelGrid), so
+// phantom coordinates are patient coordinates, and the isocentre goes in
+// as it is, but in cm. If the phantom grid is known, an isocentre outside
+// it is reported, as that is usually the wrong phantom.
+//
+// The layout of the input is that of the DOSXYZnrc manual for these
+// sources: title, media (0: from the egsphant), egsphant, cutoffs, dose
+// options, source line, settings, phase space file (20) or BEAMnrc code,
+// input and PEGS data (21), then the run control line and the transport
+// parameters.
+
 /**
  * Encapsulates data needed to create a DOSXYZnrc input file.
  * @author David Chin
  * @version $Revision: 253 $
  */
 public class DosEGSinp {
-    // TODO: implement
     
-    /** Creates a new instance of DosEGSinp */
-    public DosEGSinp() {
+    /**
+     * 
+     * @param egsphantFile phantom
+     */
+    public DosEGSinp(File egsphantFile) {
+        this(egsphantFile, null);
+    }
+    
+    /**
+     * 
+     * @param egsphantFile phantom
+     * @param phantomGrid voxel grid of the phantom (mm), to check the
+     *        isocentres against; null not to check
+     */
+    public DosEGSinp(File egsphantFile, VoxelGrid phantomGrid) {
+        this.egsphantFile = egsphantFile;
+        this.phantomGrid = phantomGrid;
+    }
+    
+    /**
+     * Use source 21, running the BEAMnrc accelerator as a shared library
+     * with the input of each beam written by BeamEGSinput.
+     * @param beamCode name of the BEAMnrc accelerator, e.g. BEAM_ex16MVp
+     * @param pegsFile PEGS data of the BEAMnrc run
+     */
+    public void setBeamLibrary(String beamCode, String pegsFile) {
+        this.beamCode = beamCode;
+        this.pegsFile = pegsFile;
+    }
+    
+    /**
+     * Use source 20, reading the phase space file of each beam,
+     * patientID_beamName.egsphsp1 (the default).
+     * @param phaseSpaceDir directory of the phase space files, or null for
+     *        the directory the inputs are written to
+     */
+    public void setPhaseSpaceDir(File phaseSpaceDir) {
+        this.beamCode = null;
+        this.phaseSpaceDir = phaseSpaceDir;
+    }
+    
+    /**
+     * 
+     * @param nCase number of histories of each beam
+     */
+    public void setNCase(long nCase) {
+        this.nCase = nCase;
+    }
+    
+    /**
+     * 
+     * @param ecut electron cutoff (MeV, total energy)
+     * @param pcut photon cutoff (MeV)
+     */
+    public void setCutoffs(double ecut, double pcut) {
+        this.ecut = ecut;
+        this.pcut = pcut;
+    }
+    
+    /**
+     * 
+     * @param dsource distance from the isocentre to the source (cm), or NaN
+     *        for the source-axis distance of each beam (the default)
+     */
+    public void setDSource(double dsource) {
+        this.dsource = dsource;
+    }
+    
+    /**
+     * 
+     * @return source number, 20 or 21
+     */
+    public int getSource() {
+        return (this.beamCode == null) ? 20 : 21;
+    }
+    
+    /**
+     * Convert IEC gantry, couch and collimator angles to DOSXYZnrc angles.
+     * @param gantry gantry angles (degrees)
+     * @param couch couch angles (degrees)
+     * @param collimator collimator angles (degrees)
+     * @param theta set to the polar angles of the source (degrees)
+     * @param phi set to the azimuthal angles of the source (degrees)
+     * @param phicol set to the collimator angles (degrees)
+     */
+    public static void convertAngles(double[] gantry, double[] couch, double[] collimator,
+            double[] theta, double[] phi, double[] phicol) {
+        for (int i = 0; i < gantry.length; ++i) {
+            double g = Math.toRadians(gantry[i]);
+            double c = Math.toRadians(couch[i]);
+            double sinG = Math.sin(g);
+            double cosG = Math.cos(g);
+            double sinC = Math.sin(c);
+            double cosC = Math.cos(c);
+            
+            theta[i] = Math.toDegrees(Math.acos(Math.max(-1., Math.min(1., -sinG * sinC))));
+            phi[i] = normalize(Math.toDegrees(Math.atan2(-cosG, sinG * cosC)));
+            phicol[i] = normalize(270. - collimator[i] - Math.toDegrees(Math.atan2(-sinC * cosG, cosC)));
+        }
+    }
+    
+    /**
+     * 
+     * @param angle angle (degrees)
+     * @return the same angle in [0, 360)
+     */
+    private static double normalize(double angle) {
+        double a = angle % 360.;
+        if (a < 0.) {
+            a += 360.;
+        }
+        return (a >= 360.) ? 0. : a;
     }
     
+    /**
+     * Write the DOSXYZnrc inputs of all the beams, as
+     * dir/patientID_beamName_dosxyz.egsinp.
+     * @param beams beams of the plan
+     * @param dir directory to write to
+     * @throws java.io.FileNotFoundException
+     */
+    public void writeAll(BeamSequence beams, File dir) throws FileNotFoundException {
+        this.writeAll(beams.getBeamMap().values(), dir);
+    }
+    
+    /**
+     * 
+     * @param beams beams
+     * @param dir directory to write to
+     * @throws java.io.FileNotFoundException
+     */
+    public void writeAll(Collection<Beam> beams, File dir) throws FileNotFoundException {
+        // the settings of every beam, packed
+        List<Beam> beamList = new ArrayList<Beam>(beams);
+        int[] first = new int[beamList.size() + 1];
+        for (int b = 0; b < beamList.size(); ++b) {
+            first[b + 1] = first[b] + nSettings(beamList.get(b));
+        }
+        int n = first[beamList.size()];
+        double[] gantry = new double[n];
+        double[] couch = new double[n];
+        double[] collimator = new double[n];
+        double[] index = new double[n];
+        for (int b = 0; b < beamList.size(); ++b) {
+            Beam beam = beamList.get(b);
+            MLCSequence seq = beam.getMLCSequence();
+            for (int s = first[b]; s < first[b + 1]; ++s) {
+                if (seq != null) {
+                    int step = s - first[b];
+                    gantry[s] = seq.getGantryAngle(step);
+                    couch[s] = seq.getCouchAngle(step);
+                    collimator[s] = seq.getCollimatorAngle(step);
+                    index[s] = seq.getCumulativeMetersetWeight(step);
+                } else {
+                    gantry[s] = beam.getGantryAngle();
+                    couch[s] = beam.getCouchAngle();
+                    collimator[s] = beam.getCollimatorAngle();
+                    index[s] = s - first[b];
+                }
+            }
+        }
+        
+        double[] theta = new double[n];
+        double[] phi = new double[n];
+        double[] phicol = new double[n];
+        convertAngles(gantry, couch, collimator, theta, phi, phicol);
+        
+        for (int b = 0; b < beamList.size(); ++b) {
+            Beam beam = beamList.get(b);
+            File file = new File(dir, BeamEGSinput.baseName(beam) + "_dosxyz.egsinp");
+            PrintWriter out = new PrintWriter(file);
+            try {
+                this.write(out, beam, b, dir, first[b], first[b + 1], theta, phi, phicol, index);
+            } finally {
+                out.close();
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @param beam beam
+     * @return number of settings of the beam
+     */
+    private static int nSettings(Beam beam) {
+        return (beam.getMLCSequence() != null) ? beam.getMLCSequence().getNSteps() : 2;
+    }
+    
+    /**
+     * Write the input of one beam.
+     * @param out where to write
+     * @param beam beam
+     * @param b number of the beam in this run, for the random number seeds
+     * @param dir directory the inputs are written to
+     * @param from first setting of the beam
+     * @param to one past its last setting
+     * @param theta polar angles of the settings
+     * @param phi azimuthal angles of the settings
+     * @param phicol collimator angles of the settings
+     * @param index MU indices of the settings
+     */
+    private void write(PrintWriter out, Beam beam, int b, File dir, int from, int to,
+            double[] theta, double[] phi, double[] phicol, double[] index) {
+        double[] iso = new double[3];
+        boolean outside_p = false;
+        for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+            Double position = beam.getIsocenter()[axis];
+            iso[axis] = (position == null) ? 0. : position;
+            if (this.phantomGrid != null && this.phantomGrid.indexOf(axis, iso[axis]) < 0) {
+                outside_p = true;
+            }
+            iso[axis] /= 10.;
+        }
+        if (outside_p) {
+            Logger.getLogger(DosEGSinp.class.getName()).log(Level.WARNING,
+                    "isocentre of beam " + beam.getName() + " is outside the phantom");
+        }
+        double ds = Double.isNaN(this.dsource) ? beam.getSourceAxisDistance() / 10. : this.dsource;
+        
+        out.printf("%s %s DOSXYZnrc source %d%n", beam.getPatientID(), beam.getName(), this.getSource());
+        out.println("0");
+        out.println(this.egsphantFile.getAbsolutePath());
+        out.printf("%f, %f, 0%n", this.ecut, this.pcut);
+        out.println("0, 0, 0,");
+        out.printf("2, %d, %d, 0, 0, 0, 0, 0,%n", this.getSource(), to - from);
+        for (int s = from; s < to; ++s) {
+            out.printf("%f, %f, %f, %f, %f, %f, %f, %f%n", iso[0], iso[1], iso[2],
+                    theta[s], phi[s], phicol[s], ds, index[s]);
+        }
+        if (this.getSource() == 20) {
+            File phspDir = (this.phaseSpaceDir == null) ? dir : this.phaseSpaceDir;
+            out.println(new File(phspDir, BeamEGSinput.baseName(beam) + ".egsphsp1").getAbsolutePath());
+        } else {
+            out.printf("%s, %s, %s%n", this.beamCode, BeamEGSinput.baseName(beam), this.pegsFile);
+        }
+        out.printf("%d, 0, 99, 33, %d, 100.0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0,%n", this.nCase, 97 + b);
+        out.println(" #########################");
+        out.println(" :Start MC Transport Parameter:");
+        out.printf(" Global ECUT= %f%n", this.ecut);
+        out.printf(" Global PCUT= %f%n", this.pcut);
+        out.println(" :Stop MC Transport Parameter:");
+        out.println(" #########################");
+    }
+    
+    /** egsphant file */
+    private File egsphantFile;
+    
+    /** voxel grid of the phantom (mm), or null */
+    private VoxelGrid phantomGrid;
+    
+    /** BEAMnrc accelerator for source 21, or null for source 20 */
+    private String beamCode;
+    
+    /** PEGS data of the BEAMnrc run */
+    private String pegsFile;
+    
+    /** directory of the phase space files for source 20 */
+    private File phaseSpaceDir;
+    
+    /** histories per beam */
+    private long nCase = 100000000;
+    
+    /** electron cutoff (MeV) */
+    private double ecut = 0.7;
+    
+    /** photon cutoff (MeV) */
+    private double pcut = 0.01;
+    
+    /** distance from the isocentre to the source (cm), or NaN for the SAD */
+    private double dsource = Double.NaN;
+    
+    
+    /**
+     * Simple test program
+     * @param args commandline arguments: RTPLAN file, egsphant file,
+     *        output directory, then optionally the BEAMnrc accelerator and
+     *        PEGS data for source 21
+     */
+    public static void main(String[] args) {
+        try {
+            BeamSequence beams = new BeamSequence(args[0]);
+            DosEGSinp dosxyz = new DosEGSinp(new File(args[1]));
+            if (args.length > 4) {
+                dosxyz.setBeamLibrary(args[3], args[4]);
+            }
+            dosxyz.writeAll(beams, new File(args[2]));
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (FileNotFoundException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
 }
@@ -0,0 +1,289 @@
+/* DoseFileStream.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// DoseReader reads a whole .3ddose at once, which is what is wanted for one
+// dose, but not for adding up many: this reads the values one block at a
+// time, through a small buffer, so that any number of files can be read in
+// lockstep. The header is read when the stream is opened; then come the
+// nx*ny*nz doses and (if there are any) the nx*ny*nz uncertainties. A
+// number split across the end of the buffer is moved to the front before
+// the buffer is refilled.
+
+/**
+ * Reads the values of a DOSXYZnrc .3ddose file in order, a block at a time.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DoseFileStream {
+    /**
+     * Open a .3ddose file and read its header.
+     * @param file .3ddose file
+     * @throws java.io.IOException
+     */
+    public DoseFileStream(File file) throws IOException {
+        this.file = file;
+        this.channel = new FileInputStream(file).getChannel();
+        this.buf.limit(0);
+        
+        try {
+            int nx = (int) this.next();
+            int ny = (int) this.next();
+            int nz = (int) this.next();
+            if (nx <= 0 || ny <= 0 || nz <= 0) {
+                throw new IOException("Bad dimensions in " + file + ": " + nx + " " + ny + " " + nz);
+            }
+            
+            double[][] edges = { new double[nx + 1], new double[ny + 1], new double[nz + 1] };
+            for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+                for (int i = 0; i < edges[axis].length; ++i) {
+                    edges[axis][i] = 10. * this.next();
+                }
+            }
+            this.grid = new VoxelGrid(edges[VoxelGrid.X], edges[VoxelGrid.Y], edges[VoxelGrid.Z]);
+        } catch (IOException ex) {
+            this.channel.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * 
+     * @return voxel grid (mm)
+     */
+    public VoxelGrid getGrid() {
+        return this.grid;
+    }
+    
+    /**
+     * 
+     * @return .3ddose file
+     */
+    public File getFile() {
+        return this.file;
+    }
+    
+    /**
+     * Read the next values: doses, then uncertainties.
+     * @param values where to put them
+     * @param n how many to read
+     * @return how many were read; fewer than n only at the end of the file
+     * @throws java.io.IOException
+     */
+    public int read(float[] values, int n) throws IOException {
+        for (int v = 0; v < n; ++v) {
+            if (!this.nextToken()) {
+                return v;
+            }
+            values[v] = (float) this.parseToken();
+        }
+        return n;
+    }
+    
+    /**
+     * Skip values.
+     * @param n how many to skip
+     * @return how many were skipped; fewer than n only at the end of the
+     *         file
+     * @throws java.io.IOException
+     */
+    public long skip(long n) throws IOException {
+        for (long v = 0; v < n; ++v) {
+            if (!this.nextToken()) {
+                return v;
+            }
+            this.buf.position(this.tokenEnd);
+        }
+        return n;
+    }
+    
+    /**
+     * 
+     * @return predicate: there are more values to read
+     * @throws java.io.IOException
+     */
+    public boolean hasNext() throws IOException {
+        return this.nextToken();
+    }
+    
+    /**
+     * Close the file.
+     * @throws java.io.IOException
+     */
+    public void close() throws IOException {
+        this.channel.close();
+    }
+    
+    /**
+     * 
+     * @return next number of the header
+     * @throws java.io.IOException
+     */
+    private double next() throws IOException {
+        if (!this.nextToken()) {
+            throw new IOException("Unexpected end of " + this.file);
+        }
+        return this.parseToken();
+    }
+    
+    /**
+     * 
+     * @return the token found by nextToken()
+     * @throws java.io.IOException
+     */
+    private double parseToken() throws IOException {
+        int start = this.buf.position();
+        this.buf.position(this.tokenEnd);
+        try {
+            return DecimalParser.parse(this.buf, start, this.tokenEnd);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Bad number in " + this.file + ": " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Move the buffer position to the start of the next number, and set
+     * tokenEnd to its end, refilling the buffer as needed.
+     * @return predicate: there is another number
+     * @throws java.io.IOException
+     */
+    private boolean nextToken() throws IOException {
+        // skip separators
+        while (true) {
+            while (this.buf.hasRemaining() && DecimalParser.isSeparator(this.buf.get(this.buf.position()))) {
+                this.buf.position(this.buf.position() + 1);
+            }
+            if (this.buf.hasRemaining()) {
+                break;
+            }
+            if (!this.fill()) {
+                return false;
+            }
+        }
+        
+        // find the end of the number, which must be wholly in the buffer
+        int i = this.buf.position();
+        while (true) {
+            while (i < this.buf.limit() && !DecimalParser.isSeparator(this.buf.get(i))) {
+                ++i;
+            }
+            if (i < this.buf.limit() || this.eof_p) {
+                break;
+            }
+            int done = i - this.buf.position();
+            if (!this.fill()) {
+                i = this.buf.limit();
+                break;
+            }
+            i = this.buf.position() + done;
+        }
+        this.tokenEnd = i;
+        return true;
+    }
+    
+    /**
+     * Move what remains of the buffer to the front, and read more after it.
+     * @return predicate: more was read
+     * @throws java.io.IOException
+     */
+    private boolean fill() throws IOException {
+        if (this.eof_p) {
+            return false;
+        }
+        this.buf.compact();
+        if (!this.buf.hasRemaining()) {
+            throw new IOException("Number too long in " + this.file);
+        }
+        int n = this.channel.read(this.buf);
+        this.buf.flip();
+        if (n < 0) {
+            this.eof_p = true;
+            return false;
+        }
+        return true;
+    }
+    
+    /** size of read buffer (bytes) */
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    /** .3ddose file */
+    private File file;
+    
+    /** file channel */
+    private FileChannel channel;
+    
+    /** read buffer; position is the next byte to look at */
+    private ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    
+    /** index in buf one past the end of the current number */
+    private int tokenEnd;
+    
+    /** end of file reached */
+    private boolean eof_p = false;
+    
+    /** voxel grid (mm) */
+    private VoxelGrid grid;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: .3ddose file
+     */
+    public static void main(String[] args) {
+        try {
+            DoseFileStream in = new DoseFileStream(new File(args[0]));
+            System.out.println(in.getGrid());
+            
+            int nVoxels = in.getGrid().getNVoxels();
+            float[] block = new float[4096];
+            double sum = 0.;
+            int left = nVoxels;
+            while (left > 0) {
+                int n = in.read(block, Math.min(left, block.length));
+                if (n == 0) {
+                    break;
+                }
+                for (int v = 0; v < n; ++v) {
+                    sum += block[v];
+                }
+                left -= n;
+            }
+            System.out.println("sum of doses: " + sum + "; uncertainties: " + in.skip(nVoxels));
+            in.close();
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/* DoseGrid.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.IOException;
+
+// A .3ddose file from DOSXYZnrc is plain text, all whitespace separated:
+//     nx ny nz
+//     nx+1 x voxel boundaries (cm)
+//     ny+1 y voxel boundaries (cm)
+//     nz+1 z voxel boundaries (cm)
+//     nx*ny*nz doses, x fastest, then y, then z
+//     nx*ny*nz relative uncertainties, in the same order
+// The boundaries are those of the egsphant, which are the phantom voxel
+// edges in cm, so multiplying by 10 puts the dose back on the DICOM
+// patient coordinates of the CT and structures.
+
+/**
+ * Dose (and its uncertainty) on a voxel grid, as scored by DOSXYZnrc.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DoseGrid {
+    /**
+     * 
+     * @param grid voxel grid (mm)
+     * @param dose dose of each voxel, indexed by i + nx*(j + ny*k)
+     * @param uncertainty relative uncertainty of each voxel, same order; may
+     *        be null
+     */
+    public DoseGrid(VoxelGrid grid, float[] dose, float[] uncertainty) {
+        if (dose.length != grid.getNVoxels()
+                || (uncertainty != null && uncertainty.length != grid.getNVoxels())) {
+            throw new IllegalArgumentException("dose does not fit grid " + grid);
+        }
+        this.grid = grid;
+        this.dose = dose;
+        this.uncertainty = uncertainty;
+    }
+    
+    /**
+     * Read a .3ddose file.
+     * @param file .3ddose file
+     * @return dose grid, with the voxel edges in mm
+     * @throws java.io.IOException
+     */
+    public static DoseGrid read(File file) throws IOException {
+        return new DoseReader(file).read();
+    }
+    
+    /**
+     * 
+     * @return voxel grid (mm)
+     */
+    public VoxelGrid getGrid() {
+        return this.grid;
+    }
+    
+    /**
+     * 
+     * @return dose of each voxel, indexed by i + nx*(j + ny*k). Not a copy.
+     */
+    public float[] getDose() {
+        return this.dose;
+    }
+    
+    /**
+     * 
+     * @param i x index
+     * @param j y index
+     * @param k z index
+     * @return dose of voxel (i,j,k)
+     */
+    public float getDose(int i, int j, int k) {
+        return this.dose[this.grid.index(i, j, k)];
+    }
+    
+    /**
+     * 
+     * @return relative uncertainty of each voxel, indexed as the dose, or
+     *         null if there is none. Not a copy.
+     */
+    public float[] getUncertainty() {
+        return this.uncertainty;
+    }
+    
+    /**
+     * 
+     * @param i x index
+     * @param j y index
+     * @param k z index
+     * @return relative uncertainty of voxel (i,j,k), or 0 if there is none
+     */
+    public float getUncertainty(int i, int j, int k) {
+        return (this.uncertainty == null) ? 0.f : this.uncertainty[this.grid.index(i, j, k)];
+    }
+    
+    /**
+     * 
+     * @return largest dose
+     */
+    public float getMaxDose() {
+        float max = 0.f;
+        for (float d : this.dose) {
+            max = Math.max(max, d);
+        }
+        return max;
+    }
+    
+    @Override
+    public String toString() {
+        return "DoseGrid -- " + this.grid + "; max. dose: " + this.getMaxDose()
+                + (this.uncertainty == null ? "; no uncertainties" : "");
+    }
+    
+    /** voxel grid (mm) */
+    private VoxelGrid grid;
+    
+    /** dose of each voxel */
+    private float[] dose;
+    
+    /** relative uncertainty of each voxel */
+    private float[] uncertainty;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: .3ddose file
+     */
+    public static void main(String[] args) {
+        try {
+            DoseGrid dose = DoseGrid.read(new File(args[0]));
+            System.out.println(dose);
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/* DoseMerger.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+// One DOSXYZnrc simulation split into K runs with different random seeds
+// gives K estimates of the same dose per particle. Run k, of N_k histories,
+// has dose D_k and relative uncertainty u_k (so absolute s_k = u_k D_k),
+// and the estimate from all N = sum N_k histories is
+//     D = sum N_k D_k / N
+//     s = sqrt(sum (N_k s_k)^2) / N
+// i.e. the history-weighted mean, with the errors of the independent runs
+// added in quadrature.
+//
+// The partial files are read one at a time with DoseReader (which is
+// itself parallel), and each is added to running sums of N_k D_k and
+// (N_k s_k)^2, the voxels split into chunks over the thread pool; so only
+// one partial dose is in memory at a time, whatever K.
+
+/**
+ * Merges .3ddose files of runs of the same simulation, split by history.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DoseMerger {
+    /** Creates a new instance of DoseMerger */
+    public DoseMerger() {
+    }
+    
+    /**
+     * 
+     * @param doseFile .3ddose file of one run
+     * @param nHistories number of histories of the run
+     */
+    public void add(File doseFile, long nHistories) {
+        this.files.add(doseFile);
+        this.histories.add(nHistories);
+    }
+    
+    /**
+     * 
+     * @return merged dose, with uncertainties if every run has them
+     * @throws java.io.IOException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException if there
+     *         are no runs, or their grids differ
+     */
+    public DoseGrid merge() throws IOException, EclipsePlanException {
+        int nFiles = this.files.size();
+        if (nFiles == 0) {
+            throw new EclipsePlanException("No doses to merge");
+        }
+        
+        long total = 0;
+        for (long n : this.histories) {
+            total += n;
+        }
+        if (total <= 0) {
+            throw new EclipsePlanException("No histories to merge");
+        }
+        
+        VoxelGrid grid = null;
+        double[] sum = null;
+        double[] variance = null;
+        boolean uncertainty_p = true;
+        
+        int nChunks = TaskPool.getNThreads();
+        for (int f = 0; f < nFiles; ++f) {
+            DoseGrid part = DoseGrid.read(this.files.get(f));
+            if (grid == null) {
+                grid = part.getGrid();
+                sum = new double[grid.getNVoxels()];
+                variance = new double[grid.getNVoxels()];
+            } else if (!part.getGrid().equals(grid)) {
+                throw new EclipsePlanException("Dose grid of " + this.files.get(f)
+                        + " differs from that of " + this.files.get(0));
+            }
+            uncertainty_p &= part.getUncertainty() != null;
+            
+            this.accumulate(nChunks, part, (double) this.histories.get(f), sum, variance);
+            if (this.debug_p) {
+                System.out.println("Merged " + this.files.get(f) + " (" + this.histories.get(f)
+                        + " histories)");
+            }
+        }
+        
+        return this.finish(nChunks, grid, sum, uncertainty_p ? variance : null, total);
+    }
+    
+    /**
+     * Add one run to the sums.
+     * @param nChunks number of chunks to split the voxels into
+     * @param part dose of the run
+     * @param weight number of histories of the run
+     * @param sum sum of N_k D_k
+     * @param variance sum of (N_k s_k)^2
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    private void accumulate(int nChunks, DoseGrid part, final double weight,
+            final double[] sum, final double[] variance) throws EclipsePlanException {
+        final float[] dose = part.getDose();
+        final float[] uncertainty = part.getUncertainty();
+        
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int c = 0; c < nChunks; ++c) {
+            final int from = (int) ((long) dose.length * c / nChunks);
+            final int to = (int) ((long) dose.length * (c + 1) / nChunks);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for (int v = from; v < to; ++v) {
+                        double wd = weight * dose[v];
+                        sum[v] += wd;
+                        if (uncertainty != null) {
+                            double ws = wd * uncertainty[v];
+                            variance[v] += ws * ws;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        TaskPool.invokeAll(tasks, "merging doses");
+    }
+    
+    /**
+     * Turn the sums into the merged dose.
+     * @param nChunks number of chunks to split the voxels into
+     * @param grid voxel grid
+     * @param sum sum of N_k D_k
+     * @param variance sum of (N_k s_k)^2, or null if there are no
+     *        uncertainties
+     * @param total total number of histories
+     * @return merged dose
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    private DoseGrid finish(int nChunks, VoxelGrid grid, final double[] sum,
+            final double[] variance, final long total) throws EclipsePlanException {
+        final float[] dose = new float[sum.length];
+        final float[] uncertainty = (variance == null) ? null : new float[sum.length];
+        
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int c = 0; c < nChunks; ++c) {
+            final int from = (int) ((long) sum.length * c / nChunks);
+            final int to = (int) ((long) sum.length * (c + 1) / nChunks);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for (int v = from; v < to; ++v) {
+                        dose[v] = (float) (sum[v] / total);
+                        if (uncertainty != null) {
+                            uncertainty[v] = (sum[v] > 0.) ? (float) (Math.sqrt(variance[v]) / sum[v]) : 1.f;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        TaskPool.invokeAll(tasks, "merging doses");
+        
+        return new DoseGrid(grid, dose, uncertainty);
+    }
+    
+    /**
+     * Write a summary of the relative uncertainties of a dose: for voxels
+     * above each of a few fractions of the largest dose, how many there
+     * are, their mean and largest uncertainty, and the fraction of them
+     * within each of a few uncertainties.
+     * @param file summary file
+     * @param dose dose, with uncertainties
+     * @throws java.io.FileNotFoundException
+     */
+    public static void writeUncertaintySummary(File file, DoseGrid dose) throws FileNotFoundException {
+        PrintWriter out = new PrintWriter(file);
+        try {
+            out.println("# " + dose.getGrid());
+            float[] d = dose.getDose();
+            float[] u = dose.getUncertainty();
+            if (u == null) {
+                out.println("# no uncertainties");
+                return;
+            }
+            
+            double maxDose = dose.getMaxDose();
+            out.printf("# max. dose %e%n", maxDose);
+            out.print("# dose >= (fraction of max.)  voxels  mean unc.  max. unc.");
+            for (double level : UNCERTAINTY_LEVELS) {
+                out.printf("  <%.0f%%", 100. * level);
+            }
+            out.println();
+            
+            for (double fraction : DOSE_FRACTIONS) {
+                double threshold = fraction * maxDose;
+                long n = 0;
+                double sum = 0.;
+                double max = 0.;
+                long[] within = new long[UNCERTAINTY_LEVELS.length];
+                for (int v = 0; v < d.length; ++v) {
+                    if (d[v] > 0. && d[v] >= threshold) {
+                        ++n;
+                        sum += u[v];
+                        max = Math.max(max, u[v]);
+                        for (int l = 0; l < UNCERTAINTY_LEVELS.length; ++l) {
+                            if (u[v] < UNCERTAINTY_LEVELS[l]) {
+                                ++within[l];
+                            }
+                        }
+                    }
+                }
+                
+                out.printf("%.2f  %d  %.5f  %.5f", fraction, n, (n > 0) ? sum / n : 0., max);
+                for (int l = 0; l < UNCERTAINTY_LEVELS.length; ++l) {
+                    out.printf("  %.4f", (n > 0) ? (double) within[l] / n : 0.);
+                }
+                out.println();
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    /** fractions of the largest dose above which the summary is taken */
+    private static final double[] DOSE_FRACTIONS = { 0.1, 0.5, 0.9 };
+    
+    /** relative uncertainties the summary counts voxels within */
+    private static final double[] UNCERTAINTY_LEVELS = { 0.01, 0.02, 0.05 };
+    
+    /** .3ddose files */
+    private Vector<File> files = new Vector<File>();
+    
+    /** histories of each run */
+    private Vector<Long> histories = new Vector<Long>();
+    
+    /** debug flag */
+    private boolean debug_p = false;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: merged .3ddose file, then
+     *        .3ddose file and number of histories pairs
+     */
+    public static void main(String[] args) {
+        DoseMerger merger = new DoseMerger();
+        for (int a = 1; a + 1 < args.length; a += 2) {
+            merger.add(new File(args[a]), Long.parseLong(args[a+1]));
+        }
+        
+        try {
+            long start = System.currentTimeMillis();
+            DoseGrid merged = merger.merge();
+            File out = new File(args[0]);
+            DoseWriter.write(out, merged);
+            writeUncertaintySummary(new File(out.getPath() + ".summary"), merged);
+            System.out.println(merged);
+            System.out.println("merged in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/* DoseReader.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+// A .3ddose file of a fine grid is hundreds of MB of text, nearly all of it
+// the dose and uncertainty blocks. The file is mapped, the short header
+// (dimensions and voxel boundaries) is read in order, and the rest is cut
+// into chunks at whitespace. Each chunk is parsed by its own thread, but a
+// thread has to know where its numbers go, so there are two passes: first
+// count the numbers in each chunk, in parallel; add the counts up to get
+// the index of the first number of each chunk; then parse the chunks, in
+// parallel, straight into the dose and uncertainty arrays. The first nx*ny*nz
+// numbers are doses and the rest uncertainties.
+//
+// Numbers are parsed by DecimalParser straight from the mapped bytes, so
+// no Strings are made.
+
+/**
+ * Reads DOSXYZnrc .3ddose files, in parallel.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DoseReader {
+    /**
+     * 
+     * @param file .3ddose file
+     */
+    public DoseReader(File file) {
+        this.file = file;
+    }
+    
+    /**
+     * 
+     * @return dose grid, with the voxel edges in mm
+     * @throws java.io.IOException
+     */
+    public DoseGrid read() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        final MappedByteBuffer buf;
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file too large: " + this.file);
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        
+        // header
+        this.position = 0;
+        int nx = (int) this.nextNumber(buf);
+        int ny = (int) this.nextNumber(buf);
+        int nz = (int) this.nextNumber(buf);
+        if (nx <= 0 || ny <= 0 || nz <= 0) {
+            throw new IOException("Bad dimensions in " + this.file + ": " + nx + " " + ny + " " + nz);
+        }
+        
+        double[][] edges = new double[3][];
+        int[] n = { nx, ny, nz };
+        for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+            edges[axis] = new double[n[axis] + 1];
+            for (int i = 0; i <= n[axis]; ++i) {
+                edges[axis][i] = 10. * this.nextNumber(buf);
+            }
+        }
+        VoxelGrid grid = new VoxelGrid(edges[VoxelGrid.X], edges[VoxelGrid.Y], edges[VoxelGrid.Z]);
+        
+        // cut the body into chunks, at separators
+        int limit = buf.limit();
+        int nChunks = Math.max(1, Math.min(CHUNKS_PER_THREAD * this.nThreads,
+                (limit - this.position) / MIN_CHUNK_SIZE));
+        final int[] chunkStart = new int[nChunks + 1];
+        chunkStart[0] = this.position;
+        for (int c = 1; c < nChunks; ++c) {
+            int p = Math.max(chunkStart[c-1],
+                    this.position + (int) ((long) (limit - this.position) * c / nChunks));
+            while (p < limit && !DecimalParser.isSeparator(buf.get(p))) {
+                ++p;
+            }
+            chunkStart[c] = p;
+        }
+        chunkStart[nChunks] = limit;
+        
+        final int nVoxels = grid.getNVoxels();
+        final float[] dose = new float[nVoxels];
+        final float[] uncertainty = new float[nVoxels];
+        
+        try {
+            // count the numbers in each chunk
+            List<Callable<Integer>> countTasks = new ArrayList<Callable<Integer>>();
+            for (int c = 0; c < nChunks; ++c) {
+                final int cc = c;
+                countTasks.add(new Callable<Integer>() {
+                    public Integer call() {
+                        return DecimalParser.count(buf, chunkStart[cc], chunkStart[cc+1]);
+                    }
+                });
+            }
+            
+            final long[] firstNumber = new long[nChunks + 1];
+            List<Integer> counts = TaskPool.invokeAll(countTasks);
+            for (int c = 0; c < nChunks; ++c) {
+                firstNumber[c+1] = firstNumber[c] + counts.get(c);
+            }
+            
+            long total = firstNumber[nChunks];
+            if (total != nVoxels && total != 2L * nVoxels) {
+                throw new IOException(this.file + ": " + total + " values for "
+                        + nVoxels + " voxels");
+            }
+            
+            // parse them
+            List<Callable<Object>> parseTasks = new ArrayList<Callable<Object>>();
+            for (int c = 0; c < nChunks; ++c) {
+                final int cc = c;
+                parseTasks.add(new Callable<Object>() {
+                    public Object call() {
+                        parseChunk(buf, chunkStart[cc], chunkStart[cc+1], firstNumber[cc],
+                                dose, uncertainty);
+                        return null;
+                    }
+                });
+            }
+            TaskPool.invokeAll(parseTasks);
+            
+            if (this.debug_p) {
+                System.out.println(this.file + ": " + nChunks + " chunks, " + total + " values");
+            }
+            
+            return new DoseGrid(grid, dose, (total == nVoxels) ? null : uncertainty);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted reading " + this.file);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof NumberFormatException) {
+                throw new IOException("Bad number in " + this.file + ": " + cause.getMessage());
+            }
+            throw new IOException("error reading " + this.file + ": " + cause);
+        }
+    }
+    
+    /**
+     * Parse the numbers of one chunk into place.
+     * @param buf mapped file
+     * @param from index of first byte of chunk
+     * @param to index one past the last byte of chunk
+     * @param first number of the first number of the chunk, counting from
+     *        the first dose
+     * @param dose doses
+     * @param uncertainty uncertainties
+     */
+    private static void parseChunk(MappedByteBuffer buf, int from, int to, long first,
+            float[] dose, float[] uncertainty) {
+        int nVoxels = dose.length;
+        long number = first;
+        int i = from;
+        while (i < to) {
+            while (i < to && DecimalParser.isSeparator(buf.get(i))) {
+                ++i;
+            }
+            if (i >= to) {
+                break;
+            }
+            
+            int start = i;
+            while (i < to && !DecimalParser.isSeparator(buf.get(i))) {
+                ++i;
+            }
+            
+            float value = (float) DecimalParser.parse(buf, start, i);
+            if (number < nVoxels) {
+                dose[(int) number] = value;
+            } else {
+                uncertainty[(int) (number - nVoxels)] = value;
+            }
+            ++number;
+        }
+    }
+    
+    /**
+     * Parse the next number of the header.
+     * @param buf mapped file
+     * @return the number
+     * @throws java.io.IOException
+     */
+    private double nextNumber(MappedByteBuffer buf) throws IOException {
+        int limit = buf.limit();
+        int i = this.position;
+        while (i < limit && DecimalParser.isSeparator(buf.get(i))) {
+            ++i;
+        }
+        if (i >= limit) {
+            throw new IOException("Unexpected end of " + this.file);
+        }
+        
+        int start = i;
+        while (i < limit && !DecimalParser.isSeparator(buf.get(i))) {
+            ++i;
+        }
+        this.position = i;
+        
+        try {
+            return DecimalParser.parse(buf, start, i);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Bad number in header of " + this.file + ": " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * 
+     * @param nThreads number of threads to cut the parsing up for; at most
+     *        TaskPool.getNThreads() run at once
+     */
+    public void setNThreads(int nThreads) {
+        this.nThreads = nThreads;
+    }
+    
+    /** chunks per thread, so that threads finishing early can take more */
+    private static final int CHUNKS_PER_THREAD = 4;
+    
+    /** smallest chunk worth a task (bytes) */
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+    
+    /** .3ddose file */
+    private File file;
+    
+    /** where the header has been read to */
+    private int position;
+    
+    /** number of threads */
+    private int nThreads = TaskPool.getNThreads();
+    
+    /** debug flag */
+    private boolean debug_p = false;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: .3ddose file
+     */
+    public static void main(String[] args) {
+        try {
+            long start = System.currentTimeMillis();
+            DoseGrid dose = new DoseReader(new File(args[0])).read();
+            System.out.println(dose);
+            System.out.println("read in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
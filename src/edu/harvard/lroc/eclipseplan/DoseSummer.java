@@ -0,0 +1,240 @@
+/* DoseSummer.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.Vector;
+
+// DOSXYZnrc is run once per beam, so the plan dose is the sum of the beam
+// doses, each weighted by the meterset of its beam. The uncertainties in a
+// .3ddose are relative, so the sum has
+//     D = sum w_b D_b
+//     u = sqrt(sum (w_b D_b u_b)^2) / D
+// (the beams are independent runs, so their errors add in quadrature).
+//
+// The doses are added up a block at a time, all files in lockstep, so only
+// one block per file is ever in memory, however large the grids. All the
+// doses of a .3ddose come before all the uncertainties, but the summed
+// uncertainty of a voxel needs both, so there are two passes: the first
+// reads the doses and writes their sum; the second reads the doses again,
+// along with the uncertainties from a second stream on each file, and
+// writes the summed uncertainties. If any file has no uncertainties, the
+// sum has none either.
+
+/**
+ * Adds up .3ddose files (e.g. one per beam) with weights (e.g. the beam
+ * metersets), streaming them so that memory use does not grow with the
+ * grid.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DoseSummer {
+    /** Creates a new instance of DoseSummer */
+    public DoseSummer() {
+    }
+    
+    /**
+     * 
+     * @param doseFile .3ddose file
+     * @param weight weight of its dose in the sum
+     */
+    public void add(File doseFile, double weight) {
+        this.files.add(doseFile);
+        this.weights.add(weight);
+    }
+    
+    /**
+     * Add the dose of one beam, weighted by its meterset.
+     * @param beam beam
+     * @param doseFile .3ddose file of the beam
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException if the beam
+     *         has no meterset
+     */
+    public void addBeam(Beam beam, File doseFile) throws EclipsePlanException {
+        if (beam.getMeterset() == null) {
+            throw new EclipsePlanException("No meterset for beam " + beam.getName());
+        }
+        this.add(doseFile, beam.getMeterset());
+    }
+    
+    /**
+     * Write the weighted sum.
+     * @param sumFile .3ddose file to write
+     * @throws java.io.IOException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException if there
+     *         are no files, or their grids differ
+     */
+    public void write(File sumFile) throws IOException, EclipsePlanException {
+        int nFiles = this.files.size();
+        if (nFiles == 0) {
+            throw new EclipsePlanException("No doses to add up");
+        }
+        
+        DoseFileStream[] doses = new DoseFileStream[nFiles];
+        DoseFileStream[] uncertainties = new DoseFileStream[nFiles];
+        DoseWriter writer = null;
+        try {
+            for (int f = 0; f < nFiles; ++f) {
+                doses[f] = new DoseFileStream(this.files.get(f));
+                if (!doses[f].getGrid().equals(doses[0].getGrid())) {
+                    throw new EclipsePlanException("Dose grid of " + this.files.get(f)
+                            + " differs from that of " + this.files.get(0));
+                }
+            }
+            double[] w = new double[nFiles];
+            for (int f = 0; f < nFiles; ++f) {
+                w[f] = this.weights.get(f);
+            }
+            VoxelGrid grid = doses[0].getGrid();
+            int nVoxels = grid.getNVoxels();
+            writer = new DoseWriter(sumFile, grid);
+            
+            // doses
+            float[][] d = new float[nFiles][this.blockSize];
+            float[] sum = new float[this.blockSize];
+            for (int start = 0; start < nVoxels; start += this.blockSize) {
+                int n = Math.min(this.blockSize, nVoxels - start);
+                this.readBlock(doses, d, n);
+                for (int v = 0; v < n; ++v) {
+                    double s = 0.;
+                    for (int f = 0; f < nFiles; ++f) {
+                        s += w[f] * d[f][v];
+                    }
+                    sum[v] = (float) s;
+                }
+                writer.write(sum, 0, n);
+            }
+            
+            // uncertainties, if every file has them
+            boolean uncertainty_p = true;
+            for (int f = 0; f < nFiles; ++f) {
+                doses[f].close();
+                doses[f] = new DoseFileStream(this.files.get(f));
+                uncertainties[f] = new DoseFileStream(this.files.get(f));
+                if (uncertainties[f].skip(nVoxels) != nVoxels || !uncertainties[f].hasNext()) {
+                    uncertainty_p = false;
+                }
+            }
+            
+            if (uncertainty_p) {
+                float[][] u = new float[nFiles][this.blockSize];
+                for (int start = 0; start < nVoxels; start += this.blockSize) {
+                    int n = Math.min(this.blockSize, nVoxels - start);
+                    this.readBlock(doses, d, n);
+                    this.readBlock(uncertainties, u, n);
+                    for (int v = 0; v < n; ++v) {
+                        double s = 0.;
+                        double var = 0.;
+                        for (int f = 0; f < nFiles; ++f) {
+                            double wd = w[f] * d[f][v];
+                            s += wd;
+                            var += wd * wd * u[f][v] * u[f][v];
+                        }
+                        sum[v] = (s > 0.) ? (float) (Math.sqrt(var) / s) : 1.f;
+                    }
+                    writer.write(sum, 0, n);
+                }
+            }
+        } finally {
+            for (int f = 0; f < nFiles; ++f) {
+                if (doses[f] != null) {
+                    doses[f].close();
+                }
+                if (uncertainties[f] != null) {
+                    uncertainties[f].close();
+                }
+            }
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+    
+    /**
+     * Read the next block from each file.
+     * @param streams files
+     * @param blocks where to put each file's values
+     * @param n number of values
+     * @throws java.io.IOException if a file ends early
+     */
+    private void readBlock(DoseFileStream[] streams, float[][] blocks, int n) throws IOException {
+        for (int f = 0; f < streams.length; ++f) {
+            if (streams[f].read(blocks[f], n) != n) {
+                throw new IOException("Unexpected end of " + streams[f].getFile());
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @param blockSize number of voxels read from each file at a time
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+    
+    /** .3ddose files */
+    private Vector<File> files = new Vector<File>();
+    
+    /** weight of each file */
+    private Vector<Double> weights = new Vector<Double>();
+    
+    /** voxels read from each file at a time */
+    private int blockSize = 1 << 16;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: RTPLAN file, sum .3ddose file,
+     *        then beam name and .3ddose file pairs
+     */
+    public static void main(String[] args) {
+        try {
+            BeamSequence beams = new BeamSequence(args[0]);
+            TreeMap<String, Beam> beamMap = beams.getBeamMap();
+            
+            DoseSummer summer = new DoseSummer();
+            for (int a = 2; a + 1 < args.length; a += 2) {
+                Beam beam = beamMap.get(args[a]);
+                if (beam == null) {
+                    throw new EclipsePlanException("No such beam: " + args[a]);
+                }
+                summer.addBeam(beam, new File(args[a+1]));
+                System.out.println(beam.getName() + ": " + beam.getMeterset() + " MU");
+            }
+            summer.write(new File(args[1]));
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
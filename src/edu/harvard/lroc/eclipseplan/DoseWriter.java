@@ -0,0 +1,192 @@
+/* DoseWriter.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes the .3ddose format that DoseReader and DoseFileStream read: the
+// dimensions, the voxel edges in cm, the doses, then the uncertainties.
+// Values may be written a block at a time, so a dose that is being
+// computed as it goes (e.g. a sum of other .3ddose files) never has to be
+// held whole. Values are written as Float.toString() gives them, which is
+// the shortest text that reads back as the same float.
+
+/**
+ * Writes DOSXYZnrc .3ddose files.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DoseWriter {
+    /**
+     * Open a .3ddose file and write its header.
+     * @param file .3ddose file
+     * @param grid voxel grid (mm)
+     * @throws java.io.IOException
+     */
+    public DoseWriter(File file, VoxelGrid grid) throws IOException {
+        this.file = file;
+        this.grid = grid;
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        
+        StringBuilder header = new StringBuilder();
+        header.append(String.format("%5d%5d%5d\n", grid.getNx(), grid.getNy(), grid.getNz()));
+        for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+            for (int i = 0; i <= grid.getN(axis); ++i) {
+                header.append(String.format("  % .6f    ", grid.getEdge(axis, i) / 10.));
+                if ((i+1) % write_width == 0) {
+                    header.append('\n');
+                }
+            }
+            header.append('\n');
+        }
+        this.writeText(header);
+    }
+    
+    /**
+     * Write one whole dose grid.
+     * @param file .3ddose file
+     * @param dose dose grid (mm)
+     * @throws java.io.IOException
+     */
+    public static void write(File file, DoseGrid dose) throws IOException {
+        DoseWriter writer = new DoseWriter(file, dose.getGrid());
+        try {
+            writer.write(dose.getDose(), 0, dose.getDose().length);
+            if (dose.getUncertainty() != null) {
+                writer.write(dose.getUncertainty(), 0, dose.getUncertainty().length);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Write the next values: first all the doses, then all the
+     * uncertainties, if any.
+     * @param values values
+     * @param from index of first value to write
+     * @param n how many to write
+     * @throws java.io.IOException
+     */
+    public void write(float[] values, int from, int n) throws IOException {
+        int nVoxels = this.grid.getNVoxels();
+        for (int v = from; v < from + n; ++v) {
+            this.line.append(Float.toString(values[v]));
+            ++this.count;
+            // a line ends every write_width values, and at the end of
+            // each of the two blocks
+            if (this.count % write_width == 0 || this.count % nVoxels == 0) {
+                this.line.append('\n');
+            } else {
+                this.line.append(' ');
+            }
+            if (this.line.length() > 1 << 14) {
+                this.writeText(this.line);
+                this.line.setLength(0);
+            }
+        }
+    }
+    
+    /**
+     * Finish the file.
+     * @throws java.io.IOException if other than nx*ny*nz or 2*nx*ny*nz
+     *         values were written
+     */
+    public void close() throws IOException {
+        try {
+            this.writeText(this.line);
+            this.line.setLength(0);
+        } finally {
+            this.out.close();
+        }
+        
+        long nVoxels = this.grid.getNVoxels();
+        if (this.count != nVoxels && this.count != 2 * nVoxels) {
+            throw new IOException(this.file + ": " + this.count + " values written for "
+                    + nVoxels + " voxels");
+        }
+    }
+    
+    /**
+     * 
+     * @param text ASCII text to write
+     * @throws java.io.IOException
+     */
+    private void writeText(CharSequence text) throws IOException {
+        int n = text.length();
+        if (this.bytes.length < n) {
+            this.bytes = new byte[n];
+        }
+        for (int c = 0; c < n; ++c) {
+            this.bytes[c] = (byte) text.charAt(c);
+        }
+        this.out.write(this.bytes, 0, n);
+    }
+    
+    /** values per line */
+    private static final int write_width = 5;
+    
+    /** .3ddose file */
+    private File file;
+    
+    /** voxel grid (mm) */
+    private VoxelGrid grid;
+    
+    /** output */
+    private OutputStream out;
+    
+    /** values not yet written */
+    private StringBuilder line = new StringBuilder();
+    
+    /** bytes of the text being written */
+    private byte[] bytes = new byte[1 << 14];
+    
+    /** number of values written */
+    private long count = 0;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: .3ddose file to read, .3ddose
+     *        file to write
+     */
+    public static void main(String[] args) {
+        try {
+            DoseGrid dose = DoseGrid.read(new File(args[0]));
+            DoseWriter.write(new File(args[1]), dose);
+            System.out.println(DoseGrid.read(new File(args[1])));
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
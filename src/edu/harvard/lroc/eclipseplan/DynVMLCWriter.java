@@ -0,0 +1,299 @@
+/* DynVMLCWriter.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Writes the same text as MLCPosition.egsnrcFormat() (the DYNVMLC sequence
+// file: one line "field, index, A, B" per leaf pair per control point) and
+// MLCPosition.egsnrcInitialFormat() (the leaf block of the egsinp, from the
+// first control point), but formats the numbers straight into one reused
+// byte buffer, which is written to a channel whenever it fills: no Strings
+// or Formatters per number.
+//
+// "%f" is six decimals, rounded half up. Leaf positions and meterset
+// weights are small, so |x| * 10^6 is computed closely enough to round it
+// directly; only when it comes within TIE_GUARD of a half (where String.format()
+// rounds the shortest decimal form of the double, which may differ from
+// rounding the double itself), or the number is large or not finite, does
+// the number go through String.format(), so the output is always exactly
+// that of String.format().
+
+/**
+ * Writes BEAMnrc DYNVMLC leaf sequences without building Strings.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class DynVMLCWriter {
+    /** Creates a new instance of DynVMLCWriter */
+    public DynVMLCWriter() {
+    }
+    
+    /**
+     * Write the sequence and initial leaf block of every dynamic beam of a
+     * plan, as patientID_beamName.mlc and patientID_beamName.leaves.
+     * @param beams beams of the plan
+     * @param dir directory to write to
+     * @throws java.io.IOException
+     */
+    public void writeAll(BeamSequence beams, File dir) throws IOException {
+        for (Beam beam : beams.getBeamMap().values()) {
+            MLCSequence seq = beam.getMLCSequence();
+            if (seq == null) {
+                continue;
+            }
+            
+            String base = beam.getPatientID() + "_" + beam.getName();
+            this.writeSequenceFile(seq, new File(dir, base + ".mlc"));
+            
+            FileChannel channel = new FileOutputStream(new File(dir, base + ".leaves")).getChannel();
+            try {
+                this.writeInitialPositions(seq, channel);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+    
+    /**
+     * Write a DYNVMLC sequence file.
+     * @param seq MLC sequence
+     * @param file .mlc file
+     * @throws java.io.IOException
+     */
+    public void writeSequenceFile(MLCSequence seq, File file) throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            this.writeSequence(seq, channel);
+        } finally {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Write every control point, as MLCPosition.egsnrcFormat() would.
+     * @param seq MLC sequence
+     * @param out where to write
+     * @throws java.io.IOException
+     */
+    public void writeSequence(MLCSequence seq, WritableByteChannel out) throws IOException {
+        this.buf.clear();
+        int nLeafPairs = seq.getNLeafPairs();
+        for (int step = 0; step < seq.getNSteps(); ++step) {
+            int fieldNo = seq.getControlPoint(step) + 1;
+            double index = seq.getCumulativeMetersetWeight(step);
+            for (int i = 0; i < nLeafPairs; ++i) {
+                this.reserve(out);
+                this.putInt(fieldNo);
+                this.putSeparator();
+                this.putFixed(index, 0);
+                this.putSeparator();
+                this.putFixed(seq.getALeaf(step, i), 0);
+                this.putSeparator();
+                this.putFixed(seq.getBLeaf(step, i), 0);
+                this.buf.put((byte) '\n');
+            }
+        }
+        this.flush(out);
+    }
+    
+    /**
+     * Write the leaf positions of the first control point, as
+     * MLCPosition.egsnrcInitialFormat() would.
+     * @param seq MLC sequence
+     * @param out where to write
+     * @throws java.io.IOException
+     */
+    public void writeInitialPositions(MLCSequence seq, WritableByteChannel out) throws IOException {
+        this.buf.clear();
+        if (seq.getNSteps() > 0) {
+            for (int i = 0; i < seq.getNLeafPairs(); ++i) {
+                this.reserve(out);
+                this.putFixed(seq.getALeaf(0, i), 10);
+                this.putSeparator();
+                this.putFixed(seq.getBLeaf(0, i), 10);
+                this.putSeparator();
+                this.putInt(1);
+                this.buf.put((byte) ',');
+                this.buf.put((byte) '\n');
+            }
+        }
+        this.flush(out);
+    }
+    
+    /**
+     * Make sure there is room in the buffer for another line.
+     * @param out where to write
+     * @throws java.io.IOException
+     */
+    private void reserve(WritableByteChannel out) throws IOException {
+        if (this.buf.remaining() < MAX_LINE) {
+            this.flush(out);
+        }
+    }
+    
+    /**
+     * Write what is in the buffer.
+     * @param out where to write
+     * @throws java.io.IOException
+     */
+    private void flush(WritableByteChannel out) throws IOException {
+        this.buf.flip();
+        while (this.buf.hasRemaining()) {
+            out.write(this.buf);
+        }
+        this.buf.clear();
+    }
+    
+    /** ", " */
+    private void putSeparator() {
+        this.buf.put((byte) ',');
+        this.buf.put((byte) ' ');
+    }
+    
+    /**
+     * As "%d".
+     * @param n number
+     */
+    private void putInt(long n) {
+        if (n < 0) {
+            this.buf.put((byte) '-');
+            n = -n;
+        }
+        int start = this.buf.position();
+        do {
+            this.buf.put((byte) ('0' + n % 10));
+            n /= 10;
+        } while (n > 0);
+        this.reverse(start, this.buf.position());
+    }
+    
+    /**
+     * As "%f", or "%<width>.6f".
+     * @param x number
+     * @param width smallest field width, padded on the left with spaces
+     */
+    private void putFixed(double x, int width) {
+        double a = Math.abs(x);
+        if (!(a < FAST_LIMIT)) {
+            this.putString(String.format("%" + (width > 0 ? width : "") + ".6f", x));
+            return;
+        }
+        
+        double scaled = a * 1.e6;
+        double whole = Math.floor(scaled);
+        double fraction = scaled - whole;
+        if (Math.abs(fraction - 0.5) < TIE_GUARD) {
+            this.putString(String.format("%" + (width > 0 ? width : "") + ".6f", x));
+            return;
+        }
+        
+        long units = (long) whole + ((fraction > 0.5) ? 1 : 0);
+        boolean negative = x < 0. || (x == 0. && 1. / x < 0.);
+        long intPart = units / 1000000;
+        int fracPart = (int) (units % 1000000);
+        
+        int length = (negative ? 1 : 0) + 1 + 7;
+        for (long n = intPart; n >= 10; n /= 10) {
+            ++length;
+        }
+        for (int pad = length; pad < width; ++pad) {
+            this.buf.put((byte) ' ');
+        }
+        
+        if (negative) {
+            this.buf.put((byte) '-');
+        }
+        this.putInt(intPart);
+        this.buf.put((byte) '.');
+        int start = this.buf.position();
+        for (int d = 0; d < 6; ++d) {
+            this.buf.put((byte) ('0' + fracPart % 10));
+            fracPart /= 10;
+        }
+        this.reverse(start, this.buf.position());
+    }
+    
+    /**
+     * 
+     * @param s ASCII text
+     */
+    private void putString(String s) {
+        for (int c = 0; c < s.length(); ++c) {
+            this.buf.put((byte) s.charAt(c));
+        }
+    }
+    
+    /**
+     * Reverse bytes of the buffer in place.
+     * @param from index of first byte
+     * @param to index one past the last byte
+     */
+    private void reverse(int from, int to) {
+        for (int i = from, j = to - 1; i < j; ++i, --j) {
+            byte b = this.buf.get(i);
+            this.buf.put(i, this.buf.get(j));
+            this.buf.put(j, b);
+        }
+    }
+    
+    /** largest magnitude formatted without String.format() */
+    private static final double FAST_LIMIT = 1.e6;
+    
+    /** how near a half |x| * 10^6 may be before String.format() decides */
+    private static final double TIE_GUARD = 1.e-3;
+    
+    /** longest line written (bytes) */
+    private static final int MAX_LINE = 256;
+    
+    /** output buffer, reused */
+    private ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+    
+    
+    /**
+     * Simple test program
+     * @param args commandline arguments: RTPLAN file, output directory
+     */
+    public static void main(String[] args) {
+        try {
+            BeamSequence beams = new BeamSequence(args[0]);
+            new DynVMLCWriter().writeAll(beams, new File(args[1]));
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
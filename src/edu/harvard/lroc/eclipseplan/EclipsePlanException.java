@@ -42,4 +42,8 @@ public class EclipsePlanException extends Exception {
     EclipsePlanException(String msg) {
         super(msg);
     }
+        
+    EclipsePlanException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
 }
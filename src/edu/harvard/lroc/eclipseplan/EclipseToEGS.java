@@ -97,10 +97,14 @@ public class EclipseToEGS {
     
     private EgsPhant egsphant;
     
-    /** Structure to use for cropping phantom */
-    @Option(name="-cropstructure", usage="Set cropping structure")
+    /** Structures to use for cropping phantom, comma separated */
+    @Option(name="-cropstructure", usage="Set cropping structure(s): ROI,ROI,...")
     private String cropstructure;
     
+    /** Margins around the cropping structures (mm): m or mx,my,mz */
+    @Option(name="-cropmargin", usage="Set cropping margin (mm): m or mx,my,mz")
+    private String cropmargin;
+    
     /**
      * 
      * @return Name of structure used for cropping down phantom.
@@ -109,6 +113,22 @@ public class EclipseToEGS {
         return cropstructure;
     }
     
+    /** Write the egsphant file in a single pass over the phantom slices */
+    @Option(name="-singlepass", usage="Write egsphant in a single pass")
+    private boolean singlepass = false;
+    
+    /** Write the egsphant densities in compact form */
+    @Option(name="-compact", usage="Write egsphant densities in compact form")
+    private boolean compact = false;
+    
+    /** Significant digits of compact egsphant densities */
+    @Option(name="-densitydigits", usage="Set significant digits of compact densities")
+    private int densitydigits = 7;
+    
+    /** Material/density overrides: ROI=MATERIAL:density;... */
+    @Option(name="-override", usage="Override structures: ROI=MATERIAL:density;...")
+    private String override;
+    
     /** debug flag */
     private boolean debug_p = true;
     
@@ -130,9 +150,38 @@ public class EclipseToEGS {
         
         this.patient.printStructureList();
         
-        this.patient.promptForStructureAndResize();
+        if (this.cropstructure == null) {
+            this.patient.promptForStructureAndResize();
+        } else {
+            CropPlanner planner = new CropPlanner(this.patient.getPhantom());
+            try {
+                planner.addStructures(this.cropstructure);
+                if (this.cropmargin != null) {
+                    planner.setMargins(this.cropmargin);
+                }
+                planner.apply();
+            } catch (EclipsePlanException ex) {
+                Logger.getLogger(EclipseToEGS.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+        }
+        
+        if (this.override != null) {
+            try {
+                this.patient.getPhantom().applyOverrides(MaterialOverride.parse(this.override));
+            } catch (MaterialException ex) {
+                Logger.getLogger(EclipseToEGS.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            } catch (EclipsePlanException ex) {
+                Logger.getLogger(EclipseToEGS.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+        }
         
         this.egsphant = new EgsPhant(this.patient);
+        this.egsphant.setSinglePass(this.singlepass);
+        this.egsphant.setCompact(this.compact);
+        this.egsphant.setDensityDigits(this.densitydigits);
         try {
             this.egsphant.writeFile();
         } catch (IOException ex) {
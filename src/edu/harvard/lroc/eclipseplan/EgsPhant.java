@@ -27,6 +27,11 @@ import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Formatter;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.vecmath.Point3d;
@@ -122,6 +127,20 @@ public class EgsPhant {
         this.writeFile();
     }
     
+    // The file is never written in place. Everything goes to
+    // <name>.egsphant.part, which is fsync'ed and then renamed over
+    // <name>.egsphant, so DOSXYZnrc can never see a half-written phantom.
+    //
+    // After the header and after every slice the .part file is synced and a
+    // completion marker is appended to <name>.egsphant.progress. If a write
+    // is interrupted, the next writeFile() of the same phantom truncates
+    // the .part file back to the last marker and carries on from the next
+    // slice. The same phantom means the same geometry and write mode, and
+    // the same inputs -- materials, CT series, Hounsfield number conversion
+    // and overrides -- by an MD5 digest of them: a phantom with the same
+    // geometry but (say) a different -override starts again from scratch
+    // rather than picking up the slices of the old one.
+    
     /**
      * Write EGS-format phantom to file
      * @throws IOException
@@ -136,19 +155,250 @@ public class EgsPhant {
             System.out.println("writing to file: " + this.phantfile.toString());
         }
         
-        this.phantwriter = new PrintWriter(new FileWriter(this.phantfile), true);
+        File partfile = new File(this.phantfile.getPath() + ".part");
+        File progressfile = new File(this.phantfile.getPath() + ".progress");
+        File spoolfile = new File(this.phantfile.getPath() + ".spool");
         
-        this.writeHeader();
-
-        this.writeVoxelEdges();
+        WriteProgress progress = new WriteProgress(progressfile, this.fingerprint(),
+                partfile, spoolfile);
+        if (progress.getSection() >= SECTION_HEADER) {
+            System.out.println("resuming " + this.phantfile + " after "
+                    + progress.toString());
+        }
         
-        this.writeMaterialRaster();
+        RandomAccessFile raf = new RandomAccessFile(partfile, "rw");
+        DensitySpool spool = null;
         
-        this.writeDensityRaster();
+        try {
+            raf.setLength(progress.getOffset());
+            raf.seek(progress.getOffset());
+            
+            // shares the file descriptor, and so the file pointer, with raf
+            FileOutputStream fos = new FileOutputStream(raf.getFD());
+            this.phantwriter = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(fos, "US-ASCII")));
+            
+            if (this.singlePass_p) {
+                spool = new DensitySpool(spoolfile, progress.getSpoolOffset());
+                this.writeSlicesSinglePass(raf, spool, progress);
+            } else {
+                this.writeSlices(raf, progress);
+            }
+            
+            this.phantwriter.flush();
+            if (this.phantwriter.checkError()) {
+                throw new IOException("error writing " + partfile);
+            }
+            
+            raf.getFD().sync();
+        } finally {
+            if (this.phantwriter != null) {
+                this.phantwriter.close();
+            }
+            
+            if (spool != null) {
+                spool.close();
+            }
+            
+            raf.close();
+            progress.close();
+        }
         
-        this.phantwriter.close();
+        // The markers go before the rename: markers left without their
+        // .part would otherwise resume onto nothing.
+        if (!progressfile.delete()) {
+            throw new IOException("could not delete " + progressfile);
+        }
+        
+        // rename() is atomic on POSIX filesystems. Windows refuses to rename
+        // over an existing file, so there the old file has to go first.
+        if (!partfile.renameTo(this.phantfile)) {
+            if (!this.phantfile.delete() || !partfile.renameTo(this.phantfile)) {
+                throw new IOException("could not rename " + partfile + " to " + this.phantfile);
+            }
+        }
+        
+        if (spoolfile.exists() && !spoolfile.delete()) {
+            Logger.getLogger(EgsPhant.class.getName()).log(Level.WARNING,
+                    "could not delete " + spoolfile);
+        }
     }
-
+    
+    /**
+     * Write header, material and density sections, one after the other,
+     * skipping whatever an earlier interrupted write already completed.
+     * @param raf the .part file being written
+     * @param progress completion markers
+     * @throws IOException
+     */
+    private void writeSlices(RandomAccessFile raf, WriteProgress progress) throws IOException {
+        if (!progress.isDone(SECTION_HEADER, 0)) {
+            this.writeHeader();
+            this.writeVoxelEdges();
+            this.checkpoint(raf, null, progress, SECTION_HEADER, 0);
+        }
+        
+        if (this.debug_p) { System.out.println("writeMaterialRaster()..."); }
+        
+        int k = 0;
+        for (PhantomSlice slice : this.phant.getSliceSet()) {
+            if (!progress.isDone(SECTION_MATERIAL, k)) {
+                System.out.printf(".");  // progress indicator
+                this.writeMaterialSlice(slice);
+                this.checkpoint(raf, null, progress, SECTION_MATERIAL, k);
+            }
+            ++k;
+        }
+        System.out.println(); // end progress indicators
+        
+        if (this.debug_p) { System.out.println("writeDensityRaster()..."); }
+        
+        Formatter fmt = new Formatter(this.phantwriter);
+        k = 0;
+        for (PhantomSlice slice : this.phant.getSliceSet()) {
+            if (!progress.isDone(SECTION_DENSITY, k)) {
+                System.out.printf(".");  // progress indicator
+                this.formatDensitySlice(fmt, slice);
+                this.checkpoint(raf, null, progress, SECTION_DENSITY, k);
+            }
+            ++k;
+        }
+        System.out.println();  // end progress indicator
+    }
+    
+    // The egsphant format wants the complete material section before any of
+    // the densities. Rather than walk the slices twice, the single-pass
+    // writer puts the material digits straight into the output file, and
+    // spools the formatted density text into a file next to it. Once the
+    // last slice is done, the spool is appended to the output with
+    // FileChannel.transferTo(), so the writer only ever holds the text of
+    // one slice. (The slices themselves are all in the Phantom already;
+    // what is saved is the second walk over them, and the density text.)
+    
+    /**
+     * Write EGS-format phantom to file, visiting each slice only once.
+     * @param raf the .part file being written
+     * @param spool holds the density section until the materials are done
+     * @param progress completion markers
+     * @throws IOException
+     */
+    private void writeSlicesSinglePass(RandomAccessFile raf, DensitySpool spool,
+            WriteProgress progress) throws IOException {
+        if (!progress.isDone(SECTION_HEADER, 0)) {
+            this.writeHeader();
+            this.writeVoxelEdges();
+            this.checkpoint(raf, spool, progress, SECTION_HEADER, 0);
+        }
+        
+        if (this.debug_p) { System.out.println("writeSlicesSinglePass()..."); }
+        
+        StringBuilder sliceText = new StringBuilder();
+        Formatter fmt = new Formatter(sliceText);
+        int k = 0;
+        for (PhantomSlice slice : this.phant.getSliceSet()) {
+            if (!progress.isDone(SECTION_MATERIAL, k)) {
+                System.out.printf(".");  // progress indicator
+                this.writeMaterialSlice(slice);
+                
+                sliceText.setLength(0);
+                this.formatDensitySlice(fmt, slice);
+                spool.append(sliceText);
+                
+                this.checkpoint(raf, spool, progress, SECTION_MATERIAL, k);
+            }
+            ++k;
+        }
+        System.out.println();  // end progress indicator
+        
+        this.phantwriter.flush();
+        if (this.phantwriter.checkError()) {
+            throw new IOException("error writing " + this.phantfile);
+        }
+        
+        raf.getChannel().position(raf.getFilePointer());
+        spool.transferTo(raf.getChannel());
+    }
+    
+    /**
+     * Make everything written so far durable, then record that the given
+     * section/slice is complete.
+     * @param raf the .part file being written
+     * @param spool density spool, or null
+     * @param progress completion markers
+     * @param section section just completed
+     * @param slice slice just completed
+     * @throws IOException
+     */
+    private void checkpoint(RandomAccessFile raf, DensitySpool spool,
+            WriteProgress progress, int section, int slice) throws IOException {
+        this.phantwriter.flush();
+        if (this.phantwriter.checkError()) {
+            throw new IOException("error writing " + this.phantfile);
+        }
+        
+        raf.getFD().sync();
+        
+        long spoolOffset = 0;
+        if (spool != null) {
+            spool.force();
+            spoolOffset = spool.length();
+        }
+        
+        progress.mark(section, slice, raf.getFilePointer(), spoolOffset);
+    }
+    
+    /**
+     * 
+     * @return description of what is being written; completion markers are
+     * only honoured for a phantom with the same description
+     */
+    private String fingerprint() throws IOException {
+        VoxelGrid grid = this.phant.getVoxelGrid();
+        Point3d voxelSize = this.phant.getVoxelSize();
+        
+        return String.format("%d %d %d %s %s %s %s %s %s %d %s %s %s",
+                this.size[0], this.size[1], this.size[2],
+                Double.toString(grid.getEdge(VoxelGrid.X, 0)), Double.toString(grid.getEdge(VoxelGrid.Y, 0)), 
+                Double.toString(grid.getEdge(VoxelGrid.Z, 0)), Double.toString(voxelSize.x), 
+                Double.toString(voxelSize.y), Double.toString(voxelSize.z),
+                MaterialMap.size(), this.singlePass_p ? "singlepass" : "twopass",
+                this.compact_p ? "compact" + this.densityDigits : "padded",
+                this.inputDigest());
+    }
+    
+    /**
+     * 
+     * @return MD5 digest (hex) of what the voxels are made from
+     * @throws java.io.IOException if there is no MD5
+     */
+    private String inputDigest() throws IOException {
+        StringBuffer inputs = new StringBuffer("materials:");
+        for (String matname : MaterialMap.keySet()) {
+            inputs.append(matname).append(';');
+        }
+        inputs.append("series:");
+        for (String uid : this.phant.getSeriesInstanceUIDs()) {
+            inputs.append(uid).append(';');
+        }
+        inputs.append("conversion:").append(PhantomSlice.conversionTable());
+        inputs.append("overrides:");
+        for (MaterialOverride override : this.phant.getOverrides()) {
+            inputs.append(override).append(';');
+        }
+        
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest(inputs.toString().getBytes("UTF-8"));
+            Formatter hex = new Formatter();
+            for (byte b : digest) {
+                hex.format("%02x", b & 0xff);
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("cannot digest phantom inputs", ex);
+        }
+    }
+    
    
     /**
      * write header of egsphant file
@@ -183,14 +433,15 @@ public class EgsPhant {
         this.phantwriter.printf("\n");
         
         //
-        // voxel edges -- no. of edges == no. of voxels + 1
+        // voxel edges -- no. of edges == no. of voxels + 1; the voxels are
+        // centred on the CT pixels, so the edges are half a voxel below
+        // ImagePositionPatient
         //
-        Point3d edgeStart = this.phant.getPosition();
-        Point3d voxelSize = this.phant.getVoxelSize();
+        VoxelGrid grid = this.phant.getVoxelGrid();
         
         // x edges
         for (int i = 0; i < this.size[0] + 1; ++i) {
-            this.phantwriter.printf("  % .6f    ", (edgeStart.x + i * voxelSize.x)/10.);
+            this.phantwriter.printf("  % .6f    ", grid.getEdge(VoxelGrid.X, i)/10.);
             if ((i+1) % write_width == 0)
                 this.phantwriter.println();
         }
@@ -198,7 +449,7 @@ public class EgsPhant {
         
         // y edges
         for (int i = 0; i < this.size[1] + 1; ++i) {
-            this.phantwriter.printf("  % .6f    ", (edgeStart.y + i * voxelSize.y)/10.);
+            this.phantwriter.printf("  % .6f    ", grid.getEdge(VoxelGrid.Y, i)/10.);
             if ((i+1) % write_width == 0)
                 this.phantwriter.println();
         }
@@ -206,66 +457,157 @@ public class EgsPhant {
         
         // z edges
         for (int i = 0; i < this.size[2] + 1; ++i) {
-            this.phantwriter.printf("  % .6f    ", (edgeStart.z + i * voxelSize.z)/10.);
+            this.phantwriter.printf("  % .6f    ", grid.getEdge(VoxelGrid.Z, i)/10.);
             if ((i+1) % write_width == 0)
                 this.phantwriter.println();
         }
         this.phantwriter.println();
     }
     
-    private void writeMaterialRaster() {
-        if (this.debug_p) { System.out.println("writeMaterialRaster()..."); }
+    /**
+     * Write the material numbers of one slice, one row per line.
+     * @param slice phantom slice
+     */
+    private void writeMaterialSlice(PhantomSlice slice) {
+        Raster materialRaster = slice.getMaterialRaster();
+        DataBuffer db = materialRaster.getDataBuffer();
+        SampleModel sm = materialRaster.getSampleModel();
+                    
+        short[] pixels = new short[db.getSize()];
+        sm.getDataElements(0, 0, sm.getWidth(), sm.getHeight(), pixels, db);
         
-        Raster materialRaster;
-        DataBuffer db;
-        SampleModel sm;
-        for (PhantomSlice slice : this.phant.getSliceSet()) {
-            System.out.printf(".");  // progress indicator
-            materialRaster = slice.getMaterialRaster();
-            db = materialRaster.getDataBuffer();
-            sm = materialRaster.getSampleModel();
-                        
-            short[] pixels = new short[db.getSize()];
-            sm.getDataElements(0, 0, sm.getWidth(), sm.getHeight(), pixels, db);
-            
-            for (int j = 0; j < this.size[1]; ++j) {
-                for (int i = 0; i < this.size[0]; ++i) {
-                    this.phantwriter.printf("%d", pixels[i + j * this.size[0]]);
-                }
-                this.phantwriter.println();
+        for (int j = 0; j < this.size[1]; ++j) {
+            for (int i = 0; i < this.size[0]; ++i) {
+                this.phantwriter.printf("%d", pixels[i + j * this.size[0]]);
             }
             this.phantwriter.println();
         }
-        System.out.println(); // end progress indicators
+        this.phantwriter.println();
     }
     
-    private void writeDensityRaster() {
-        if (this.debug_p) { System.out.println("writeDensityRaster()..."); }
+    /**
+     * Format the mass densities of one slice.
+     * @param fmt formatter to write the density text to
+     * @param slice phantom slice
+     * @throws IOException
+     */
+    private void formatDensitySlice(Formatter fmt, PhantomSlice slice) throws IOException {
+        Raster densityRaster = slice.getDensityRaster();
+        DataBuffer db = densityRaster.getDataBuffer();
+        SampleModel sm = densityRaster.getSampleModel();
         
-        Raster densityRaster;
-        DataBuffer db;
-        SampleModel sm;
-        for (PhantomSlice slice : this.phant.getSliceSet()) {
-            System.out.printf(".");  // progress indicator
-            densityRaster = slice.getDensityRaster();
-            db = densityRaster.getDataBuffer();
-            sm = densityRaster.getSampleModel();
-            
-            float[] pixels = new float[db.getSize()];
-            sm.getDataElements(0, 0, sm.getWidth(), sm.getHeight(), pixels, db);
-            for (int j = 0; j < this.size[1]; ++j) {
-                for (int i = 0; i < this.size[0]; ++i) {
-                    this.phantwriter.printf("  % .6f    ", pixels[i + j * this.size[0]]);
-                    if ((i+1) % write_width == 0)
-                        this.phantwriter.println();
+        float[] pixels = new float[db.getSize()];
+        sm.getDataElements(0, 0, sm.getWidth(), sm.getHeight(), pixels, db);
+        
+        if (this.compact_p) {
+            this.formatCompactDensities(fmt.out(), pixels);
+            return;
+        }
+        
+        for (int j = 0; j < this.size[1]; ++j) {
+            for (int i = 0; i < this.size[0]; ++i) {
+                fmt.format("  % .6f    ", pixels[i + j * this.size[0]]);
+                if ((i+1) % write_width == 0)
+                    fmt.format("%n");
+            }
+            fmt.format("%n");
+        }
+        fmt.format("%n");
+    }
+    
+    // Compact densities: DOSXYZnrc reads the density section with 
+    // list-directed Fortran I/O, so all it needs between values is a single
+    // blank. The lines are broken exactly where the padded format breaks 
+    // them, but each value is written with at most densityDigits significant
+    // digits (and never more than the 6 decimals of the padded format), with
+    // trailing zeros dropped: 1.045000 becomes 1.045, 0.001205 stays 0.001205.
+    
+    /**
+     * Format the mass densities of one slice in compact form.
+     * @param out where to write the density text
+     * @param pixels densities of the slice, row by row
+     * @throws IOException
+     */
+    private void formatCompactDensities(Appendable out, float[] pixels) throws IOException {
+        String eol = System.getProperty("line.separator");
+        StringBuilder line = new StringBuilder(write_width * (this.densityDigits + 4));
+        
+        for (int j = 0; j < this.size[1]; ++j) {
+            line.setLength(0);
+            for (int i = 0; i < this.size[0]; ++i) {
+                if (line.length() > 0) {
+                    line.append(' ');
+                }
+                appendCompact(line, pixels[i + j * this.size[0]], this.densityDigits);
+                
+                if ((i+1) % write_width == 0) {
+                    out.append(line).append(eol);
+                    line.setLength(0);
                 }
-                this.phantwriter.println();
             }
-            this.phantwriter.println();
+            out.append(line).append(eol);
         }
-        System.out.println();  // end progress indicator
+        out.append(eol);
     }
     
+    /**
+     * Append a number in fixed-point notation, rounded to the given number
+     * of significant digits and at most 6 decimals, without trailing zeros.
+     * @param sb where to append the number
+     * @param value number to append
+     * @param digits number of significant digits
+     */
+    static void appendCompact(StringBuilder sb, double value, int digits) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // let the writer of the phantom find out the hard way
+            sb.append(value);
+            return;
+        }
+        
+        double mag = Math.abs(value);
+        int decimals = 6;
+        if (mag > 0.) {
+            int exponent = (int) Math.floor(Math.log10(mag));
+            decimals = Math.max(0, Math.min(6, digits - 1 - exponent));
+        }
+        
+        long scaled = Math.round(mag * POWERS_OF_TEN[decimals]);
+        
+        // drop trailing zeros
+        while (decimals > 0 && scaled % 10 == 0) {
+            scaled /= 10;
+            --decimals;
+        }
+        
+        if (scaled == 0) {
+            sb.append('0');
+            return;
+        }
+        
+        if (value < 0.) {
+            sb.append('-');
+        }
+        
+        long intPart = scaled / POWERS_OF_TEN_LONG[decimals];
+        long fracPart = scaled % POWERS_OF_TEN_LONG[decimals];
+        sb.append(intPart);
+        
+        if (decimals > 0) {
+            sb.append('.');
+            for (int d = decimals - 1; d >= 0; --d) {
+                sb.append((char) ('0' + (fracPart / POWERS_OF_TEN_LONG[d]) % 10));
+            }
+        }
+    }
+    
+    private static final double[] POWERS_OF_TEN = {
+        1., 10., 100., 1000., 10000., 100000., 1000000.
+    };
+    
+    private static final long[] POWERS_OF_TEN_LONG = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L
+    };
+    
     /** 
      * 
      * @return size of phantom in number of voxels (width, height, depth) == (x, y, z)
@@ -303,6 +645,352 @@ public class EgsPhant {
     /** debug flag */
     private boolean debug_p = false;
     
+    /** write the egsphant file in a single pass over the slices */
+    private boolean singlePass_p = false;
+    
+    /**
+     * 
+     * @return predicate: egsphant file is written in a single pass
+     */
+    public boolean isSinglePass() {
+        return this.singlePass_p;
+    }
+    
+    /**
+     * Select single-pass writing. The material section is written straight
+     * to the egsphant file while the density section is spooled to a
+     * memory-mapped temp file in the same directory, so peak heap does not
+     * grow with the number of slices.
+     * @param singlePass_p true to write in a single pass
+     */
+    public void setSinglePass(boolean singlePass_p) {
+        this.singlePass_p = singlePass_p;
+    }
+    
+    /** write the density section in compact form */
+    private boolean compact_p = false;
+    
+    /** significant digits of densities in compact form */
+    private int densityDigits = 7;
+    
+    /**
+     * 
+     * @return predicate: densities are written in compact form
+     */
+    public boolean isCompact() {
+        return this.compact_p;
+    }
+    
+    /**
+     * Select compact density output: single blanks between values and no
+     * more significant digits than asked for. The file is about half the 
+     * size and reads the same in DOSXYZnrc.
+     * @param compact_p true to write compact densities
+     */
+    public void setCompact(boolean compact_p) {
+        this.compact_p = compact_p;
+    }
+    
+    /**
+     * 
+     * @return significant digits of densities in compact form
+     */
+    public int getDensityDigits() {
+        return this.densityDigits;
+    }
+    
+    /**
+     * Set the number of significant digits of densities in compact form. 
+     * Densities never get more than 6 decimals, as in the padded form, so
+     * the default of 7 loses nothing for densities below 10 g/cm^3.
+     * @param densityDigits significant digits, at least 1
+     */
+    public void setDensityDigits(int densityDigits) {
+        if (densityDigits < 1) {
+            throw new IllegalArgumentException("need at least 1 significant digit, got " + densityDigits);
+        }
+        this.densityDigits = densityDigits;
+    }
+    
+    /** egsphant sections, in the order they appear in the file */
+    private static final int SECTION_HEADER = 0;
+    private static final int SECTION_MATERIAL = 1;
+    private static final int SECTION_DENSITY = 2;
+    
+    /**
+     * Holds the formatted density section of the egsphant file while the
+     * material section is being written. The text is written to a spool
+     * file one slice at a time, and copied onto the end of the egsphant
+     * file by the kernel with transferTo().
+     */
+    private static class DensitySpool {
+        /**
+         * 
+         * @param spoolfile file to spool to
+         * @param length number of bytes of spoolfile to keep, i.e. those
+         *        already spooled by an interrupted write
+         * @throws java.io.IOException
+         */
+        DensitySpool(File spoolfile, long length) throws IOException {
+            this.spoolfile = spoolfile;
+            this.raf = new RandomAccessFile(this.spoolfile, "rw");
+            this.raf.setLength(length);
+            this.channel = this.raf.getChannel();
+            this.length = length;
+        }
+        
+        /**
+         * Append text to the spool. Density text is plain ASCII.
+         * @param text text to append
+         * @throws java.io.IOException
+         */
+        void append(CharSequence text) throws IOException {
+            int n = text.length();
+            if (this.bytes.length < n) {
+                this.bytes = new byte[n];
+            }
+            
+            for (int i = 0; i < n; ++i) {
+                this.bytes[i] = (byte) text.charAt(i);
+            }
+            
+            ByteBuffer buf = ByteBuffer.wrap(this.bytes, 0, n);
+            while (buf.hasRemaining()) {
+                this.channel.write(buf, this.length + buf.position());
+            }
+            
+            this.length += n;
+        }
+        
+        /**
+         * 
+         * @return number of bytes spooled so far
+         */
+        long length() {
+            return this.length;
+        }
+        
+        /**
+         * Make the spooled text durable
+         * @throws java.io.IOException
+         */
+        void force() throws IOException {
+            this.channel.force(false);
+        }
+        
+        /**
+         * Copy the spooled text to the current position of target.
+         * @param target channel to append to
+         * @throws java.io.IOException
+         */
+        void transferTo(FileChannel target) throws IOException {
+            this.force();
+            
+            long pos = 0;
+            while (pos < this.length) {
+                pos += this.channel.transferTo(pos, this.length - pos, target);
+            }
+        }
+        
+        /** Close the spool file */
+        void close() {
+            try {
+                this.channel.close();
+                this.raf.close();
+            } catch (IOException ex) {
+                Logger.getLogger(EgsPhant.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        
+        /** file backing the spool */
+        private File spoolfile;
+        
+        private RandomAccessFile raf;
+        
+        private FileChannel channel;
+        
+        /** number of bytes spooled so far */
+        private long length;
+        
+        /** scratch space for converting text to bytes */
+        private byte[] bytes = new byte[0];
+    }
+    
+    /**
+     * Completion markers of an egsphant write. The progress file holds the
+     * fingerprint of the phantom being written, followed by one line per 
+     * completed section or slice:
+     *     section slice offset spoolOffset
+     * where offset is the length of the .part file at that point.
+     */
+    private static class WriteProgress {
+        /**
+         * Read the markers left by an interrupted write. If there are none,
+         * they belong to a different phantom, or the .part or spool file is
+         * shorter than the last marker says (deleted, say, or already
+         * renamed into place), start afresh.
+         * @param progressfile progress file
+         * @param fingerprint description of the phantom being written
+         * @param partfile the .part file the markers describe
+         * @param spoolfile the density spool the markers describe
+         * @throws java.io.IOException
+         */
+        WriteProgress(File progressfile, String fingerprint, File partfile, File spoolfile)
+                throws IOException {
+            this.progressfile = progressfile;
+            
+            boolean resume_p = false;
+            if (progressfile.isFile()) {
+                BufferedReader reader = new BufferedReader(new FileReader(progressfile));
+                try {
+                    resume_p = fingerprint.equals(reader.readLine());
+                    
+                    String line;
+                    while (resume_p && (line = reader.readLine()) != null) {
+                        String[] fields = line.trim().split("\\s+");
+                        if (fields.length != 4) {
+                            // torn last line
+                            break;
+                        }
+                        
+                        this.section = Integer.parseInt(fields[0]);
+                        this.slice = Integer.parseInt(fields[1]);
+                        this.offset = Long.parseLong(fields[2]);
+                        this.spoolOffset = Long.parseLong(fields[3]);
+                    }
+                } catch (NumberFormatException ex) {
+                    // keep the last good marker
+                } finally {
+                    reader.close();
+                }
+            }
+            
+            if (resume_p && (partfile.length() < this.offset
+                    || spoolfile.length() < this.spoolOffset)) {
+                Logger.getLogger(EgsPhant.class.getName()).log(Level.WARNING,
+                        "starting afresh: " + partfile + " or " + spoolfile
+                        + " is shorter than " + progressfile + " records");
+                resume_p = false;
+            }
+            
+            if (!resume_p) {
+                this.section = -1;
+                this.slice = -1;
+                this.offset = 0;
+                this.spoolOffset = 0;
+            }
+            
+            // rewrite the file with just the fingerprint and the marker 
+            // being resumed from, which also drops any torn line
+            this.out = new FileOutputStream(progressfile);
+            this.writer = new PrintWriter(new OutputStreamWriter(this.out, "US-ASCII"));
+            this.writer.println(fingerprint);
+            if (this.section >= 0) {
+                this.writeMarker();
+            }
+            this.sync();
+        }
+        
+        /**
+         * Record that a section/slice is complete.
+         * @param section section number
+         * @param slice slice number
+         * @param offset length of the .part file
+         * @param spoolOffset length of the density spool
+         * @throws java.io.IOException
+         */
+        void mark(int section, int slice, long offset, long spoolOffset) throws IOException {
+            this.section = section;
+            this.slice = slice;
+            this.offset = offset;
+            this.spoolOffset = spoolOffset;
+            
+            this.writeMarker();
+            this.sync();
+        }
+        
+        /**
+         * 
+         * @param section section number
+         * @param slice slice number
+         * @return predicate: the given section/slice was completed earlier
+         */
+        boolean isDone(int section, int slice) {
+            return section < this.section 
+                    || (section == this.section && slice <= this.slice);
+        }
+        
+        /**
+         * 
+         * @return last completed section, or -1 if nothing was
+         */
+        int getSection() {
+            return this.section;
+        }
+        
+        /**
+         * 
+         * @return length of the .part file at the last marker
+         */
+        long getOffset() {
+            return this.offset;
+        }
+        
+        /**
+         * 
+         * @return length of the density spool at the last marker
+         */
+        long getSpoolOffset() {
+            return this.spoolOffset;
+        }
+        
+        /** Close the progress file */
+        void close() {
+            this.writer.close();
+        }
+        
+        private void writeMarker() {
+            this.writer.println(this.section + " " + this.slice + " " 
+                    + this.offset + " " + this.spoolOffset);
+        }
+        
+        private void sync() throws IOException {
+            this.writer.flush();
+            if (this.writer.checkError()) {
+                throw new IOException("error writing " + this.progressfile);
+            }
+            this.out.getFD().sync();
+        }
+        
+        @Override
+        public String toString() {
+            String[] names = {"header", "material slice", "density slice"};
+            String rep = names[this.section];
+            if (this.section != SECTION_HEADER) {
+                rep += " " + this.slice;
+            }
+            return rep;
+        }
+        
+        private File progressfile;
+        
+        private FileOutputStream out;
+        
+        private PrintWriter writer;
+        
+        /** last completed section */
+        private int section;
+        
+        /** last completed slice of that section */
+        private int slice;
+        
+        /** length of the .part file at the last marker */
+        private long offset;
+        
+        /** length of the density spool at the last marker */
+        private long spoolOffset;
+    }
+    
     /**
      * see if phantom has sensible data
      */
@@ -0,0 +1,480 @@
+/* FluenceEngine.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+// The fluence of a dynamic beam, in the beam's eye view at the isocentre,
+// is the meterset for which each point is open. Between two control
+// points the leaves and jaws move linearly in meterset, so for a point
+// (x, y) each of
+//     x > A(t),  x < B(t),  x > X1(t),  x < X2(t),  y > Y1(t),  y < Y2(t)
+// holds for one interval of the fraction t of the segment, and the point is
+// open for the intersection of the six intervals: no time stepping is
+// needed, and the result is exact for the centre of each pixel.
+//
+// A point only sees the leaf pair it lies behind, so each leaf pair gives
+// the fluence of its own rows of pixels, and the leaf pairs are done in
+// parallel. Points outside all the leaf pairs are closed. The A leaves are
+// on the -x side, as in LeafJawPositions.
+
+/**
+ * Computes the fluence delivered by the MLC and jaws of a dynamic beam.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class FluenceEngine {
+    /**
+     * 
+     * @param mlcSequence leaf and jaw motion
+     */
+    public FluenceEngine(MLCSequence mlcSequence) {
+        this.mlcSequence = mlcSequence;
+    }
+    
+    /**
+     * Fluence of a beam, in MU if the beam has a meterset.
+     * @param beam dynamic beam
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException if the beam
+     *         is not dynamic
+     */
+    public FluenceEngine(Beam beam) throws EclipsePlanException {
+        this(beam.getMLCSequence());
+        if (this.mlcSequence == null) {
+            throw new EclipsePlanException("No MLC sequence for beam " + beam.getName());
+        }
+        if (beam.getMeterset() != null) {
+            this.meterset = beam.getMeterset();
+        }
+    }
+    
+    /**
+     * 
+     * @param pixelSize pixel size at the isocentre (mm)
+     */
+    public void setPixelSize(double pixelSize) {
+        this.pixelSize = pixelSize;
+    }
+    
+    /**
+     * Only integrate from step from to step to, e.g. over one arc segment.
+     * @param from first step
+     * @param to last step
+     */
+    public void setSteps(int from, int to) {
+        this.firstStep = from;
+        this.lastStep = to;
+    }
+    
+    /**
+     * 
+     * @param arc arc segment to integrate over
+     */
+    public void setSteps(ArcSegment arc) {
+        this.setSteps(arc.getFirstStep(), arc.getLastStep());
+    }
+    
+    /**
+     * 
+     * @param meterset meterset the fluence is scaled to (default 1, i.e.
+     *        fractions of the beam)
+     */
+    public void setMeterset(double meterset) {
+        this.meterset = meterset;
+    }
+    
+    /**
+     * Compute the fluence, on a grid just covering the largest jaw opening.
+     * @return fluence of pixel (i, j) at i + nx*j
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public float[] compute() throws EclipsePlanException {
+        final MLCSequence seq = this.mlcSequence;
+        int firstStep = Math.max(0, this.firstStep);
+        int lastStep = (this.lastStep < 0) ? seq.getNSteps() - 1 : Math.min(this.lastStep, seq.getNSteps() - 1);
+        int nSteps = lastStep - firstStep + 1;
+        double xMin = Double.MAX_VALUE;
+        double xMax = -Double.MAX_VALUE;
+        double yMin = Double.MAX_VALUE;
+        double yMax = -Double.MAX_VALUE;
+        for (int step = firstStep; step <= lastStep; ++step) {
+            xMin = Math.min(xMin, seq.getJaw(step, MLCSequence.X1));
+            xMax = Math.max(xMax, seq.getJaw(step, MLCSequence.X2));
+            yMin = Math.min(yMin, seq.getJaw(step, MLCSequence.Y1));
+            yMax = Math.max(yMax, seq.getJaw(step, MLCSequence.Y2));
+        }
+        if (nSteps <= 0 || xMax <= xMin || yMax <= yMin) {
+            throw new EclipsePlanException("No jaw opening in " + seq.getBeamName());
+        }
+        
+        this.x0 = Math.floor(xMin / this.pixelSize) * this.pixelSize;
+        this.y0 = Math.floor(yMin / this.pixelSize) * this.pixelSize;
+        this.nx = (int) Math.ceil((xMax - this.x0) / this.pixelSize);
+        this.ny = (int) Math.ceil((yMax - this.y0) / this.pixelSize);
+        this.fluence = new float[this.nx * this.ny];
+        
+        final int first = firstStep;
+        final int last = lastStep;
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int leaf = 0; leaf < seq.getNLeafPairs(); ++leaf) {
+            // pixel rows whose centres are behind this leaf pair
+            final int leafPair = leaf;
+            final int from = Math.max(0, this.rowAtOrAbove(seq.getLeafBoundary(leaf)));
+            final int to = Math.min(this.ny, this.rowAtOrAbove(seq.getLeafBoundary(leaf + 1)));
+            if (from < to) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        computeRows(leafPair, from, to, first, last);
+                        return null;
+                    }
+                });
+            }
+        }
+        
+        TaskPool.invokeAll(tasks, "computing fluence");
+        
+        return this.fluence;
+    }
+    
+    /**
+     * Compute the fluence of the pixel rows behind one leaf pair.
+     * @param leaf leaf pair
+     * @param from first pixel row
+     * @param to one past the last pixel row
+     * @param firstStep first step to integrate from
+     * @param lastStep last step to integrate to
+     */
+    private void computeRows(int leaf, int from, int to, int firstStep, int lastStep) {
+        MLCSequence seq = this.mlcSequence;
+        int nRows = to - from;
+        double[] yFrom = new double[nRows];
+        double[] yUntil = new double[nRows];
+        
+        for (int step = firstStep; step < lastStep; ++step) {
+            double dw = this.meterset * (seq.getCumulativeMetersetWeight(step + 1)
+                    - seq.getCumulativeMetersetWeight(step));
+            if (dw <= 0.) {
+                continue;
+            }
+            
+            double a0 = seq.getALeaf(step, leaf);
+            double a1 = seq.getALeaf(step + 1, leaf);
+            double b0 = seq.getBLeaf(step, leaf);
+            double b1 = seq.getBLeaf(step + 1, leaf);
+            double xa0 = seq.getJaw(step, MLCSequence.X1);
+            double xa1 = seq.getJaw(step + 1, MLCSequence.X1);
+            double xb0 = seq.getJaw(step, MLCSequence.X2);
+            double xb1 = seq.getJaw(step + 1, MLCSequence.X2);
+            double ya0 = seq.getJaw(step, MLCSequence.Y1);
+            double ya1 = seq.getJaw(step + 1, MLCSequence.Y1);
+            double yb0 = seq.getJaw(step, MLCSequence.Y2);
+            double yb1 = seq.getJaw(step + 1, MLCSequence.Y2);
+            
+            // when each row is inside the Y jaws
+            boolean open_p = false;
+            for (int r = 0; r < nRows; ++r) {
+                double y = this.y0 + (from + r + 0.5) * this.pixelSize;
+                yFrom[r] = Math.max(after(y - ya0, y - ya1), after(yb0 - y, yb1 - y));
+                yUntil[r] = Math.min(until(y - ya0, y - ya1), until(yb0 - y, yb1 - y));
+                open_p |= yFrom[r] < yUntil[r];
+            }
+            if (!open_p) {
+                continue;
+            }
+            
+            for (int i = 0; i < this.nx; ++i) {
+                double x = this.x0 + (i + 0.5) * this.pixelSize;
+                double xFrom = Math.max(Math.max(after(x - a0, x - a1), after(b0 - x, b1 - x)),
+                        Math.max(after(x - xa0, x - xa1), after(xb0 - x, xb1 - x)));
+                double xUntil = Math.min(Math.min(until(x - a0, x - a1), until(b0 - x, b1 - x)),
+                        Math.min(until(x - xa0, x - xa1), until(xb0 - x, xb1 - x)));
+                if (xFrom >= xUntil) {
+                    continue;
+                }
+                
+                for (int r = 0; r < nRows; ++r) {
+                    double open = Math.min(xUntil, yUntil[r]) - Math.max(xFrom, yFrom[r]);
+                    if (open > 0.) {
+                        this.fluence[i + this.nx * (from + r)] += (float) (dw * open);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * For c(t) = c0 + (c1 - c0) t, on 0 <= t <= 1, c(t) > 0 from after()
+     * until until(); if never, after() > until().
+     * @param c0 c(0)
+     * @param c1 c(1)
+     * @return start of c(t) > 0
+     */
+    private static double after(double c0, double c1) {
+        if (c0 > 0.) {
+            return 0.;
+        }
+        if (c1 <= 0.) {
+            return 2.;
+        }
+        return c0 / (c0 - c1);
+    }
+    
+    /**
+     * 
+     * @param c0 c(0)
+     * @param c1 c(1)
+     * @return end of c(t) > 0
+     * @see #after(double, double)
+     */
+    private static double until(double c0, double c1) {
+        if (c1 > 0.) {
+            return 1.;
+        }
+        if (c0 <= 0.) {
+            return -1.;
+        }
+        return c0 / (c0 - c1);
+    }
+    
+    /**
+     * 
+     * @param y position (mm)
+     * @return first pixel row whose centre is at or above y
+     */
+    private int rowAtOrAbove(double y) {
+        return (int) Math.ceil((y - this.y0) / this.pixelSize - 0.5);
+    }
+    
+    /**
+     * 
+     * @return fluence of pixel (i, j) at i + nx*j, or null if not computed
+     */
+    public float[] getFluence() {
+        return this.fluence;
+    }
+    
+    /**
+     * 
+     * @return number of pixels along x (leaf motion)
+     */
+    public int getNx() {
+        return this.nx;
+    }
+    
+    /**
+     * 
+     * @return number of pixels along y
+     */
+    public int getNy() {
+        return this.ny;
+    }
+    
+    /**
+     * 
+     * @param i pixel column
+     * @return x of the centre of column i (mm)
+     */
+    public double getX(int i) {
+        return this.x0 + (i + 0.5) * this.pixelSize;
+    }
+    
+    /**
+     * 
+     * @param j pixel row
+     * @return y of the centre of row j (mm)
+     */
+    public double getY(int j) {
+        return this.y0 + (j + 0.5) * this.pixelSize;
+    }
+    
+    /**
+     * 
+     * @return largest fluence
+     */
+    public double getMaxFluence() {
+        double max = 0.;
+        for (float f : this.fluence) {
+            max = Math.max(max, f);
+        }
+        return max;
+    }
+    
+    /**
+     * Write the fluence: a header, then one line per pixel row, from -y.
+     * @param file fluence map file
+     * @throws java.io.FileNotFoundException
+     */
+    public void writeMap(File file) throws FileNotFoundException {
+        PrintWriter out = new PrintWriter(file);
+        try {
+            out.println("# " + this.mlcSequence.getBeamName());
+            out.printf("# %d %d pixels of %f mm from (%f, %f) mm%n", this.nx, this.ny,
+                    this.pixelSize, this.x0, this.y0);
+            StringBuilder line = new StringBuilder();
+            for (int j = 0; j < this.ny; ++j) {
+                line.setLength(0);
+                for (int i = 0; i < this.nx; ++i) {
+                    if (i > 0) {
+                        line.append(' ');
+                    }
+                    line.append(this.fluence[i + this.nx * j]);
+                }
+                out.println(line);
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Write a summary of the fluence of every dynamic beam of a plan: its
+     * control points, meterset, largest fluence, open area (where the
+     * fluence is more than OPEN_FRACTION of the largest), mean fluence over
+     * the open area, and integral of the fluence.
+     * @param file summary file
+     * @param beams beams of the plan
+     * @param pixelSize pixel size at the isocentre (mm)
+     * @throws java.io.FileNotFoundException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public static void writePlanSummary(File file, BeamSequence beams, double pixelSize)
+            throws FileNotFoundException, EclipsePlanException {
+        PrintWriter out = new PrintWriter(file);
+        try {
+            out.println("# beam  control points  MU  max. fluence  open area (cm^2)  mean open fluence"
+                    + "  integral (MU cm^2)");
+            double total = 0.;
+            for (Beam beam : beams.getBeamMap().values()) {
+                if (beam.getMLCSequence() == null) {
+                    continue;
+                }
+                
+                FluenceEngine engine = new FluenceEngine(beam);
+                engine.setPixelSize(pixelSize);
+                float[] fluence = engine.compute();
+                double max = engine.getMaxFluence();
+                double pixelArea = pixelSize * pixelSize / 100.;
+                long nOpen = 0;
+                double open = 0.;
+                double sum = 0.;
+                for (float f : fluence) {
+                    sum += f;
+                    if (f > OPEN_FRACTION * max) {
+                        ++nOpen;
+                        open += f;
+                    }
+                }
+                total += sum * pixelArea;
+                
+                out.printf("%s  %d  %.2f  %.4f  %.2f  %.4f  %.4f%n", beam.getName(),
+                        beam.getMLCSequence().getNSteps(), engine.meterset, max, nOpen * pixelArea,
+                        (nOpen > 0) ? open / nOpen : 0., sum * pixelArea);
+                
+                // integral of each arc of a VMAT beam
+                for (ArcSegment arc : beam.getArcSegments()) {
+                    engine.setSteps(arc);
+                    double arcSum = 0.;
+                    for (float f : engine.compute()) {
+                        arcSum += f;
+                    }
+                    out.printf("#   %s, integral %.4f MU cm^2%n", arc, arcSum * pixelArea);
+                }
+            }
+            out.printf("# total integral %.4f MU cm^2%n", total);
+        } finally {
+            out.close();
+        }
+    }
+    
+    /** fraction of the largest fluence above which a pixel counts as open */
+    private static final double OPEN_FRACTION = 0.01;
+    
+    /** leaf and jaw motion */
+    private MLCSequence mlcSequence;
+    
+    /** first step integrated over */
+    private int firstStep = 0;
+    
+    /** last step integrated over, or -1 for the last of the sequence */
+    private int lastStep = -1;
+    
+    /** meterset the fluence is scaled to */
+    private double meterset = 1.;
+    
+    /** pixel size at the isocentre (mm) */
+    private double pixelSize = 1.;
+    
+    /** lower x edge of the grid (mm) */
+    private double x0;
+    
+    /** lower y edge of the grid (mm) */
+    private double y0;
+    
+    /** number of pixels along x */
+    private int nx;
+    
+    /** number of pixels along y */
+    private int ny;
+    
+    /** fluence of pixel (i, j) at i + nx*j */
+    private float[] fluence;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: RTPLAN file, summary file, then
+     *        optionally a directory for the fluence map of every beam
+     */
+    public static void main(String[] args) {
+        try {
+            BeamSequence beams = new BeamSequence(args[0]);
+            writePlanSummary(new File(args[1]), beams, 1.);
+            
+            if (args.length > 2) {
+                for (Beam beam : beams.getBeamMap().values()) {
+                    if (beam.getMLCSequence() != null) {
+                        FluenceEngine engine = new FluenceEngine(beam);
+                        engine.compute();
+                        engine.writeMap(new File(args[2], beam.getPatientID() + "_" + beam.getName()
+                                + ".fluence"));
+                    }
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
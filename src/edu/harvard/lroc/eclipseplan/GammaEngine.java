@@ -0,0 +1,596 @@
+/* GammaEngine.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+// Gamma of an evaluated voxel is the smallest, over the points r of the
+// reference dose around it,
+//     sqrt(|r - p|^2 / DTA^2 + (De(p) - Dr(r))^2 / dD^2)
+// where p is the voxel centre, DTA the distance criterion and dD the dose
+// criterion times the normalization dose (global gamma). The reference is
+// sampled on a lattice of points, DTA / nStepsPerDTA apart, out to the
+// search radius, with the dose trilinearly interpolated between reference
+// voxel centres, so the two grids need not match.
+//
+// The lattice offsets are sorted by distance once. Since gamma can be no
+// smaller than |r - p| / DTA, the search of a voxel stops at the first
+// offset further than the best gamma found so far: for most voxels, which
+// pass easily, only a few offsets are tried. The interpolation cells and
+// weights along each axis are worked out once per voxel for the 2m+1
+// lattice positions along that axis, so the inner loop is only the eight
+// reference look-ups.
+//
+// Slices of the evaluated dose are independent, so each is a task for the
+// shared thread pool (TaskPool).
+
+/**
+ * 3D gamma comparison of an evaluated dose against a reference dose.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class GammaEngine {
+    /**
+     * 
+     * @param reference reference dose, e.g. from Eclipse
+     * @param evaluated evaluated dose, e.g. from DOSXYZnrc, on the same
+     *        patient coordinates; the grids may differ
+     */
+    public GammaEngine(DoseGrid reference, DoseGrid evaluated) {
+        this.reference = reference;
+        this.evaluated = evaluated;
+    }
+    
+    /**
+     * 
+     * @param doseCriterion dose criterion, as a fraction of the
+     *        normalization dose, e.g. 0.02
+     */
+    public void setDoseCriterion(double doseCriterion) {
+        this.doseCriterion = doseCriterion;
+    }
+    
+    /**
+     * 
+     * @param distanceCriterion distance to agreement (mm), e.g. 2
+     */
+    public void setDistanceCriterion(double distanceCriterion) {
+        this.distanceCriterion = distanceCriterion;
+    }
+    
+    /**
+     * 
+     * @param searchRadius largest distance searched (mm); 0 for twice the
+     *        distance criterion
+     */
+    public void setSearchRadius(double searchRadius) {
+        this.searchRadius = searchRadius;
+    }
+    
+    /**
+     * 
+     * @param nStepsPerDTA number of search steps per distance criterion
+     */
+    public void setNStepsPerDTA(int nStepsPerDTA) {
+        this.nStepsPerDTA = nStepsPerDTA;
+    }
+    
+    /**
+     * 
+     * @param normalizationDose dose of the dose criterion (in reference
+     *        units); 0 for the largest reference dose
+     */
+    public void setNormalizationDose(double normalizationDose) {
+        this.normalizationDose = normalizationDose;
+    }
+    
+    /**
+     * 
+     * @param lowDoseThreshold voxels where both doses are below this
+     *        fraction of the normalization dose are not evaluated
+     */
+    public void setLowDoseThreshold(double lowDoseThreshold) {
+        this.lowDoseThreshold = lowDoseThreshold;
+    }
+    
+    /**
+     * 
+     * @param evaluatedScale factor taking evaluated doses to reference
+     *        units, e.g. Gy per particle times number of particles
+     */
+    public void setEvaluatedScale(double evaluatedScale) {
+        this.evaluatedScale = evaluatedScale;
+    }
+    
+    /**
+     * Compute gamma for every evaluated voxel.
+     * @return gamma of each evaluated voxel, indexed as the evaluated dose;
+     *         NaN where not evaluated (low dose, or outside the reference)
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public float[] compute() throws EclipsePlanException {
+        final VoxelGrid grid = this.evaluated.getGrid();
+        final float[] gamma = new float[grid.getNVoxels()];
+        
+        double norm = (this.normalizationDose > 0.) ? this.normalizationDose : this.reference.getMaxDose();
+        if (norm <= 0. || this.doseCriterion <= 0. || this.distanceCriterion <= 0.) {
+            throw new EclipsePlanException("gamma criteria must be positive");
+        }
+        final double doseTolerance = this.doseCriterion * norm;
+        final double threshold = this.lowDoseThreshold * norm;
+        double radius = (this.searchRadius > 0.) ? this.searchRadius : 2. * this.distanceCriterion;
+        final double step = this.distanceCriterion / this.nStepsPerDTA;
+        final int m = (int) Math.ceil(radius / step);
+        final Offsets offsets = new Offsets(m, step, radius, this.distanceCriterion);
+        
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int k = 0; k < grid.getNz(); ++k) {
+            final int kk = k;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    Interpolator interp = new Interpolator(reference, m, step);
+                    for (int j = 0; j < grid.getNy(); ++j) {
+                        for (int i = 0; i < grid.getNx(); ++i) {
+                            int v = grid.index(i, j, kk);
+                            gamma[v] = voxelGamma(interp, offsets, grid, i, j, kk,
+                                    doseTolerance, threshold);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        TaskPool.invokeAll(tasks, "computing gamma");
+        
+        this.gamma = gamma;
+        if (this.debug_p) {
+            System.out.println("Gamma: " + offsets.size() + " search points; pass rate "
+                    + this.getPassRate());
+        }
+        return gamma;
+    }
+    
+    /**
+     * Gamma of one evaluated voxel.
+     * @param interp reference interpolator of this thread
+     * @param offsets search offsets
+     * @param grid evaluated grid
+     * @param i x index
+     * @param j y index
+     * @param k z index
+     * @param doseTolerance dose criterion (reference units)
+     * @param threshold low dose threshold (reference units)
+     * @return gamma, or NaN if not evaluated
+     */
+    private float voxelGamma(Interpolator interp, Offsets offsets, VoxelGrid grid,
+            int i, int j, int k, double doseTolerance, double threshold) {
+        double de = this.evaluatedScale * this.evaluated.getDose(i, j, k);
+        if (!interp.setCentre(grid.getCenter(VoxelGrid.X, i), grid.getCenter(VoxelGrid.Y, j),
+                grid.getCenter(VoxelGrid.Z, k))) {
+            return Float.NaN;
+        }
+        
+        double dr = interp.dose(offsets.a[0], offsets.b[0], offsets.c[0]);
+        if (de < threshold && dr < threshold) {
+            return Float.NaN;
+        }
+        
+        double diff = (de - dr) / doseTolerance;
+        double best = diff * diff;
+        for (int o = 1; o < offsets.size() && offsets.r2[o] < best; ++o) {
+            double d = interp.dose(offsets.a[o], offsets.b[o], offsets.c[o]);
+            if (Double.isNaN(d)) {
+                continue;
+            }
+            diff = (de - d) / doseTolerance;
+            double g2 = offsets.r2[o] + diff * diff;
+            if (g2 < best) {
+                best = g2;
+            }
+        }
+        return (float) Math.sqrt(best);
+    }
+    
+    /**
+     * 
+     * @return fraction of evaluated voxels with gamma at most 1
+     */
+    public double getPassRate() {
+        int passed = 0;
+        int counted = 0;
+        for (float g : this.gamma) {
+            if (!Float.isNaN(g)) {
+                ++counted;
+                if (g <= 1.f) {
+                    ++passed;
+                }
+            }
+        }
+        return (counted == 0) ? Double.NaN : (double) passed / counted;
+    }
+    
+    /**
+     * Pass rates of the evaluated voxels whose centres are inside each
+     * structure. compute() must have been called.
+     * @param structures structure set
+     * @param structureNames names of structures
+     * @return fraction of evaluated voxels with gamma at most 1, by
+     *         structure name; NaN if none of the voxels of a structure
+     *         were evaluated
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public TreeMap<String, Double> getPassRates(StructureSet structures, List<String> structureNames)
+            throws EclipsePlanException {
+        final VoxelGrid grid = this.evaluated.getGrid();
+        final int nRois = structureNames.size();
+        final StructureIndex[] indexes = new StructureIndex[nRois];
+        final int[][] bounds = new int[nRois][];
+        for (int r = 0; r < nRois; ++r) {
+            Structure structure = structures.getStructureMap().get(structureNames.get(r));
+            if (structure == null) {
+                throw new EclipsePlanException("No such structure: " + structureNames.get(r));
+            }
+            indexes[r] = structure.getIndex(grid);
+            bounds[r] = DVHEngine.voxelBounds(indexes[r], grid);
+        }
+        
+        final float[] gamma = this.gamma;
+        long[] passed = new long[nRois];
+        long[] counted = new long[nRois];
+        
+        List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+        for (int k = 0; k < grid.getNz(); ++k) {
+            final int kk = k;
+            tasks.add(new Callable<long[]>() {
+                public long[] call() {
+                    // passed, then counted, of each structure
+                    long[] tally = new long[2 * nRois];
+                    for (int r = 0; r < nRois; ++r) {
+                        int[] b = bounds[r];
+                        if (b == null || kk < b[4] || kk >= b[5]) {
+                            continue;
+                        }
+                        for (int j = b[2]; j < b[3]; ++j) {
+                            for (int i = b[0]; i < b[1]; ++i) {
+                                float g = gamma[grid.index(i, j, kk)];
+                                if (!Float.isNaN(g) && indexes[r].containsVoxel(grid, i, j, kk)) {
+                                    ++tally[nRois + r];
+                                    if (g <= 1.f) {
+                                        ++tally[r];
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    return tally;
+                }
+            });
+        }
+        for (long[] tally : TaskPool.invokeAll(tasks, "computing gamma pass rates")) {
+            for (int r = 0; r < nRois; ++r) {
+                passed[r] += tally[r];
+                counted[r] += tally[nRois + r];
+            }
+        }
+        
+        TreeMap<String, Double> rates = new TreeMap<String, Double>();
+        for (int r = 0; r < nRois; ++r) {
+            rates.put(structureNames.get(r),
+                    (counted[r] == 0) ? Double.NaN : (double) passed[r] / counted[r]);
+        }
+        return rates;
+    }
+    
+    /**
+     * 
+     * @return gamma of each evaluated voxel, from the last compute(); not a
+     *         copy
+     */
+    public float[] getGamma() {
+        return this.gamma;
+    }
+    
+    /**
+     * Search lattice offsets within the search radius, nearest first.
+     */
+    private static class Offsets {
+        /**
+         * 
+         * @param m largest offset along an axis, in steps
+         * @param step lattice step (mm)
+         * @param radius search radius (mm)
+         * @param dta distance criterion (mm)
+         */
+        Offsets(int m, double step, double radius, double dta) {
+            Vector<int[]> all = new Vector<int[]>();
+            final double limit = radius * radius / (step * step) + 1.e-9;
+            for (int c = -m; c <= m; ++c) {
+                for (int b = -m; b <= m; ++b) {
+                    for (int a = -m; a <= m; ++a) {
+                        if (a*a + b*b + c*c <= limit) {
+                            all.add(new int[] { a, b, c, a*a + b*b + c*c });
+                        }
+                    }
+                }
+            }
+            int[][] sorted = all.toArray(new int[all.size()][]);
+            Arrays.sort(sorted, new Comparator<int[]>() {
+                public int compare(int[] p, int[] q) {
+                    return p[3] - q[3];
+                }
+            });
+            
+            int n = sorted.length;
+            this.a = new int[n];
+            this.b = new int[n];
+            this.c = new int[n];
+            this.r2 = new double[n];
+            double scale = step * step / (dta * dta);
+            for (int o = 0; o < n; ++o) {
+                // indices into the per-axis tables of the interpolator
+                this.a[o] = sorted[o][0] + m;
+                this.b[o] = sorted[o][1] + m;
+                this.c[o] = sorted[o][2] + m;
+                this.r2[o] = scale * sorted[o][3];
+            }
+        }
+        
+        /**
+         * 
+         * @return number of offsets
+         */
+        int size() {
+            return this.r2.length;
+        }
+        
+        /** x offsets, plus m */
+        int[] a;
+        
+        /** y offsets, plus m */
+        int[] b;
+        
+        /** z offsets, plus m */
+        int[] c;
+        
+        /** squared distances over squared DTA */
+        double[] r2;
+    }
+    
+    /**
+     * Trilinear interpolation of the reference dose at lattice points
+     * around one centre. One per thread.
+     */
+    private static class Interpolator {
+        /**
+         * 
+         * @param reference reference dose
+         * @param m largest offset along an axis, in steps
+         * @param step lattice step (mm)
+         */
+        Interpolator(DoseGrid reference, int m, double step) {
+            this.grid = reference.getGrid();
+            this.dose = reference.getDose();
+            this.m = m;
+            this.step = step;
+            for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+                this.lower[axis] = new int[2*m + 1];
+                this.weight[axis] = new double[2*m + 1];
+            }
+        }
+        
+        /**
+         * Work out the cells and weights of the lattice positions along each
+         * axis.
+         * @param x centre (mm)
+         * @param y centre (mm)
+         * @param z centre (mm)
+         * @return predicate: the centre itself is inside the reference grid
+         */
+        boolean setCentre(double x, double y, double z) {
+            double[] p = { x, y, z };
+            for (int axis = VoxelGrid.X; axis <= VoxelGrid.Z; ++axis) {
+                int n = this.grid.getN(axis);
+                double lo = this.grid.getEdge(axis, 0);
+                double hi = this.grid.getEdge(axis, n);
+                int[] cell = this.lower[axis];
+                double[] w = this.weight[axis];
+                int i = -1;
+                for (int s = 0; s <= 2*this.m; ++s) {
+                    double pos = p[axis] + (s - this.m) * this.step;
+                    if (pos < lo || pos > hi) {
+                        cell[s] = -1;
+                        continue;
+                    }
+                    if (i < 0) {
+                        // last centre at or below the first position, by
+                        // binary search
+                        i = this.grid.firstCenterAtOrAbove(axis, pos);
+                        if (i == n || this.grid.getCenter(axis, i) > pos) {
+                            --i;
+                        }
+                        i = Math.max(0, i);
+                    } else {
+                        // positions increase with s, so the cell only moves
+                        // up, and by little: a lattice step is less than a
+                        // voxel or so
+                        while (i < n - 1 && this.grid.getCenter(axis, i+1) <= pos) {
+                            ++i;
+                        }
+                    }
+                    if (n == 1 || pos <= this.grid.getCenter(axis, 0)) {
+                        cell[s] = 0;
+                        w[s] = 0.;
+                    } else if (i == n - 1) {
+                        cell[s] = n - 2;
+                        w[s] = 1.;
+                    } else {
+                        double c0 = this.grid.getCenter(axis, i);
+                        cell[s] = i;
+                        w[s] = (pos - c0) / (this.grid.getCenter(axis, i+1) - c0);
+                    }
+                }
+                if (cell[this.m] < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * 
+         * @param a x lattice index, 0 to 2m
+         * @param b y lattice index, 0 to 2m
+         * @param c z lattice index, 0 to 2m
+         * @return interpolated dose, or NaN if outside the reference grid
+         */
+        double dose(int a, int b, int c) {
+            int i = this.lower[VoxelGrid.X][a];
+            int j = this.lower[VoxelGrid.Y][b];
+            int k = this.lower[VoxelGrid.Z][c];
+            if (i < 0 || j < 0 || k < 0) {
+                return Double.NaN;
+            }
+            double wx = this.weight[VoxelGrid.X][a];
+            double wy = this.weight[VoxelGrid.Y][b];
+            double wz = this.weight[VoxelGrid.Z][c];
+            
+            int nx = this.grid.getNx();
+            int nxy = nx * this.grid.getNy();
+            int di = (nx > 1) ? 1 : 0;
+            int dj = (this.grid.getNy() > 1) ? nx : 0;
+            int dk = (this.grid.getNz() > 1) ? nxy : 0;
+            int v = i + nx * j + nxy * k;
+            
+            double d00 = this.dose[v] + wx * (this.dose[v + di] - this.dose[v]);
+            double d10 = this.dose[v + dj] + wx * (this.dose[v + dj + di] - this.dose[v + dj]);
+            double d01 = this.dose[v + dk] + wx * (this.dose[v + dk + di] - this.dose[v + dk]);
+            double d11 = this.dose[v + dk + dj] + wx * (this.dose[v + dk + dj + di] - this.dose[v + dk + dj]);
+            double d0 = d00 + wy * (d10 - d00);
+            double d1 = d01 + wy * (d11 - d01);
+            return d0 + wz * (d1 - d0);
+        }
+        
+        /** reference grid */
+        private VoxelGrid grid;
+        
+        /** reference dose */
+        private float[] dose;
+        
+        /** largest offset along an axis, in steps */
+        private int m;
+        
+        /** lattice step (mm) */
+        private double step;
+        
+        /** lower interpolation cell of each lattice position, per axis; -1
+         *  if outside the grid */
+        private int[][] lower = new int[3][];
+        
+        /** interpolation weight of the upper cell, per axis */
+        private double[][] weight = new double[3][];
+    }
+    
+    /** reference dose */
+    private DoseGrid reference;
+    
+    /** evaluated dose */
+    private DoseGrid evaluated;
+    
+    /** dose criterion, as a fraction of the normalization dose */
+    private double doseCriterion = 0.02;
+    
+    /** distance criterion (mm) */
+    private double distanceCriterion = 2.;
+    
+    /** search radius (mm); 0 for twice the distance criterion */
+    private double searchRadius = 0.;
+    
+    /** search steps per distance criterion */
+    private int nStepsPerDTA = 5;
+    
+    /** normalization dose; 0 for the largest reference dose */
+    private double normalizationDose = 0.;
+    
+    /** low dose threshold, as a fraction of the normalization dose */
+    private double lowDoseThreshold = 0.1;
+    
+    /** factor taking evaluated doses to reference units */
+    private double evaluatedScale = 1.;
+    
+    /** gamma of each evaluated voxel */
+    private float[] gamma;
+    
+    /** debug flag */
+    private boolean debug_p = false;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: patient ID, reference RTDOSE or
+     *        .3ddose, evaluated .3ddose, evaluated dose scale, structure
+     *        names...
+     */
+    public static void main(String[] args) {
+        Phantom phantom = new Phantom(args[0]);
+        
+        try {
+            DoseGrid reference = args[1].endsWith(".3ddose") ? DoseGrid.read(new File(args[1]))
+                    : new RTDoseReader(new File(args[1])).read();
+            DoseGrid evaluated = DoseGrid.read(new File(args[2]));
+            GammaEngine engine = new GammaEngine(reference, evaluated);
+            engine.setEvaluatedScale(Double.parseDouble(args[3]));
+            
+            long start = System.currentTimeMillis();
+            engine.compute();
+            System.out.println("Gamma (2%/2 mm) in " + (System.currentTimeMillis() - start)
+                    + " ms; pass rate " + engine.getPassRate());
+            
+            Vector<String> names = new Vector<String>();
+            for (int a = 4; a < args.length; ++a) {
+                names.add(args[a]);
+            }
+            TreeMap<String, Double> rates = engine.getPassRates(phantom.getStructures(), names);
+            for (String name : rates.keySet()) {
+                System.out.println(name + ": " + rates.get(name));
+            }
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
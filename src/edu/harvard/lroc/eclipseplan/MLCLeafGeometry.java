@@ -82,6 +82,18 @@ public class MLCLeafGeometry {
         this.endType = endType;
     }
     
+    /**
+     * 
+     * @return the parameters, comma-separated, in the order of the
+     *         constructor
+     */
+    public String egsnrcFormat() {
+        return this.leafWidth + ", " + this.leafGap + ", " + this.wTongue + ", " + this.hTongue + ", "
+                + this.zTongue + ", " + this.wGroove + ", " + this.hGroove + ", " + this.zGroove + ", "
+                + this.wTip + ", " + this.hTip + ", " + this.tipGap + ", " + this.wSup + ", "
+                + this.hSup + ", " + this.zSup + ", " + this.wRail + ", " + this.zHole + ", "
+                + this.hHole + ", " + this.endType;
+    }
     
     // variable names correspond to the DYNVMLC component module names
     
@@ -36,6 +36,11 @@ import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+// An MLCPosition is a view of one control point of the packed leaf array of
+// an MLCSequence: the A leaves, then the B leaves, starting at offset, as
+// in LeafJawPositions. One made on its own (by the public constructors)
+// has an array of its own.
+
 /** Represents the positions of all MLCPosition leaves at one time.
  *
  * @author David Chin
@@ -46,10 +51,7 @@ public class MLCPosition {
      * 
      */
     public MLCPosition() {
-        this.nLeafPairs = 60;  // default no. of leaf pairs (for Varian)
-        this.allocateLeaves();
-        
-        this.init();
+        this(60);  // default no. of leaf pairs (for Varian)
     }
     
     /**
@@ -58,9 +60,8 @@ public class MLCPosition {
      */
     public MLCPosition(int nLeafPairs) {
         this.nLeafPairs = nLeafPairs;
-        this.allocateLeaves();
-        
-        this.init();
+        this.leaves = new double[2 * nLeafPairs];
+        this.offset = 0;
     }
     
     /**
@@ -69,13 +70,55 @@ public class MLCPosition {
      * @param beamName 
      */
     public MLCPosition(DicomObject ctrlPtDcm, String beamName) {
+        DicomObject beamLimitingDevicePosition = findMLC(ctrlPtDcm);
+                
+        this.nLeafPairs = (beamLimitingDevicePosition == null) ? 0
+                : beamLimitingDevicePosition.getSize(DDict.dLeafJawPositions)/2;
+        this.leaves = new double[2 * this.nLeafPairs];
+        this.offset = 0;
+        this.beamName = beamName;
+        
+        try {
+            if (beamLimitingDevicePosition != null) {
+                readLeaves(beamLimitingDevicePosition, this.leaves, 0, this.nLeafPairs);
+            }
+            this.index = Double.parseDouble(ctrlPtDcm.getS(DDict.dCumulativeMetersetWeight).trim());
+            this.controlPoint = ctrlPtDcm.getI(DDict.dControlPointIndex);
+        } catch (DicomException ex) {
+            Logger.getLogger(MLCPosition.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * View of one control point of a packed leaf array.
+     * @param leaves packed leaf positions (mm)
+     * @param offset index in leaves of the first A leaf
+     * @param nLeafPairs number of leaf pairs
+     * @param index cumulative meterset weight
+     * @param beamName beam name
+     * @param controlPoint control point index
+     */
+    MLCPosition(double[] leaves, int offset, int nLeafPairs, double index,
+            String beamName, int controlPoint) {
+        this.leaves = leaves;
+        this.offset = offset;
+        this.nLeafPairs = nLeafPairs;
+        this.index = index;
+        this.beamName = beamName;
+        this.controlPoint = controlPoint;
+    }
+    
+    /**
+     * If this control point is the first one of the control point sequence,
+     * it will contain jaws data which needs to be ignored. So, search for
+     * the MLC data. Actually, this works even if the jaws data isn't there,
+     * so just do it for all cases.
+     * @param ctrlPtDcm control point
+     * @return the MLC item of its BeamLimitingDevicePositionSequence, or
+     *         null if there is none
+     */
+    static DicomObject findMLC(DicomObject ctrlPtDcm) {
         DicomObject beamLimitingDevicePosition = null;
-
-        // if this control point is the first one of the control point sequence,
-        // it will contain jaws data which needs to be ignored.
-        // so, search for the MLCPosition data
-        // Actually, this works even if the jaws data isn't there, so just
-        // do it for all cases
         int nDevices = ctrlPtDcm.getSize(DDict.dBeamLimitingDevicePositionSequence);
         String devName;
         for (int i = 0; i < nDevices; ++i) {
@@ -83,46 +126,27 @@ public class MLCPosition {
                 beamLimitingDevicePosition = ctrlPtDcm.getSequenceItem(DDict.dBeamLimitingDevicePositionSequence, i);
                 devName = beamLimitingDevicePosition.getS(DDict.dRTBeamLimitingDeviceType);
                 if (devName.startsWith("MLC")) {
-                    break;
+                    return beamLimitingDevicePosition;
                 }
             } catch (DicomException ex) {
                 Logger.getLogger(MLCPosition.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-                
-        this.nLeafPairs = beamLimitingDevicePosition.getSize(DDict.dLeafJawPositions)/2;
-        this.allocateLeaves();
-        
-        try {
-            for (int i = 0; i < this.nLeafPairs; ++i) {
-                this.aLeaves.add(new Double(beamLimitingDevicePosition.getS(DDict.dLeafJawPositions, i)));
-            }
-                    
-            for (int i = this.nLeafPairs; i < this.nLeafPairs * 2; ++i) {        
-                this.bLeaves.add(new Double(beamLimitingDevicePosition.getS(DDict.dLeafJawPositions, i)));
-            }
-        
-            this.index = new Double(ctrlPtDcm.getS(DDict.dCumulativeMetersetWeight));
-                      
-            this.fieldName = beamName + "." + ctrlPtDcm.getS(DDict.dControlPointIndex);
-            
-            
-        } catch (DicomException ex) {
-            Logger.getLogger(MLCPosition.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        return null;
     }
     
-    /** Make vectors for leaves */
-    private void allocateLeaves() {
-        this.aLeaves = new Vector<Double>(this.nLeafPairs);
-        this.bLeaves = new Vector<Double>(this.nLeafPairs);
-    }
-
-    /** Initialize arrays */
-    private void init() {
-        for (int i = 0; i < nLeafPairs; ++i) {
-            this.aLeaves.add(0.);
-            this.bLeaves.add(0.);
+    /**
+     * Copy the LeafJawPositions of an MLC into a packed array.
+     * @param mlcDcm MLC item of a BeamLimitingDevicePositionSequence
+     * @param leaves packed leaf positions
+     * @param offset where to put the first A leaf
+     * @param nLeafPairs number of leaf pairs
+     * @throws com.archimed.dicom.DicomException
+     */
+    static void readLeaves(DicomObject mlcDcm, double[] leaves, int offset, int nLeafPairs)
+            throws DicomException {
+        for (int i = 0; i < 2 * nLeafPairs; ++i) {
+            leaves[offset + i] = Double.parseDouble(mlcDcm.getS(DDict.dLeafJawPositions, i).trim());
         }
     }
 
@@ -130,33 +154,57 @@ public class MLCPosition {
      * 
      * @return Number of leaves
      */
-    public Integer getNLeafPairs() {
+    public int getNLeafPairs() {
         return this.nLeafPairs;
     }
     
+    /**
+     * 
+     * @param i leaf pair, from 0
+     * @return position of A leaf i (mm)
+     */
+    public double getALeaf(int i) {
+        return this.leaves[this.offset + i];
+    }
+    
+    /**
+     * 
+     * @param i leaf pair, from 0
+     * @return position of B leaf i (mm)
+     */
+    public double getBLeaf(int i) {
+        return this.leaves[this.offset + this.nLeafPairs + i];
+    }
+    
     /**
      * 
      * @return Vector of A leaves positions
      */
-    @SuppressWarnings("unchecked")
     public Vector<Double> getALeaves() {
-        return (Vector<Double>) aLeaves.clone();
+        Vector<Double> aLeaves = new Vector<Double>(this.nLeafPairs);
+        for (int i = 0; i < this.nLeafPairs; ++i) {
+            aLeaves.add(this.getALeaf(i));
+        }
+        return aLeaves;
     }
 
     /**
      * 
      * @return Vector of B leaves positions
      */
-    @SuppressWarnings("unchecked")
     public Vector<Double> getBLeaves() {
-        return (Vector<Double>) bLeaves.clone();
+        Vector<Double> bLeaves = new Vector<Double>(this.nLeafPairs);
+        for (int i = 0; i < this.nLeafPairs; ++i) {
+            bLeaves.add(this.getBLeaf(i));
+        }
+        return bLeaves;
     }
     
     @Override
     public String toString() {
-        String ret = "MLC " + this.fieldName + " with " + this.nLeafPairs + " leaf pairs:\n";
-        ret += "    " + this.aLeaves.toString() + "\n";
-        ret += "    " + this.bLeaves.toString() + "\n";
+        String ret = "MLC " + this.getFieldName() + " with " + this.nLeafPairs + " leaf pairs:\n";
+        ret += "    " + this.getALeaves().toString() + "\n";
+        ret += "    " + this.getBLeaves().toString() + "\n";
         return ret;
     }
     
@@ -164,17 +212,33 @@ public class MLCPosition {
      * 
      * @return time index [0.0 -- 1.0]
      */
-    public Double getIndex() {
+    public double getIndex() {
         return this.index;
     }
     
+    /**
+     * 
+     * @return control point index
+     */
+    public int getControlPoint() {
+        return this.controlPoint;
+    }
+    
+    /**
+     * 
+     * @return field name: beamName.ctrlPointIndex
+     */
+    public String getFieldName() {
+        return this.beamName + "." + this.controlPoint;
+    }
+    
     /**
      * 
      * @return a single field specification for a shaper-format .mlc file
      */
     public String shaperFormat() {
         StringBuffer sbuff = new StringBuffer("Field = ");
-        sbuff.append(this.fieldName);
+        sbuff.append(this.getFieldName());
         sbuff.append("\n");
         sbuff.append("Index = ");
         sbuff.append(String.format("% 10.4f\n", this.index));
@@ -185,13 +249,13 @@ public class MLCPosition {
         // A leaves
         for (int i = 0; i < this.nLeafPairs; ++i) {
             sbuff.append("Leaf ");
-            sbuff.append(String.format("%2dA = % 7.2f\n", i+1, this.aLeaves.get(i)));
+            sbuff.append(String.format("%2dA = % 7.2f\n", i+1, this.getALeaf(i)));
         }
         
         // B leaves
         for (int i = 0; i < this.nLeafPairs; ++i) {
             sbuff.append("Leaf ");
-            sbuff.append(String.format("%2dB = % 7.2f\n", i+1, this.bLeaves.get(i)));
+            sbuff.append(String.format("%2dB = % 7.2f\n", i+1, this.getBLeaf(i)));
         }
         
         sbuff.append(String.format("Note = %d\n", this.note));
@@ -217,11 +281,11 @@ public class MLCPosition {
     public String egsnrcFormat() {
         StringBuffer strbuff = new StringBuffer();
         
-        int fieldNo = Integer.parseInt(this.fieldName.split("\\.")[1]) + 1;
+        int fieldNo = this.controlPoint + 1;
         
         for (int i = 0; i < this.nLeafPairs; ++i)
             strbuff.append(String.format("%d, %f, %f, %f\n", fieldNo, 
-                    this.index, this.aLeaves.get(i), this.bLeaves.get(i)));
+                    this.index, this.getALeaf(i), this.getBLeaf(i)));
         
         return strbuff.toString();
     }
@@ -235,25 +299,28 @@ public class MLCPosition {
         
         for (int i = 0; i < this.nLeafPairs; ++i)
             strbuff.append(String.format("%10.6f, %10.6f, %d,\n", 
-                    this.aLeaves.get(i), this.bLeaves.get(i), 1));
+                    this.getALeaf(i), this.getBLeaf(i), 1));
         
         return strbuff.toString();
     }
     
     /** Number of leaves in MLC */
-    private Integer nLeafPairs;
+    private int nLeafPairs;
+    
+    /** Positions of the A leaves, then the B leaves (in mm), from offset */
+    private double[] leaves;
     
-    /** Positions of the A leaves (in mm) */
-    private Vector<Double> aLeaves;
+    /** Index in leaves of the first A leaf */
+    private int offset;
     
-    /** Positions of the B leaves (in mm) */
-    private Vector<Double> bLeaves;
+    /** Beam name, for the field name */
+    private String beamName;
     
-    /** Field name: beamName.ctrlPointIndex */
-    private String fieldName;
+    /** Control point index, for the field name */
+    private int controlPoint;
     
     /** Index -- the "time index" of when this MLCPosition position is in place */
-    private Double index = 0.0;
+    private double index = 0.0;
     
     
     
@@ -295,7 +362,7 @@ public class MLCPosition {
         System.out.println("No. leaf pairs = " + aleaves.size());
         System.out.println(mlc);
         
-        mlc.fieldName = "01_0.0";
+        mlc.beamName = "01";
         System.out.println(mlc.shaperFormat());
         
         System.out.println(mlc.egsnrcInitialFormat());
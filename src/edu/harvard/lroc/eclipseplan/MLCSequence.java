@@ -48,6 +48,33 @@ import java.util.logging.Logger;
 //    2. the subsequent leaf positions are put into a .mlc file. this file is 
 //       NOT in Shaper .mlc format.
 
+// The leaf positions of all control points are packed into one array,
+// control point by control point, each as in LeafJawPositions: the A leaves,
+// then the B leaves. A 180 control point arc of 60 leaf pairs is then one
+// array of 21600 doubles rather than that many Doubles in Vectors. The
+// accessors read straight from the arrays; MLCPosition is kept as a view
+// of one control point.
+//
+// The jaws are packed the same way, X1, X2, Y1, Y2 per control point, and
+// the leaf boundaries (across the direction of leaf motion) come from the
+// LeafPositionBoundaries of the MLC in the BeamLimitingDeviceSequence of
+// the beam, or, if the plan has none, are those of a Varian Millennium 120
+// MLC. The gantry, collimator and couch angles of each control point are
+// packed in threes, with the gantry rotation direction of each alongside,
+// so an arc keeps its gantry angle at every control point rather than only
+// the first; getArcSegments() gives the runs of control points through
+// which the gantry turns one way. A control point which does not give the
+// leaves, the jaws or an angle leaves them where they were.
+//
+// For Monte Carlo, the control points may be resampled: resample() and
+// resampleByMeterset() interpolate the leaves and jaws linearly in
+// meterset, for more steps (a closer approach to the continuous motion) or
+// fewer (faster sampling), and merge() drops control points during which
+// nothing moves by more than a tolerance (one for the leaves and jaws, in
+// mm, and one for the angles, in degrees). Each makes a new MLCSequence from
+// new packed arrays, with its steps numbered 0, 1, ... as control points,
+// since the DYNVMLC fields must be numbered in order.
+
 /** MLC motion sequence for a single treatment field (Beam).
  *
  * @author David Chin
@@ -55,8 +82,7 @@ import java.util.logging.Logger;
  */
 public class MLCSequence {
     public MLCSequence() {
-        this.nSteps = 0;
-        this.mlc = new Vector<MLCPosition>(); 
+        this(0);
     }
     
     /**
@@ -65,7 +91,14 @@ public class MLCSequence {
      */
     public MLCSequence(int nSteps) {
         this.nSteps = nSteps;
-        this.mlc = new Vector<MLCPosition>(this.nSteps);
+        this.nLeafPairs = 0;
+        this.leaves = new double[0];
+        this.jaws = new double[4 * nSteps];
+        this.angles = new double[3 * nSteps];
+        this.directions = new int[nSteps];
+        this.leafBoundaries = new double[0];
+        this.metersetWeights = new double[nSteps];
+        this.controlPoints = new int[nSteps];
     }
     
     /** 
@@ -76,7 +109,6 @@ public class MLCSequence {
      * @throws EclipsePlanException 
      */
     public MLCSequence(String patientID, DicomObject beamDcm) throws DicomException, EclipsePlanException {
-         // TODO: implement
         if (this.debug_p && false) {
             System.out.println("MLCSequence constr. -- nCtrlPts = " + beamDcm.getSize(DDict.dControlPointSequence));
             DumpUtils dumper = new DumpUtils(60, 60, 2, true);
@@ -107,20 +139,119 @@ public class MLCSequence {
             Logger.getLogger(MLCSequence.class.getName()).log(Level.SEVERE, null, ex);
         }
         
-        this.mlc = new Vector<MLCPosition>(this.nSteps);
+        this.metersetWeights = new double[this.nSteps];
+        this.controlPoints = new int[this.nSteps];
+        this.jaws = new double[4 * this.nSteps];
+        this.angles = new double[3 * this.nSteps];
+        this.directions = new int[this.nSteps];
 
         // the beam dicom contains a control point sequence
         // each control point contains the leaf/jaw positions
         for (int i = 0; i < this.nSteps; ++i) {
-            this.mlc.add(new MLCPosition(beamDcm.getSequenceItem(DDict.dControlPointSequence, i), this.beamName));         
+            DicomObject ctrlPtDcm = beamDcm.getSequenceItem(DDict.dControlPointSequence, i);
+            DicomObject mlcDcm = MLCPosition.findMLC(ctrlPtDcm);
+            if (i == 0) {
+                if (mlcDcm == null) {
+                    throw new EclipsePlanException("ERROR: no MLC in first control point of " + this.beamName);
+                }
+                this.nLeafPairs = mlcDcm.getSize(DDict.dLeafJawPositions) / 2;
+                this.leaves = new double[2 * this.nLeafPairs * this.nSteps];
+                this.leafBoundaries = readLeafBoundaries(beamDcm, this.nLeafPairs);
+            }
+            
+            int offset = 2 * this.nLeafPairs * i;
+            if (mlcDcm != null && mlcDcm.getSize(DDict.dLeafJawPositions) == 2 * this.nLeafPairs) {
+                MLCPosition.readLeaves(mlcDcm, this.leaves, offset, this.nLeafPairs);
+            } else {
+                // leaves which do not move need not be repeated
+                System.arraycopy(this.leaves, offset - 2 * this.nLeafPairs, this.leaves, offset,
+                        2 * this.nLeafPairs);
+            }
+            
+            DicomObject xJaws = findJaws(ctrlPtDcm, "X");
+            DicomObject yJaws = findJaws(ctrlPtDcm, "Y");
+            if (i == 0 && (xJaws == null || yJaws == null)) {
+                throw new EclipsePlanException("ERROR: no jaws in first control point of " + this.beamName);
+            }
+            for (int j = X1; j <= Y2; ++j) {
+                DicomObject jawDcm = (j <= X2) ? xJaws : yJaws;
+                this.jaws[4 * i + j] = (jawDcm == null) ? this.jaws[4 * (i - 1) + j]
+                        : Double.parseDouble(jawDcm.getS(DDict.dLeafJawPositions, j % 2).trim());
+            }
+            
+            int[] angleTags = { DDict.dGantryAngle, DDict.dBeamLimitingDeviceAngle, DDict.dPatientSupportAngle };
+            for (int a = GANTRY; a <= COUCH; ++a) {
+                String angle = ctrlPtDcm.getS(angleTags[a]);
+                this.angles[3 * i + a] = (angle != null) ? Double.parseDouble(angle.trim())
+                        : (i > 0) ? this.angles[3 * (i - 1) + a] : 0.;
+            }
+            String direction = ctrlPtDcm.getS(DDict.dGantryRotationDirection);
+            if (direction == null) {
+                this.directions[i] = (i > 0) ? this.directions[i - 1] : NONE;
+            } else if (direction.trim().equalsIgnoreCase("CW")) {
+                this.directions[i] = CW;
+            } else if (direction.trim().equalsIgnoreCase("CC")) {
+                this.directions[i] = CC;
+            } else {
+                this.directions[i] = NONE;
+            }
+            
+            this.metersetWeights[i] = Double.parseDouble(ctrlPtDcm.getS(DDict.dCumulativeMetersetWeight).trim());
+            this.controlPoints[i] = ctrlPtDcm.getI(DDict.dControlPointIndex);
+        }
+    }
+    
+    /**
+     * An empty copy of a sequence, of nSteps steps, to be filled by
+     * resampling.
+     * @param source sequence resampled
+     * @param nSteps number of time steps
+     */
+    private MLCSequence(MLCSequence source, int nSteps) {
+        this.nSteps = nSteps;
+        this.nLeafPairs = source.nLeafPairs;
+        this.leaves = new double[2 * this.nLeafPairs * nSteps];
+        this.jaws = new double[4 * nSteps];
+        this.angles = new double[3 * nSteps];
+        this.directions = new int[nSteps];
+        this.leafBoundaries = source.leafBoundaries;
+        this.metersetWeights = new double[nSteps];
+        this.controlPoints = new int[nSteps];
+        for (int step = 0; step < nSteps; ++step) {
+            this.controlPoints[step] = step;
         }
+        this.beamName = source.beamName;
+        this.patientID = source.patientID;
+        this.patientFirstName = source.patientFirstName;
+        this.patientLastName = source.patientLastName;
     }
     
     /** Number of time steps */
-    private Integer nSteps;
+    private int nSteps;
+    
+    /** Number of leaf pairs */
+    private int nLeafPairs;
+    
+    /** Leaf positions (mm): for each step, the A leaves then the B leaves */
+    private double[] leaves;
+    
+    /** Jaw positions (mm): for each step, X1, X2, Y1, Y2 */
+    private double[] jaws;
+    
+    /** Angles (degrees): for each step, gantry, collimator, couch */
+    private double[] angles;
     
-    /** Vector of MLC positions */
-    private Vector<MLCPosition> mlc;
+    /** Gantry rotation direction of each step: CW, CC or NONE */
+    private int[] directions;
+    
+    /** Leaf boundaries (mm), across the direction of leaf motion */
+    private double[] leafBoundaries;
+    
+    /** Cumulative meterset weight of each step */
+    private double[] metersetWeights;
+    
+    /** Control point index of each step */
+    private int[] controlPoints;
     
     /** Beam name */
     private String beamName;
@@ -140,22 +271,536 @@ public class MLCSequence {
     /** 
      * @return Number of leaves
      */
-    public Integer getNLeafPairs() {
-        Integer nLeaves = 0;
+    public int getNLeafPairs() {
+        return this.nLeafPairs;
+    }
+    
+    /**
+     * 
+     * @return number of time steps (control points)
+     */
+    public int getNSteps() {
+        return this.nSteps;
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @param i leaf pair, from 0
+     * @return position of A leaf i at step (mm)
+     */
+    public double getALeaf(int step, int i) {
+        return this.leaves[2 * this.nLeafPairs * step + i];
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @param i leaf pair, from 0
+     * @return position of B leaf i at step (mm)
+     */
+    public double getBLeaf(int step, int i) {
+        return this.leaves[2 * this.nLeafPairs * step + this.nLeafPairs + i];
+    }
+    
+    /**
+     * Copy the leaf positions of one step.
+     * @param step time step
+     * @param out where to put the A leaves, then the B leaves (mm); at
+     *        least 2*getNLeafPairs() long
+     */
+    public void getLeaves(int step, double[] out) {
+        System.arraycopy(this.leaves, 2 * this.nLeafPairs * step, out, 0, 2 * this.nLeafPairs);
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @param jaw X1, X2, Y1 or Y2
+     * @return position of jaw at step (mm)
+     */
+    public double getJaw(int step, int jaw) {
+        return this.jaws[4 * step + jaw];
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @return jaws at step
+     */
+    public Jaws getJaws(int step) {
+        return new Jaws(this.jaws[4 * step + X1], this.jaws[4 * step + X2],
+                this.jaws[4 * step + Y1], this.jaws[4 * step + Y2]);
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @return gantry angle at step (degrees)
+     */
+    public double getGantryAngle(int step) {
+        return this.angles[3 * step + GANTRY];
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @return collimator angle at step (degrees)
+     */
+    public double getCollimatorAngle(int step) {
+        return this.angles[3 * step + COLLIMATOR];
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @return couch angle at step (degrees)
+     */
+    public double getCouchAngle(int step) {
+        return this.angles[3 * step + COUCH];
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @return which way the gantry turns from step to the next: CW, CC or
+     *         NONE
+     */
+    public int getGantryRotationDirection(int step) {
+        return this.directions[step];
+    }
+    
+    /**
+     * Leaf pair i lies between boundaries i and i+1.
+     * @param i boundary, from 0 to getNLeafPairs()
+     * @return position of boundary i (mm)
+     */
+    public double getLeafBoundary(int i) {
+        return this.leafBoundaries[i];
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @return cumulative meterset weight of step [0.0 -- 1.0]
+     */
+    public double getCumulativeMetersetWeight(int step) {
+        return this.metersetWeights[step];
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @return control point index of step
+     */
+    public int getControlPoint(int step) {
+        return this.controlPoints[step];
+    }
+    
+    /**
+     * 
+     * @return beam name
+     */
+    public String getBeamName() {
+        return this.beamName;
+    }
+    
+    /**
+     * 
+     * @param step time step
+     * @return view of the leaf positions of step
+     */
+    public MLCPosition getPosition(int step) {
+        return new MLCPosition(this.leaves, 2 * this.nLeafPairs * step, this.nLeafPairs,
+                this.metersetWeights[step], this.beamName, this.controlPoints[step]);
+    }
+    
+    /**
+     * Resample to nSteps steps evenly spaced in meterset. Control points
+     * between two of the new steps are lost, including leaf motion with
+     * the beam off.
+     * @param nSteps number of steps, at least 2
+     * @return resampled sequence
+     */
+    public MLCSequence resample(int nSteps) {
+        if (nSteps < 2 || this.nSteps < 2) {
+            throw new IllegalArgumentException("Cannot resample " + this.nSteps + " steps to " + nSteps);
+        }
         
-        if (this.debug_p) {
-            System.out.println("getNLeafPairs: mlc.size = " + this.mlc.size());
+        double first = this.metersetWeights[0];
+        double last = this.metersetWeights[this.nSteps - 1];
+        MLCSequence resampled = new MLCSequence(this, nSteps);
+        int k = 0;
+        for (int step = 0; step < nSteps; ++step) {
+            double w = (step == nSteps - 1) ? last : first + (last - first) * step / (nSteps - 1);
+            // last control point at or before w, but not the last one
+            while (k + 2 < this.nSteps && this.metersetWeights[k + 1] <= w) {
+                ++k;
+            }
+            double dw = this.metersetWeights[k + 1] - this.metersetWeights[k];
+            double f = (dw > 0.) ? Math.min(1., Math.max(0., (w - this.metersetWeights[k]) / dw)) : 1.;
+            resampled.metersetWeights[step] = w;
+            this.interpolate(k, f, resampled, step);
         }
         
-        if (this.mlc.size() > 0) {
-            nLeaves = this.mlc.get(0).getNLeafPairs();
-            
-            System.out.println(this.mlc.get(0).toString());
-        } 
+        return resampled;
+    }
+    
+    /**
+     * Resample so that no step delivers more than muPerStep, splitting
+     * each segment between control points evenly; every control point is
+     * kept.
+     * @param muPerStep largest meterset of a step (MU)
+     * @param meterset meterset of the beam (MU)
+     * @return resampled sequence
+     */
+    public MLCSequence resampleByMeterset(double muPerStep, double meterset) {
+        if (muPerStep <= 0.) {
+            throw new IllegalArgumentException("MU per step must be positive: " + muPerStep);
+        }
+        
+        int[] nSplits = new int[Math.max(0, this.nSteps - 1)];
+        int nNewSteps = Math.min(1, this.nSteps);
+        for (int k = 0; k + 1 < this.nSteps; ++k) {
+            double mu = meterset * (this.metersetWeights[k + 1] - this.metersetWeights[k]);
+            nSplits[k] = Math.max(1, (int) Math.ceil(mu / muPerStep - 1.e-9));
+            nNewSteps += nSplits[k];
+        }
         
-        return nLeaves;
+        MLCSequence resampled = new MLCSequence(this, nNewSteps);
+        int step = 0;
+        for (int k = 0; k + 1 < this.nSteps; ++k) {
+            for (int s = 0; s < nSplits[k]; ++s) {
+                double f = (double) s / nSplits[k];
+                resampled.metersetWeights[step] = this.metersetWeights[k]
+                        + f * (this.metersetWeights[k + 1] - this.metersetWeights[k]);
+                this.interpolate(k, f, resampled, step);
+                ++step;
+            }
+        }
+        if (this.nSteps > 0) {
+            this.copyStep(this.nSteps - 1, resampled, step);
+        }
+        
+        return resampled;
+    }
+    
+    /**
+     * Merge runs of control points in which no leaf or jaw moves by more
+     * than tolerance (mm) from the first of the run, and no angle changes
+     * at all.
+     * @param tolerance largest leaf or jaw movement within a run (mm)
+     * @return merged sequence
+     */
+    public MLCSequence merge(double tolerance) {
+        return this.merge(tolerance, ANGLE_TOLERANCE);
+    }
+    
+    /**
+     * Merge runs of control points in which no leaf or jaw moves by more
+     * than leafTolerance (mm), and no angle changes by more than
+     * angleTolerance (degrees), from the first of the run: only the first
+     * and last of each run are kept, so when the motion starts and stops is
+     * unchanged. The first and last control points are always kept.
+     * @param leafTolerance largest leaf or jaw movement within a run (mm)
+     * @param angleTolerance largest gantry, collimator or couch rotation
+     *        within a run (degrees)
+     * @return merged sequence
+     */
+    public MLCSequence merge(double leafTolerance, double angleTolerance) {
+        boolean[] keep_p = new boolean[this.nSteps];
+        int nKept = 0;
+        int runStart = 0;
+        for (int step = 0; step < this.nSteps; ++step) {
+            if (step == 0 || step == this.nSteps - 1
+                    || this.moved_p(runStart, step, leafTolerance, angleTolerance)) {
+                keep_p[step] = true;
+                runStart = step;
+            } else if (this.moved_p(runStart, step + 1, leafTolerance, angleTolerance)) {
+                // the end of a run
+                keep_p[step] = true;
+                runStart = step;
+            }
+            if (keep_p[step]) {
+                ++nKept;
+            }
+        }
+        
+        MLCSequence merged = new MLCSequence(this, nKept);
+        int kept = 0;
+        for (int step = 0; step < this.nSteps; ++step) {
+            if (keep_p[step]) {
+                this.copyStep(step, merged, kept);
+                ++kept;
+            }
+        }
+        
+        return merged;
+    }
+    
+    /**
+     * 
+     * @param step1 one step
+     * @param step2 another step
+     * @param leafTolerance largest leaf or jaw movement (mm)
+     * @param angleTolerance largest rotation (degrees)
+     * @return predicate: some leaf or jaw, or some angle, differs by more
+     *         than its tolerance between the steps
+     */
+    private boolean moved_p(int step1, int step2, double leafTolerance, double angleTolerance) {
+        return this.maxLeafDifference(step1, step2) > leafTolerance
+                || this.maxAngleDifference(step1, step2) > angleTolerance;
+    }
+    
+    /**
+     * 
+     * @param step1 one step
+     * @param step2 another step
+     * @return largest difference of any leaf or jaw (mm) between the steps
+     */
+    private double maxLeafDifference(int step1, int step2) {
+        double max = 0.;
+        int n = 2 * this.nLeafPairs;
+        for (int i = 0; i < n; ++i) {
+            max = Math.max(max, Math.abs(this.leaves[n * step1 + i] - this.leaves[n * step2 + i]));
+        }
+        for (int j = X1; j <= Y2; ++j) {
+            max = Math.max(max, Math.abs(this.jaws[4 * step1 + j] - this.jaws[4 * step2 + j]));
+        }
+        return max;
+    }
+    
+    /**
+     * 
+     * @param step1 one step
+     * @param step2 another step
+     * @return largest difference of the gantry, collimator or couch angle
+     *         (degrees) between the steps
+     */
+    private double maxAngleDifference(int step1, int step2) {
+        double max = 0.;
+        for (int a = GANTRY; a <= COUCH; ++a) {
+            max = Math.max(max, Math.abs(angleDifference(this.angles[3 * step1 + a],
+                    this.angles[3 * step2 + a], NONE)));
+        }
+        return max;
+    }
+    
+    /**
+     * Interpolate the leaves, jaws and angles between step k and step k+1.
+     * The gantry turns the way it is going at step k; the other angles
+     * take the shorter way round.
+     * @param k step
+     * @param f fraction of the way from step k to step k+1
+     * @param target sequence to set
+     * @param step step of target to set
+     */
+    private void interpolate(int k, double f, MLCSequence target, int step) {
+        int n = 2 * this.nLeafPairs;
+        for (int i = 0; i < n; ++i) {
+            double p0 = this.leaves[n * k + i];
+            target.leaves[n * step + i] = p0 + f * (this.leaves[n * (k + 1) + i] - p0);
+        }
+        for (int j = X1; j <= Y2; ++j) {
+            double p0 = this.jaws[4 * k + j];
+            target.jaws[4 * step + j] = p0 + f * (this.jaws[4 * (k + 1) + j] - p0);
+        }
+        for (int a = GANTRY; a <= COUCH; ++a) {
+            double a0 = this.angles[3 * k + a];
+            double delta = angleDifference(a0, this.angles[3 * (k + 1) + a],
+                    (a == GANTRY) ? this.directions[k] : NONE);
+            target.angles[3 * step + a] = normalizeAngle(a0 + f * delta);
+        }
+        target.directions[step] = this.directions[k];
+    }
+    
+    /**
+     * 
+     * @param k step
+     * @param target sequence to set
+     * @param step step of target to set to step k
+     */
+    private void copyStep(int k, MLCSequence target, int step) {
+        int n = 2 * this.nLeafPairs;
+        System.arraycopy(this.leaves, n * k, target.leaves, n * step, n);
+        System.arraycopy(this.jaws, 4 * k, target.jaws, 4 * step, 4);
+        System.arraycopy(this.angles, 3 * k, target.angles, 3 * step, 3);
+        target.directions[step] = this.directions[k];
+        target.metersetWeights[step] = this.metersetWeights[k];
     }
     
+    /**
+     * 
+     * @param a0 one angle (degrees)
+     * @param a1 another angle (degrees)
+     * @param direction CW to go by increasing angle, CC by decreasing, NONE
+     *        by the shorter way
+     * @return a1 - a0, going round in direction (degrees)
+     */
+    static double angleDifference(double a0, double a1, int direction) {
+        double delta = normalizeAngle(a1 - a0);
+        if (direction == CC) {
+            return (delta > 0.) ? delta - 360. : delta;
+        } else if (direction == NONE && delta > 180.) {
+            return delta - 360.;
+        }
+        return delta;
+    }
+    
+    /**
+     * 
+     * @param angle angle (degrees)
+     * @return the same angle in [0, 360)
+     */
+    static double normalizeAngle(double angle) {
+        double a = angle % 360.;
+        if (a < 0.) {
+            a += 360.;
+        }
+        return (a >= 360.) ? 0. : a;
+    }
+    
+    /**
+     * The arcs of the sequence: runs of steps through which the gantry
+     * turns one way.
+     * @return arc segments, in order; none if the gantry does not move
+     */
+    public Vector<ArcSegment> getArcSegments() {
+        Vector<ArcSegment> arcs = new Vector<ArcSegment>();
+        int start = -1;
+        int direction = NONE;
+        for (int k = 0; k + 1 <= this.nSteps; ++k) {
+            // which way the gantry turns from step k to step k+1
+            int d = NONE;
+            if (k + 1 < this.nSteps) {
+                double delta = angleDifference(this.angles[3 * k + GANTRY],
+                        this.angles[3 * (k + 1) + GANTRY], this.directions[k]);
+                if (Math.abs(delta) > ANGLE_TOLERANCE) {
+                    d = (delta > 0.) ? CW : CC;
+                }
+            }
+            if (d != direction) {
+                if (direction != NONE) {
+                    arcs.add(new ArcSegment(this, start, k, direction));
+                }
+                start = k;
+                direction = d;
+            }
+        }
+        return arcs;
+    }
+    
+    /**
+     * 
+     * @return predicate: the gantry turns during the sequence
+     */
+    public boolean isArc() {
+        return !this.getArcSegments().isEmpty();
+    }
+    
+    /**
+     * 
+     * @param ctrlPtDcm control point Dicom object
+     * @param axis "X" or "Y"
+     * @return the jaws along axis, or null if the control point has none
+     * @throws com.archimed.dicom.DicomException
+     */
+    private static DicomObject findJaws(DicomObject ctrlPtDcm, String axis) throws DicomException {
+        int nDevices = ctrlPtDcm.getSize(DDict.dBeamLimitingDevicePositionSequence);
+        for (int i = 0; i < nDevices; ++i) {
+            DicomObject devPos = ctrlPtDcm.getSequenceItem(DDict.dBeamLimitingDevicePositionSequence, i);
+            String devName = devPos.getS(DDict.dRTBeamLimitingDeviceType);
+            if (devName.equalsIgnoreCase(axis) || devName.equalsIgnoreCase("ASYM" + axis)) {
+                return devPos;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 
+     * @param beamDcm beam Dicom object
+     * @param nLeafPairs number of leaf pairs
+     * @return LeafPositionBoundaries of the MLC of the beam, or those of a
+     *         Millennium 120 if the beam has none, or not as many as it
+     *         should
+     * @throws com.archimed.dicom.DicomException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException if there are
+     *         no boundaries, and not 60 leaf pairs
+     */
+    private static double[] readLeafBoundaries(DicomObject beamDcm, int nLeafPairs)
+            throws DicomException, EclipsePlanException {
+        int nDevices = beamDcm.getSize(DDict.dBeamLimitingDeviceSequence);
+        for (int i = 0; i < nDevices; ++i) {
+            DicomObject devDcm = beamDcm.getSequenceItem(DDict.dBeamLimitingDeviceSequence, i);
+            if (devDcm.getS(DDict.dRTBeamLimitingDeviceType).startsWith("MLC")
+                    && devDcm.getSize(DDict.dLeafPositionBoundaries) == nLeafPairs + 1) {
+                double[] boundaries = new double[nLeafPairs + 1];
+                for (int b = 0; b <= nLeafPairs; ++b) {
+                    boundaries[b] = Double.parseDouble(devDcm.getS(DDict.dLeafPositionBoundaries, b).trim());
+                }
+                return boundaries;
+            }
+        }
+        
+        if (nLeafPairs != MILLENNIUM_120_LEAF_PAIRS) {
+            throw new EclipsePlanException("ERROR: no LeafPositionBoundaries for " + nLeafPairs
+                    + " leaf pairs");
+        }
+        return millennium120Boundaries();
+    }
+    
+    /**
+     * 
+     * @return leaf boundaries of a Varian Millennium 120 MLC (mm): 10 leaf
+     *         pairs of 10 mm, 40 of 5 mm, then 10 of 10 mm
+     */
+    static double[] millennium120Boundaries() {
+        double[] boundaries = new double[MILLENNIUM_120_LEAF_PAIRS + 1];
+        double y = -200.;
+        for (int b = 0; b <= MILLENNIUM_120_LEAF_PAIRS; ++b) {
+            boundaries[b] = y;
+            y += (b < 10 || b >= 50) ? 10. : 5.;
+        }
+        return boundaries;
+    }
+    
+    /** index of the X1 jaw in getJaw() */
+    public static final int X1 = 0;
+    
+    /** index of the X2 jaw in getJaw() */
+    public static final int X2 = 1;
+    
+    /** index of the Y1 jaw in getJaw() */
+    public static final int Y1 = 2;
+    
+    /** index of the Y2 jaw in getJaw() */
+    public static final int Y2 = 3;
+    
+    /** index of the gantry angle in the packed angles */
+    private static final int GANTRY = 0;
+    
+    /** index of the collimator angle in the packed angles */
+    private static final int COLLIMATOR = 1;
+    
+    /** index of the couch angle in the packed angles */
+    private static final int COUCH = 2;
+    
+    /** gantry rotation: clockwise, i.e. by increasing angle */
+    public static final int CW = 1;
+    
+    /** gantry rotation: counter-clockwise, i.e. by decreasing angle */
+    public static final int CC = -1;
+    
+    /** no gantry rotation */
+    public static final int NONE = 0;
+    
+    /** smallest gantry movement between control points counted as turning (degrees) */
+    private static final double ANGLE_TOLERANCE = 1.e-6;
+    
+    /** number of leaf pairs of a Millennium 120 MLC */
+    private static final int MILLENNIUM_120_LEAF_PAIRS = 60;
+    
     /**
      * 
      * @return MLCPosition sequence in Shaper format
@@ -180,8 +825,8 @@ public class MLCSequence {
         // Eclipse-export shaper mlc file
         strbuff.append(String.format("Tolerance = % 10.4f\n\n", 0.2)); 
         
-        for (MLCPosition m : this.mlc) {
-            strbuff.append(m.shaperFormat());
+        for (int step = 0; step < this.nSteps; ++step) {
+            strbuff.append(this.getPosition(step).shaperFormat());
         }
         
         // dunno how to compute the actual CRC. for EGS, it's ignored
@@ -220,9 +865,16 @@ public class MLCSequence {
     
     
     
-    @SuppressWarnings("unchecked")
+    /**
+     * 
+     * @return views of the leaf positions of every step
+     */
     public Vector<MLCPosition> getMLC() {
-        return (Vector<MLCPosition>) mlc.clone();
+        Vector<MLCPosition> mlc = new Vector<MLCPosition>(this.nSteps);
+        for (int step = 0; step < this.nSteps; ++step) {
+            mlc.add(this.getPosition(step));
+        }
+        return mlc;
     }
     
     @Override
@@ -294,7 +946,7 @@ public class MLCSequence {
             
             System.out.println(ms.toString());
             
-            for (MLCPosition mlc : ms.mlc) {
+            for (MLCPosition mlc : ms.getMLC()) {
                 System.out.println(mlc.shaperFormat());
             }
             
@@ -0,0 +1,404 @@
+/* MaskSlice.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.util.Arrays;
+
+// Structures are mostly solid, so each row of a slice is a few runs of
+// voxels rather than a scatter of them. A slice is kept as the runs of each
+// row, packed the same way as the crossings in the rasterizer: one int
+// array of run boundaries, start (inclusive) and end (exclusive) in turn,
+// row after row, and an array of where each row starts in it. A 512x512
+// slice of a body contour is then a few kB rather than 32 kB, and an organ
+// a few hundred bytes.
+//
+// Boolean operations sweep the run boundaries of the two slices row by
+// row, as in merging two sorted lists, without ever expanding a row to
+// bits. The same sweep does union, intersection, difference and XOR; only
+// the rule for "inside the result" changes.
+
+/**
+ * Voxels of one slice of a StructureMask, stored as runs along x for each
+ * row. Immutable.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class MaskSlice {
+    /**
+     * 
+     * @param rowStart index in runs of the first run of each row, plus one
+     *        past the last run of the last row
+     * @param runs run boundaries: start, end, start, end, ...
+     */
+    private MaskSlice(int[] rowStart, int[] runs) {
+        this.rowStart = rowStart;
+        this.runs = runs;
+    }
+    
+    /**
+     * 
+     * @return number of rows (voxels along y)
+     */
+    public int getNy() {
+        return this.rowStart.length - 1;
+    }
+    
+    /**
+     * 
+     * @param i x index
+     * @param j y index
+     * @return predicate: voxel (i,j) is set
+     */
+    public boolean isSet(int i, int j) {
+        // runs of a row are sorted, so binary search the starts
+        int lo = this.rowStart[j] / 2;
+        int hi = this.rowStart[j+1] / 2;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.runs[2*mid] <= i) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo > this.rowStart[j] / 2 && i < this.runs[2*lo - 1];
+    }
+    
+    /**
+     * 
+     * @param j y index
+     * @return number of runs in row j
+     */
+    public int getNRuns(int j) {
+        return (this.rowStart[j+1] - this.rowStart[j]) / 2;
+    }
+    
+    /**
+     * 
+     * @param j y index
+     * @param r run number within the row
+     * @return x index of the first voxel of the run
+     */
+    public int getRunStart(int j, int r) {
+        return this.runs[this.rowStart[j] + 2*r];
+    }
+    
+    /**
+     * 
+     * @param j y index
+     * @param r run number within the row
+     * @return x index one past the last voxel of the run
+     */
+    public int getRunEnd(int j, int r) {
+        return this.runs[this.rowStart[j] + 2*r + 1];
+    }
+    
+    /**
+     * 
+     * @return number of voxels set
+     */
+    public long cardinality() {
+        long n = 0;
+        for (int r = 0; r < this.runs.length; r += 2) {
+            n += this.runs[r+1] - this.runs[r];
+        }
+        return n;
+    }
+    
+    /**
+     * 
+     * @return { imin, imax, jmin, jmax } of the voxels set, upper bounds
+     *         exclusive
+     */
+    public int[] getIndexBounds() {
+        int[] bounds = { Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 0 };
+        for (int j = 0; j < this.getNy(); ++j) {
+            if (this.rowStart[j] == this.rowStart[j+1]) {
+                continue;
+            }
+            bounds[0] = Math.min(bounds[0], this.runs[this.rowStart[j]]);
+            bounds[1] = Math.max(bounds[1], this.runs[this.rowStart[j+1] - 1]);
+            bounds[2] = Math.min(bounds[2], j);
+            bounds[3] = j + 1;
+        }
+        return bounds;
+    }
+    
+    /**
+     * 
+     * @return bytes used by the runs
+     */
+    public long getMemoryUse() {
+        return 4L * (this.rowStart.length + this.runs.length);
+    }
+    
+    /**
+     * 
+     * @param a slice, or null for an empty one
+     * @param b slice, or null for an empty one
+     * @return voxels set in a or b, or null if none
+     */
+    public static MaskSlice union(MaskSlice a, MaskSlice b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return combine(a, b, UNION);
+    }
+    
+    /**
+     * 
+     * @param a slice, or null for an empty one
+     * @param b slice, or null for an empty one
+     * @return voxels set in both a and b, or null if none
+     */
+    public static MaskSlice intersect(MaskSlice a, MaskSlice b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        return combine(a, b, INTERSECT);
+    }
+    
+    /**
+     * 
+     * @param a slice, or null for an empty one
+     * @param b slice, or null for an empty one
+     * @return voxels set in a but not in b, or null if none
+     */
+    public static MaskSlice subtract(MaskSlice a, MaskSlice b) {
+        if (a == null || b == null) {
+            return a;
+        }
+        return combine(a, b, SUBTRACT);
+    }
+    
+    /**
+     * 
+     * @param a slice, or null for an empty one
+     * @param b slice, or null for an empty one
+     * @return voxels set in exactly one of a and b, or null if none
+     */
+    public static MaskSlice xor(MaskSlice a, MaskSlice b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return combine(a, b, XOR);
+    }
+    
+    /**
+     * Sweep the run boundaries of two slices, row by row.
+     * @param a slice
+     * @param b slice, with the same number of rows
+     * @param op UNION, INTERSECT, SUBTRACT or XOR
+     * @return the result, or null if empty
+     */
+    private static MaskSlice combine(MaskSlice a, MaskSlice b, int op) {
+        int ny = a.getNy();
+        if (b.getNy() != ny) {
+            throw new IllegalArgumentException("slices differ in size: "
+                    + ny + " and " + b.getNy() + " rows");
+        }
+        
+        Builder builder = new Builder(ny, a.runs.length + b.runs.length);
+        for (int j = 0; j < ny; ++j) {
+            int pa = a.rowStart[j];
+            int ea = a.rowStart[j+1];
+            int pb = b.rowStart[j];
+            int eb = b.rowStart[j+1];
+            
+            // even index into runs = outside, odd = inside
+            boolean in = false;
+            int start = 0;
+            while (pa < ea || pb < eb) {
+                int x;
+                if (pb >= eb || (pa < ea && a.runs[pa] <= b.runs[pb])) {
+                    x = a.runs[pa];
+                } else {
+                    x = b.runs[pb];
+                }
+                
+                // step over every boundary at x
+                while (pa < ea && a.runs[pa] == x) {
+                    ++pa;
+                }
+                while (pb < eb && b.runs[pb] == x) {
+                    ++pb;
+                }
+                
+                boolean inA = (pa - a.rowStart[j]) % 2 == 1;
+                boolean inB = (pb - b.rowStart[j]) % 2 == 1;
+                boolean now;
+                switch (op) {
+                    case UNION:
+                        now = inA || inB;
+                        break;
+                    case INTERSECT:
+                        now = inA && inB;
+                        break;
+                    case SUBTRACT:
+                        now = inA && !inB;
+                        break;
+                    default:
+                        now = inA != inB;
+                        break;
+                }
+                
+                if (now && !in) {
+                    start = x;
+                } else if (!now && in) {
+                    builder.addRun(j, start, x);
+                }
+                in = now;
+            }
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Builds a MaskSlice from runs given in order: row by row, and along
+     * each row left to right. Touching runs are merged.
+     */
+    static class Builder {
+        /**
+         * 
+         * @param ny number of rows
+         * @param capacity expected number of run boundaries
+         */
+        Builder(int ny, int capacity) {
+            this.rowStart = new int[ny + 1];
+            this.runs = new int[Math.max(capacity, 16)];
+        }
+        
+        /**
+         * 
+         * @param j y index; not less than that of the previous run
+         * @param start x index of first voxel of run; not less than the end
+         *        of the previous run in the same row
+         * @param end x index one past the last voxel of the run
+         */
+        void addRun(int j, int start, int end) {
+            if (start >= end) {
+                return;
+            }
+            
+            // finish the rows up to j
+            while (this.row < j) {
+                this.rowStart[++this.row] = this.n;
+            }
+            
+            if (this.n > this.rowStart[j] && this.runs[this.n - 1] >= start) {
+                this.runs[this.n - 1] = Math.max(this.runs[this.n - 1], end);
+                return;
+            }
+            
+            if (this.n + 2 > this.runs.length) {
+                this.runs = Arrays.copyOf(this.runs, 2 * this.runs.length);
+            }
+            this.runs[this.n++] = start;
+            this.runs[this.n++] = end;
+        }
+        
+        /**
+         * 
+         * @return the slice, or null if no runs were added
+         */
+        MaskSlice build() {
+            if (this.n == 0) {
+                return null;
+            }
+            
+            while (this.row < this.rowStart.length - 1) {
+                this.rowStart[++this.row] = this.n;
+            }
+            return new MaskSlice(this.rowStart, Arrays.copyOf(this.runs, this.n));
+        }
+        
+        /** where each row starts in runs */
+        private int[] rowStart;
+        
+        /** run boundaries so far */
+        private int[] runs;
+        
+        /** number of run boundaries so far */
+        private int n = 0;
+        
+        /** current row */
+        private int row = 0;
+    }
+    
+    @Override
+    public String toString() {
+        return "MaskSlice -- no. of voxels: " + this.cardinality()
+                + "; no. of runs: " + this.runs.length / 2;
+    }
+    
+    /** sweep rules */
+    private static final int UNION = 0;
+    private static final int INTERSECT = 1;
+    private static final int SUBTRACT = 2;
+    private static final int XOR = 3;
+    
+    /** index in runs of the first run of each row, and one past the end */
+    private int[] rowStart;
+    
+    /** run boundaries, start (inclusive) and end (exclusive) in turn */
+    private int[] runs;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: none
+     */
+    public static void main(String[] args) {
+        Builder a = new Builder(4, 0);
+        a.addRun(0, 2, 8);
+        a.addRun(1, 0, 3);
+        a.addRun(1, 5, 9);
+        a.addRun(3, 4, 6);
+        
+        Builder b = new Builder(4, 0);
+        b.addRun(0, 4, 10);
+        b.addRun(1, 2, 6);
+        b.addRun(2, 1, 2);
+        
+        MaskSlice sa = a.build();
+        MaskSlice sb = b.build();
+        System.out.println("a: " + sa);
+        System.out.println("b: " + sb);
+        System.out.println("a | b: " + MaskSlice.union(sa, sb));
+        System.out.println("a & b: " + MaskSlice.intersect(sa, sb));
+        System.out.println("a - b: " + MaskSlice.subtract(sa, sb));
+        System.out.println("a ^ b: " + MaskSlice.xor(sa, sb));
+    }
+}
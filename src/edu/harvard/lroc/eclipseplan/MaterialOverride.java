@@ -0,0 +1,159 @@
+/* MaterialOverride.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.util.Vector;
+
+/**
+ * Rule forcing every voxel of a structure to a given material and mass
+ * density, e.g. for contrast, implants or bolus.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class MaterialOverride {
+    /**
+     * 
+     * @param structureName name of structure (ROI) to override
+     * @param materialName name of material, as in MaterialMap
+     * @param density mass density (g/cm^3)
+     * @throws edu.harvard.lroc.eclipseplan.MaterialException
+     */
+    public MaterialOverride(String structureName, String materialName, float density)
+            throws MaterialException {
+        MaterialMap.getInstance();
+        if (!MaterialMap.containsKey(materialName)) {
+            throw new MaterialException("Unknown material: " + materialName);
+        }
+        
+        if (!(density > 0.)) {
+            throw new MaterialException("Bad density for " + materialName + ": " + density);
+        }
+        
+        this.structureName = structureName;
+        this.materialName = materialName;
+        this.material = MaterialMap.get(materialName);
+        this.density = density;
+    }
+    
+    /**
+     * Parse overrides of the form
+     *     ROI=MATERIAL:density;ROI=MATERIAL:density;...
+     * e.g. "bolus=ICRUTISSUE700ICRU:1.03;contrast=H2O700ICRU:1.0"
+     * @param spec overrides
+     * @return overrides, in the order given
+     * @throws edu.harvard.lroc.eclipseplan.MaterialException
+     */
+    public static Vector<MaterialOverride> parse(String spec) throws MaterialException {
+        Vector<MaterialOverride> overrides = new Vector<MaterialOverride>();
+        
+        for (String rule : spec.split(";")) {
+            if (rule.trim().length() == 0) {
+                continue;
+            }
+            
+            int eq = rule.lastIndexOf('=');
+            int colon = rule.lastIndexOf(':');
+            if (eq <= 0 || colon < eq) {
+                throw new MaterialException("Bad override: " + rule);
+            }
+            
+            try {
+                overrides.add(new MaterialOverride(rule.substring(0, eq).trim(),
+                        rule.substring(eq + 1, colon).trim(),
+                        Float.parseFloat(rule.substring(colon + 1).trim())));
+            } catch (NumberFormatException ex) {
+                throw new MaterialException("Bad density in override: " + rule);
+            }
+        }
+        
+        return overrides;
+    }
+    
+    /**
+     * 
+     * @return name of structure to override
+     */
+    public String getStructureName() {
+        return this.structureName;
+    }
+    
+    /**
+     * 
+     * @return name of material
+     */
+    public String getMaterialName() {
+        return this.materialName;
+    }
+    
+    /**
+     * 
+     * @return material number
+     */
+    public int getMaterial() {
+        return this.material;
+    }
+    
+    /**
+     * 
+     * @return mass density (g/cm^3)
+     */
+    public float getDensity() {
+        return this.density;
+    }
+    
+    @Override
+    public String toString() {
+        return this.structureName + " -> " + this.materialName + " (" + this.density + " g/cm^3)";
+    }
+    
+    /** structure name */
+    private String structureName;
+    
+    /** material name */
+    private String materialName;
+    
+    /** material number */
+    private int material;
+    
+    /** mass density (g/cm^3) */
+    private float density;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: overrides
+     */
+    public static void main(String[] args) {
+        try {
+            System.out.println(MaterialOverride.parse(args[0]));
+        } catch (MaterialException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
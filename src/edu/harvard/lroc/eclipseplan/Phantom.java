@@ -32,15 +32,20 @@
 package edu.harvard.lroc.eclipseplan;
 
 import com.archimed.dicom.DicomObject;
+import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NavigableSet;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.media.j3d.BoundingBox;
@@ -90,6 +95,7 @@ public class Phantom {
             this.size[i] = source.getSize()[i];
         }
         
+        this.overrides.addAll(source.overrides);
     }
     
     /**
@@ -146,7 +152,7 @@ public class Phantom {
     /** Read in data from structure Dicom file */
     private void readStructureDicom() {
         this.structures = new StructureSet(this.structureFile);
-        this.structureDcm = this.structures.getStructureDcm();
+        this.structures.setSliceThickness(this.getVoxelSize().z);
     }
     
     
@@ -168,18 +174,19 @@ public class Phantom {
      * @return bounding box covering the whole phantom
      */
     public BoundingBox getBoundingBox() {
-       Point3d lowerCorner = this.getPosition();
-       Double dx = this.getSize()[0] * this.getVoxelSize().x;
-       Double dy = this.getSize()[1] * this.getVoxelSize().y;
-       Point3d upperCorner = this.sliceSet.last().getPosition();
-       upperCorner.add(new Point3d(dx, dy, 0.));
+       VoxelGrid grid = this.getVoxelGrid();
+       Point3d lowerCorner = new Point3d(grid.getEdge(VoxelGrid.X, 0),
+               grid.getEdge(VoxelGrid.Y, 0), grid.getEdge(VoxelGrid.Z, 0));
+       Point3d upperCorner = new Point3d(grid.getEdge(VoxelGrid.X, grid.getNx()),
+               grid.getEdge(VoxelGrid.Y, grid.getNy()), grid.getEdge(VoxelGrid.Z, grid.getNz()));
        
        return new BoundingBox(lowerCorner, upperCorner);
     }
     
     /**
      * 
-     * @return position of "first" corner of phantom volume
+     * @return position (ImagePositionPatient) of the first slice: the
+     *         centre of the "first" voxel of the phantom volume
      */
     public Point3d getPosition() {
         return new Point3d(this.sliceSet.first().getPosition());
@@ -193,6 +200,97 @@ public class Phantom {
         return new Point3d(this.sliceSet.first().getVoxelSize());
     }
     
+    /**
+     * 
+     * @return voxel grid of the phantom, whose first voxel is centred on
+     *         the position of the first slice
+     */
+    public VoxelGrid getVoxelGrid() {
+        Point3d position = this.getPosition();
+        Point3d voxelSize = this.getVoxelSize();
+        Point3d corner = new Point3d(position.x - 0.5 * voxelSize.x,
+                position.y - 0.5 * voxelSize.y, position.z - 0.5 * voxelSize.z);
+        return new VoxelGrid(corner, voxelSize, this.size[0], this.size[1], this.size[2]);
+    }
+    
+    /**
+     * 
+     * @param structureName name of structure
+     * @return voxels of the phantom inside the structure
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public StructureMask getMask(String structureName) throws EclipsePlanException {
+        return this.structures.getMask(structureName, this.getVoxelGrid());
+    }
+    
+    /**
+     * Apply material/density overrides, in order, so that where structures 
+     * overlap the last override wins. Slices are done in parallel.
+     * @param overrides overrides to apply
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public void applyOverrides(List<MaterialOverride> overrides) throws EclipsePlanException {
+        if (overrides.isEmpty()) {
+            return;
+        }
+        
+        // rasterize up front; the masks are cached by the structure set
+        final Vector<StructureMask> masks = new Vector<StructureMask>();
+        for (MaterialOverride override : overrides) {
+            masks.add(this.getMask(override.getStructureName()));
+            
+            if (this.debug_p) {
+                System.out.println(override + ": " + masks.lastElement());
+            }
+        }
+        
+        final List<MaterialOverride> rules = new ArrayList<MaterialOverride>(overrides);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        int k = 0;
+        for (final PhantomSlice slice : this.sliceSet) {
+            final int sliceNo = k++;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for (int r = 0; r < rules.size(); ++r) {
+                        MaskSlice voxels = masks.get(r).getSlice(sliceNo);
+                        if (voxels != null) {
+                            slice.override(voxels, rules.get(r).getMaterial(), 
+                                    rules.get(r).getDensity());
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        
+        TaskPool.invokeAll(tasks, "applying overrides");
+        
+        this.overrides.addAll(overrides);
+    }
+    
+    /**
+     * 
+     * @return overrides applied so far, in order
+     */
+    public Vector<MaterialOverride> getOverrides() {
+        return new Vector<MaterialOverride>(this.overrides);
+    }
+    
+    /**
+     * 
+     * @return SeriesInstanceUIDs of the CT images, in order, without repeats
+     */
+    public Vector<String> getSeriesInstanceUIDs() {
+        Vector<String> uids = new Vector<String>();
+        for (CTImage ctimage : this.ctImages.getCTImageSet()) {
+            String uid = ctimage.getSeriesInstanceUID();
+            if (uid != null && !uids.contains(uid)) {
+                uids.add(uid);
+            }
+        }
+        return uids;
+    }
+    
     public void resize(BoundingBox bbox) {
         Point3d lower = new Point3d();
         bbox.getLower(lower);
@@ -228,21 +326,45 @@ public class Phantom {
     
     
     /**
-     * Resize down to the size dictated by BoundingBox of struct
-     * @param structureName name of structure which defines bounding box for resizing
-     * @throws Exception 
+     * Crop to a box of voxels, in a single pass over the slices.
+     * @param bounds voxels to keep, { imin, imax, jmin, jmax, kmin, kmax }
+     *        with the upper bounds exclusive
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
      */
-    public void resize(String structureName) throws Exception {
-        // TODO implement
+    public void crop(int[] bounds) throws EclipsePlanException {
+        if (bounds[0] >= bounds[1] || bounds[2] >= bounds[3] || bounds[4] >= bounds[5]) {
+            throw new EclipsePlanException("Empty crop: " + Arrays.toString(bounds));
+        }
         
-        // check that structure exists
-        if (! this.structures.getStructureMap().containsKey(structureName)) {
-            throw new Exception("No such structure: " + structureName);
+        Rectangle voxels = new Rectangle(bounds[0], bounds[2], 
+                bounds[1] - bounds[0], bounds[3] - bounds[2]);
+        
+        TreeSet<PhantomSlice> newSliceSet = new TreeSet<PhantomSlice>();
+        int k = 0;
+        for (PhantomSlice slice : this.sliceSet) {
+            if (k >= bounds[4] && k < bounds[5]) {
+                slice.crop(voxels);
+                newSliceSet.add(slice);
+            }
+            ++k;
         }
         
-        BoundingBox bbox = this.structures.getStructureMap().get(structureName).getBoundingBox();
+        this.sliceSet = newSliceSet;
         
-        this.resize(bbox);
+        this.size[0] = this.sliceSet.first().getSize().width;
+        this.size[1] = this.sliceSet.first().getSize().height;
+        this.size[2] = this.sliceSet.size();
+    }
+    
+    /**
+     * Resize down to the voxels spanned by the contours of struct
+     * @param structureName name of structure which defines bounding box for resizing
+     * @throws Exception 
+     */
+    public void resize(String structureName) throws Exception {
+        CropPlanner planner = new CropPlanner(this);
+        planner.addStructure(structureName);
+        planner.apply();
     }
     
     
@@ -310,12 +432,12 @@ public class Phantom {
     }
     
     
+    /** Material/density overrides applied, in order */
+    private Vector<MaterialOverride> overrides = new Vector<MaterialOverride>();
+    
     /** Structure file. */
     private File structureFile;
     
-    /** Structures Dicom data. */
-    private DicomObject structureDcm;
-    
     /** Structures/ROIs. */
     private StructureSet structures;
     
@@ -325,7 +447,7 @@ public class Phantom {
      * @return Dicom object of all structures
      */
     public DicomObject getStructureDcm() {
-        return structureDcm;
+        return (this.structures == null) ? null : this.structures.getStructureDcm();
     }
 
     /**
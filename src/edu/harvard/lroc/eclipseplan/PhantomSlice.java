@@ -262,47 +262,44 @@ public class PhantomSlice implements Comparable<PhantomSlice> {
         //     we'll consider them bone. EGSnrc's ctcreate program
         //     only accepts numbers <=3000
         
-        int airLo = 1;
-        int airHi = 50;
-        int lungLo = 50;
-        int lungHi = 300;
-        int tissueLo = 300;
-        int tissueHi = 1125;
-        int boneLo = 1125;
-        int boneHi = 5000;
-        
-        double rhoAirLo = 0.001;
-        double rhoAirHi = 0.044;
-        double rhoLungLo = 0.044;
-        double rhoLungHi = 0.302;
-        double rhoTissueLo = 0.302;
-        double rhoTissueHi = 1.101;
-        double rhoBoneLo = 1.101;
-        double rhoBoneHi = 3.1408;
-        
-        if (airLo <= houns && houns < airHi) {
-            // air
-            densMat.material = MaterialMap.get("AIR700ICRU");
-            densMat.density = this.ramp(houns, airLo, airHi, rhoAirLo, rhoAirHi);
-        } else if (lungLo <= houns && houns < lungHi) {
-            // lung
-            densMat.material = MaterialMap.get("LUNG700ICRU");
-            densMat.density = this.ramp(houns, lungLo, lungHi, rhoLungLo, rhoLungHi);
-        } else if (tissueLo <= houns && houns < tissueHi) {
-            // tissue
-            densMat.material = MaterialMap.get("ICRUTISSUE700ICRU");
-            densMat.density = this.ramp(houns, tissueLo, tissueHi, rhoTissueLo, rhoTissueHi);
-        } else if (boneLo <= houns && houns < boneHi) {
-            // bone
-            densMat.material = MaterialMap.get("ICRPBONE700ICRU");
-            densMat.density = this.ramp(houns, boneLo, boneHi, rhoBoneLo, rhoBoneHi);
-        } else {
-            // out of bounds
-            throw new Exception("Hounsfield number " + houns + " out of bounds.");
+        for (int m = 0; m < RAMP_MATERIALS.length; ++m) {
+            if (RAMP_HU[m] <= houns && houns < RAMP_HU[m+1]) {
+                densMat.material = MaterialMap.get(RAMP_MATERIALS[m]);
+                densMat.density = this.ramp(houns, RAMP_HU[m], RAMP_HU[m+1],
+                        RAMP_DENSITY[m], RAMP_DENSITY[m+1]);
+                return densMat;
+            }
         }
-
-        return densMat;
+        
+        // out of bounds
+        throw new Exception("Hounsfield number " + houns + " out of bounds.");
+    }
+    
+    /**
+     * 
+     * @return the Hounsfield number to material and density conversion, as
+     *         text: anything which changes the phantom changes this
+     */
+    static String conversionTable() {
+        StringBuffer strbuff = new StringBuffer();
+        for (int m = 0; m < RAMP_MATERIALS.length; ++m) {
+            strbuff.append(String.format("%s %d-%d %s-%s;", RAMP_MATERIALS[m],
+                    RAMP_HU[m], RAMP_HU[m+1], Double.toString(RAMP_DENSITY[m]),
+                    Double.toString(RAMP_DENSITY[m+1])));
+        }
+        return strbuff.toString();
     }
+    
+    /** Hounsfield numbers at the ends of the ramp of each material */
+    private static final int[] RAMP_HU = { 1, 50, 300, 1125, 5000 };
+    
+    /** mass densities (g/cm^3) at the ends of the ramp of each material */
+    private static final double[] RAMP_DENSITY = { 0.001, 0.044, 0.302, 1.101, 3.1408 };
+    
+    /** material of each ramp */
+    private static final String[] RAMP_MATERIALS = { "AIR700ICRU", "LUNG700ICRU",
+        "ICRUTISSUE700ICRU", "ICRPBONE700ICRU" };
+
 
     /**
      * 
@@ -500,6 +497,74 @@ public class PhantomSlice implements Comparable<PhantomSlice> {
         this.position.setY(newSize.y);
     }
     
+    /**
+     * Crop the slice to a rectangle of voxels. The voxels are copied row by
+     * row straight out of the data buffers, so the position of the slice 
+     * moves by whole voxels.
+     * @param voxels voxels to keep: x and y index of the first voxel, and 
+     *        number of voxels along x and y
+     */
+    public void crop(Rectangle voxels) {
+        Rectangle keep = voxels.intersection(new Rectangle(0, 0, this.size.width, this.size.height));
+        int width = this.size.width;
+        
+        DataBuffer matDB = this.materialRaster.getDataBuffer();
+        DataBuffer rhoDB = this.densityRaster.getDataBuffer();
+        
+        BandedSampleModel materialSM = new BandedSampleModel(DataBuffer.TYPE_USHORT,
+                keep.width, keep.height, 1);
+        DataBufferUShort newMatDB = (DataBufferUShort) materialSM.createDataBuffer();
+        
+        BandedSampleModel rhoSM = new BandedSampleModel(DataBuffer.TYPE_FLOAT,
+                keep.height, keep.width, 1);
+        DataBufferFloat newRhoDB = (DataBufferFloat) rhoSM.createDataBuffer();
+        
+        for (int j = 0; j < keep.height; ++j) {
+            int from = keep.x + (keep.y + j) * width;
+            int to = j * keep.width;
+            for (int i = 0; i < keep.width; ++i) {
+                newMatDB.setElem(to + i, matDB.getElem(from + i));
+                newRhoDB.setElemFloat(to + i, rhoDB.getElemFloat(from + i));
+            }
+        }
+        
+        this.materialRaster = Raster.createRaster(materialSM, newMatDB, null);
+        this.densityRaster = Raster.createRaster(rhoSM, newRhoDB, null);
+        
+        this.position.setX(this.position.x + keep.x * this.voxelSize.x);
+        this.position.setY(this.position.y + keep.y * this.voxelSize.y);
+        this.size.setSize(keep.width, keep.height);
+    }
+    
+    // Overrides write straight into the data buffers of the rasters. The
+    // buffers always hold the voxels row by row, i + j*width, which is also
+    // how the egsphant writer reads them -- unlike the density sample model,
+    // which has width and height swapped in the constructor.
+    
+    /**
+     * Force voxels to a given material and density, without going back to 
+     * the Hounsfield numbers.
+     * @param voxels voxels to override
+     * @param material material number
+     * @param density mass density (g/cm^3)
+     */
+    public void override(MaskSlice voxels, int material, float density) {
+        DataBuffer matDB = this.materialRaster.getDataBuffer();
+        DataBuffer rhoDB = this.densityRaster.getDataBuffer();
+        int width = this.size.width;
+        int ny = Math.min(voxels.getNy(), this.size.height);
+        
+        for (int j = 0; j < ny; ++j) {
+            for (int r = 0; r < voxels.getNRuns(j); ++r) {
+                int end = Math.min(voxels.getRunEnd(j, r), width);
+                for (int i = voxels.getRunStart(j, r); i < end; ++i) {
+                    matDB.setElem(i + j * width, material);
+                    rhoDB.setElemFloat(i + j * width, density);
+                }
+            }
+        }
+    }
+    
     /**
      * Resample the raster to the desired newPixelSize
      * @param newPixelSize desired new pixel size (in mm)
@@ -181,10 +181,17 @@ public class Plan {
     }
     
     /**
-     * Create DOSXYZ input file.
+     * Create DOSXYZ input files, one per beam, for source 20: each beam
+     * reads the phase space file patientID_beamName.egsphsp1 in dir.
+     * @param egsphantFile phantom
+     * @param phantomGrid voxel grid of the phantom (mm), to check the
+     *        isocentres against
+     * @param dir directory to write to
+     * @throws java.io.FileNotFoundException
      */
-    public void makeDosxyzEgsinp() {
-        return;
+    public void makeDosxyzEgsinp(File egsphantFile, VoxelGrid phantomGrid, File dir)
+            throws FileNotFoundException {
+        new DosEGSinp(egsphantFile, phantomGrid).writeAll(this.beamList, dir);
     }
     
     
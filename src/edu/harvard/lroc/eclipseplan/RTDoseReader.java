@@ -0,0 +1,253 @@
+/* RTDoseReader.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import com.archimed.dicom.DDict;
+import com.archimed.dicom.DicomException;
+import com.archimed.dicom.DicomObject;
+import com.archimed.dicom.DicomReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// The inverse of RTDoseWriter, for doses from Eclipse or written by us: the
+// frames are slices in z, at GridFrameOffsetVector from ImagePositionPatient
+// (or at GridFrameOffsetVector itself, if its first element is not 0, which
+// DICOM allows), and DoseGridScaling turns the stored integers into Gy.
+// ImagePositionPatient and the frame positions are voxel centres, as DICOM
+// has them (and as for the CT: see VoxelGrid), so the voxel edges are half
+// a pixel spacing before the first centre, and halfway between frames in
+// z; an RTDOSE written by RTDoseWriter reads back onto the same grid.
+// Only axial doses (orientation 1\0\0\0\1\0) are read.
+
+/**
+ * Reads a DICOM RT Dose file into a DoseGrid (Gy).
+ * @author David Chin
+ * @version $Revision$
+ */
+public class RTDoseReader {
+    /**
+     * 
+     * @param file RTDOSE file
+     */
+    public RTDoseReader(File file) {
+        this.file = file;
+    }
+    
+    /**
+     * 
+     * @return dose grid (Gy), with the voxel edges in mm; no uncertainties
+     * @throws java.io.IOException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public DoseGrid read() throws IOException, EclipsePlanException {
+        DicomObject dcm;
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(this.file));
+        try {
+            DicomReader dcmReader = new DicomReader();
+            dcm = dcmReader.read(in, true);
+        } catch (DicomException ex) {
+            throw new IOException("Cannot read " + this.file + ": " + ex.getMessage());
+        } finally {
+            in.close();
+        }
+        
+        try {
+            return this.makeDoseGrid(dcm);
+        } catch (DicomException ex) {
+            throw new EclipsePlanException("Bad RTDOSE " + this.file + ": " + ex.getMessage(), ex);
+        }
+    }
+    
+    /**
+     * 
+     * @param dcm RTDOSE
+     * @return dose grid
+     * @throws com.archimed.dicom.DicomException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    private DoseGrid makeDoseGrid(DicomObject dcm) throws DicomException, EclipsePlanException {
+        double[] orientation = new double[6];
+        for (int n = 0; n < 6; ++n) {
+            orientation[n] = this.getDouble(dcm, DDict.dImageOrientationPatient, n);
+        }
+        if (Math.abs(orientation[0] - 1.) > 1.e-4 || Math.abs(orientation[4] - 1.) > 1.e-4) {
+            throw new EclipsePlanException(this.file + ": only axial doses can be read");
+        }
+        
+        int nx = dcm.getI(DDict.dColumns);
+        int ny = dcm.getI(DDict.dRows);
+        int nz = (dcm.getS(DDict.dNumberOfFrames) == null) ? 1
+                : Integer.parseInt(dcm.getS(DDict.dNumberOfFrames).trim());
+        int bits = dcm.getI(DDict.dBitsAllocated);
+        boolean signed_p = dcm.getI(DDict.dPixelRepresentation) == 1;
+        if (bits != 16 && bits != 32) {
+            throw new EclipsePlanException(this.file + ": cannot read " + bits + "-bit dose");
+        }
+        
+        double x0 = this.getDouble(dcm, DDict.dImagePositionPatient, 0);
+        double y0 = this.getDouble(dcm, DDict.dImagePositionPatient, 1);
+        double z0 = this.getDouble(dcm, DDict.dImagePositionPatient, 2);
+        double dy = this.getDouble(dcm, DDict.dPixelSpacing, 0);
+        double dx = this.getDouble(dcm, DDict.dPixelSpacing, 1);
+        
+        double[] xEdges = new double[nx + 1];
+        for (int i = 0; i <= nx; ++i) {
+            xEdges[i] = x0 + (i - 0.5) * dx;
+        }
+        double[] yEdges = new double[ny + 1];
+        for (int j = 0; j <= ny; ++j) {
+            yEdges[j] = y0 + (j - 0.5) * dy;
+        }
+        
+        // frame positions, and the order to put the frames in so that z
+        // increases
+        double[] offsets = new double[nz];
+        if (dcm.getSize(DDict.dGridFrameOffsetVector) < nz) {
+            if (nz > 1) {
+                throw new EclipsePlanException(this.file + ": no GridFrameOffsetVector");
+            }
+        } else {
+            for (int k = 0; k < nz; ++k) {
+                offsets[k] = this.getDouble(dcm, DDict.dGridFrameOffsetVector, k);
+            }
+        }
+        double base = (offsets[0] == 0.) ? z0 : 0.;
+        boolean reversed_p = nz > 1 && offsets[1] < offsets[0];
+        
+        double[] zCentres = new double[nz];
+        for (int k = 0; k < nz; ++k) {
+            zCentres[k] = base + offsets[reversed_p ? nz - 1 - k : k];
+            if (k > 0 && zCentres[k] <= zCentres[k-1]) {
+                throw new EclipsePlanException(this.file + ": frames are not in order of z");
+            }
+        }
+        
+        // edges halfway between the frames; the end frames are as thick
+        // as the spacing to their neighbours, or a single frame as
+        // SliceThickness
+        double[] zEdges = new double[nz + 1];
+        if (nz > 1) {
+            for (int k = 1; k < nz; ++k) {
+                zEdges[k] = 0.5 * (zCentres[k-1] + zCentres[k]);
+            }
+            zEdges[0] = zCentres[0] - (zEdges[1] - zCentres[0]);
+            zEdges[nz] = zCentres[nz-1] + (zCentres[nz-1] - zEdges[nz-1]);
+        } else {
+            double thickness = (dcm.getSize(DDict.dSliceThickness) > 0)
+                    ? this.getDouble(dcm, DDict.dSliceThickness, 0) : dx;
+            zEdges[0] = zCentres[0] - 0.5 * thickness;
+            zEdges[1] = zCentres[0] + 0.5 * thickness;
+        }
+        
+        double scaling = this.getDouble(dcm, DDict.dDoseGridScaling, 0);
+        Object pixelData = dcm.get(DDict.dPixelData);
+        if (!(pixelData instanceof byte[])) {
+            throw new EclipsePlanException(this.file + ": cannot read pixel data of "
+                    + ((pixelData == null) ? "nothing" : pixelData.getClass().getSimpleName()));
+        }
+        byte[] pixels = (byte[]) pixelData;
+        int frameVoxels = nx * ny;
+        int bytes = bits / 8;
+        if (pixels.length < (long) frameVoxels * nz * bytes) {
+            throw new EclipsePlanException(this.file + ": pixel data too short");
+        }
+        
+        float[] dose = new float[frameVoxels * nz];
+        ByteBuffer buf = ByteBuffer.wrap(pixels).order(ByteOrder.LITTLE_ENDIAN);
+        for (int frame = 0; frame < nz; ++frame) {
+            int offset = (reversed_p ? nz - 1 - frame : frame) * frameVoxels;
+            buf.position(frame * frameVoxels * bytes);
+            for (int v = 0; v < frameVoxels; ++v) {
+                double value;
+                if (bytes == 2) {
+                    short s = buf.getShort();
+                    value = signed_p ? s : (s & 0xffff);
+                } else {
+                    int s = buf.getInt();
+                    value = signed_p ? s : (s & 0xffffffffL);
+                }
+                dose[offset + v] = (float) (scaling * value);
+            }
+        }
+        
+        VoxelGrid grid = new VoxelGrid(xEdges, yEdges, zEdges);
+        if (this.debug_p) {
+            System.out.println(this.file + ": " + grid + "; DoseGridScaling " + scaling);
+        }
+        return new DoseGrid(grid, dose, null);
+    }
+    
+    /**
+     * 
+     * @param dcm DICOM object
+     * @param element DDict element
+     * @param n value index
+     * @return the value, as a double
+     * @throws com.archimed.dicom.DicomException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    private double getDouble(DicomObject dcm, int element, int n)
+            throws DicomException, EclipsePlanException {
+        String value = dcm.getS(element, n);
+        if (value == null) {
+            throw new EclipsePlanException(this.file + ": missing element " + element);
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new EclipsePlanException(this.file + ": bad number " + value, ex);
+        }
+    }
+    
+    /** RTDOSE file */
+    private File file;
+    
+    /** debug flag */
+    private boolean debug_p = false;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: RTDOSE file
+     */
+    public static void main(String[] args) {
+        try {
+            DoseGrid dose = new RTDoseReader(new File(args[0])).read();
+            System.out.println(dose);
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/* RTDoseWriter.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import com.archimed.dicom.DDict;
+import com.archimed.dicom.DicomException;
+import com.archimed.dicom.DicomObject;
+import com.archimed.dicom.TransferSyntax;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.UUID;
+
+// An RTDOSE is an ordinary multi-frame image: one frame per dose slice,
+// unsigned integers which DoseGridScaling turns into Gy. Building the pixel
+// data inside a DicomObject would need the whole dose as one array, on top
+// of the DoseGrid itself, so instead all the other elements go into a
+// DicomObject, which is written as implicit VR little endian, and the Pixel
+// Data element (7FE0,0010) -- always the last element of the file -- is
+// then written by hand after it, one frame at a time.
+//
+// The patient, study and frame of reference come from the plan (falling
+// back to the structure set), so the dose lands in the same place as the
+// CT and structures it was computed on. ImagePositionPatient and the frame
+// positions are voxel centres, as DICOM has them (and as for the CT: see
+// VoxelGrid), so the centre of the first voxel of the dose grid goes into
+// ImagePositionPatient, and the centres of the slices into
+// GridFrameOffsetVector.
+
+/**
+ * Writes a DoseGrid as a DICOM RT Dose file.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class RTDoseWriter {
+    /**
+     * 
+     * @param dose dose grid, on patient coordinates
+     * @param plan plan the dose is for; may be null
+     * @param structures structure set of the patient; may be null
+     */
+    public RTDoseWriter(DoseGrid dose, Plan plan, StructureSet structures) {
+        this.dose = dose;
+        this.planDcm = (plan == null) ? null : plan.getPlanDcm();
+        this.structureDcm = (structures == null) ? null : structures.getStructureDcm();
+    }
+    
+    /**
+     * 
+     * @param doseScale Gy per unit of dose in the dose grid, e.g. Gy per
+     *        particle times number of particles
+     */
+    public void setDoseScale(double doseScale) {
+        this.doseScale = doseScale;
+    }
+    
+    /**
+     * 
+     * @param bitsAllocated 16 or 32
+     */
+    public void setBitsAllocated(int bitsAllocated) {
+        if (bitsAllocated != 16 && bitsAllocated != 32) {
+            throw new IllegalArgumentException("bits allocated must be 16 or 32: " + bitsAllocated);
+        }
+        this.bitsAllocated = bitsAllocated;
+    }
+    
+    /**
+     * 
+     * @param seriesDescription description of the dose series
+     */
+    public void setSeriesDescription(String seriesDescription) {
+        this.seriesDescription = seriesDescription;
+    }
+    
+    /**
+     * 
+     * @param file RTDOSE file to write
+     * @throws java.io.IOException
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public void write(File file) throws IOException, EclipsePlanException {
+        VoxelGrid grid = this.dose.getGrid();
+        this.checkGrid(grid);
+        
+        double maxValue = (this.bitsAllocated == 16) ? 65535. : 4294967295.;
+        double maxDose = this.doseScale * this.dose.getMaxDose();
+        double scaling = (maxDose > 0.) ? maxDose / maxValue : 1.;
+        
+        DicomObject dcm;
+        try {
+            dcm = this.makeHeader(grid, scaling);
+        } catch (DicomException ex) {
+            throw new EclipsePlanException("Cannot make RTDOSE header: " + ex.getMessage(), ex);
+        }
+        
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        try {
+            dcm.write(out, true, TransferSyntax.ImplicitVRLittleEndian, false);
+            this.writePixelData(out, grid, scaling);
+        } catch (DicomException ex) {
+            throw new IOException("Cannot write " + file + ": " + ex.getMessage());
+        } finally {
+            out.close();
+        }
+        
+        if (this.debug_p) {
+            System.out.println("Wrote " + file + ": max. dose " + maxDose
+                    + " Gy, DoseGridScaling " + scaling);
+        }
+    }
+    
+    /**
+     * Pixel Data, frame by frame.
+     * @param out output, just after the last element of the header
+     * @param grid dose grid
+     * @param scaling DoseGridScaling
+     * @throws java.io.IOException
+     */
+    private void writePixelData(OutputStream out, VoxelGrid grid, double scaling) throws IOException {
+        int bytes = this.bitsAllocated / 8;
+        int frameVoxels = grid.getNx() * grid.getNy();
+        long length = (long) frameVoxels * grid.getNz() * bytes;
+        if (length > 0xfffffffeL) {
+            throw new IOException("dose grid too large for RTDOSE: " + length + " bytes");
+        }
+        
+        // tag (7FE0,0010) and 4-byte length, implicit VR little endian
+        ByteBuffer element = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        element.putShort((short) 0x7fe0).putShort((short) 0x0010).putInt((int) length);
+        out.write(element.array());
+        
+        float[] doses = this.dose.getDose();
+        double maxValue = (this.bitsAllocated == 16) ? 65535. : 4294967295.;
+        double factor = this.doseScale / scaling;
+        ByteBuffer frame = ByteBuffer.allocate(frameVoxels * bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int k = 0; k < grid.getNz(); ++k) {
+            frame.clear();
+            int offset = k * frameVoxels;
+            for (int v = 0; v < frameVoxels; ++v) {
+                double value = Math.min(Math.max(Math.rint(factor * doses[offset + v]), 0.), maxValue);
+                if (bytes == 2) {
+                    frame.putShort((short) (long) value);
+                } else {
+                    frame.putInt((int) (long) value);
+                }
+            }
+            out.write(frame.array(), 0, frame.position());
+        }
+    }
+    
+    /**
+     * All of the RTDOSE but the pixel data.
+     * @param grid dose grid
+     * @param scaling DoseGridScaling
+     * @return header
+     * @throws com.archimed.dicom.DicomException
+     */
+    private DicomObject makeHeader(VoxelGrid grid, double scaling) throws DicomException {
+        DicomObject dcm = new DicomObject();
+        String now = new SimpleDateFormat("yyyyMMdd").format(new Date());
+        String time = new SimpleDateFormat("HHmmss").format(new Date());
+        
+        // SOP common
+        dcm.set(DDict.dSOPClassUID, RT_DOSE_STORAGE);
+        dcm.set(DDict.dSOPInstanceUID, newUID());
+        dcm.set(DDict.dContentDate, now);
+        dcm.set(DDict.dContentTime, time);
+        
+        // patient and study, as in the plan
+        this.copy(dcm, DDict.dPatientName);
+        this.copy(dcm, DDict.dPatientID);
+        this.copy(dcm, DDict.dStudyInstanceUID);
+        this.copy(dcm, DDict.dStudyID);
+        this.copy(dcm, DDict.dStudyDate);
+        this.copy(dcm, DDict.dStudyTime);
+        
+        // series
+        dcm.set(DDict.dModality, "RTDOSE");
+        dcm.set(DDict.dSeriesInstanceUID, newUID());
+        dcm.set(DDict.dSeriesNumber, "1");
+        dcm.set(DDict.dSeriesDescription, this.seriesDescription);
+        dcm.set(DDict.dManufacturer, "EclipsePlan");
+        
+        // frame of reference
+        String frameOfReference = this.getFrameOfReferenceUID();
+        if (frameOfReference != null) {
+            dcm.set(DDict.dFrameOfReferenceUID, frameOfReference);
+        }
+        dcm.set(DDict.dPositionReferenceIndicator, "");
+        
+        // image plane
+        dcm.set(DDict.dInstanceNumber, "1");
+        dcm.set(DDict.dImagePositionPatient, format(grid.getCenter(VoxelGrid.X, 0)), 0);
+        dcm.set(DDict.dImagePositionPatient, format(grid.getCenter(VoxelGrid.Y, 0)), 1);
+        dcm.set(DDict.dImagePositionPatient, format(grid.getCenter(VoxelGrid.Z, 0)), 2);
+        String[] orientation = { "1", "0", "0", "0", "1", "0" };
+        for (int n = 0; n < orientation.length; ++n) {
+            dcm.set(DDict.dImageOrientationPatient, orientation[n], n);
+        }
+        dcm.set(DDict.dPixelSpacing, format(grid.getVoxelSize(VoxelGrid.Y, 0)), 0);
+        dcm.set(DDict.dPixelSpacing, format(grid.getVoxelSize(VoxelGrid.X, 0)), 1);
+        dcm.set(DDict.dSliceThickness, format(grid.getVoxelSize(VoxelGrid.Z, 0)));
+        
+        // image pixels
+        dcm.set(DDict.dSamplesPerPixel, Integer.valueOf(1));
+        dcm.set(DDict.dPhotometricInterpretation, "MONOCHROME2");
+        dcm.set(DDict.dRows, Integer.valueOf(grid.getNy()));
+        dcm.set(DDict.dColumns, Integer.valueOf(grid.getNx()));
+        dcm.set(DDict.dBitsAllocated, Integer.valueOf(this.bitsAllocated));
+        dcm.set(DDict.dBitsStored, Integer.valueOf(this.bitsAllocated));
+        dcm.set(DDict.dHighBit, Integer.valueOf(this.bitsAllocated - 1));
+        dcm.set(DDict.dPixelRepresentation, Integer.valueOf(0));
+        
+        // multi-frame
+        dcm.set(DDict.dNumberOfFrames, Integer.toString(grid.getNz()));
+        dcm.set(DDict.dFrameIncrementPointer, Integer.valueOf(GRID_FRAME_OFFSET_VECTOR_TAG));
+        for (int k = 0; k < grid.getNz(); ++k) {
+            dcm.append(DDict.dGridFrameOffsetVector,
+                    format(grid.getCenter(VoxelGrid.Z, k) - grid.getCenter(VoxelGrid.Z, 0)));
+        }
+        
+        // RT dose
+        dcm.set(DDict.dDoseUnits, "GY");
+        dcm.set(DDict.dDoseType, "PHYSICAL");
+        dcm.set(DDict.dDoseSummationType, "PLAN");
+        dcm.set(DDict.dDoseGridScaling, format(scaling));
+        
+        if (this.planDcm != null) {
+            DicomObject planRef = new DicomObject();
+            planRef.set(DDict.dReferencedSOPClassUID, RT_PLAN_STORAGE);
+            planRef.set(DDict.dReferencedSOPInstanceUID, this.planDcm.getS(DDict.dSOPInstanceUID));
+            dcm.set(DDict.dReferencedRTPlanSequence, planRef);
+        }
+        
+        return dcm;
+    }
+    
+    /**
+     * Copy an element from the plan, or failing that the structure set.
+     * @param dcm header
+     * @param element DDict element
+     * @throws com.archimed.dicom.DicomException
+     */
+    private void copy(DicomObject dcm, int element) throws DicomException {
+        String value = null;
+        if (this.planDcm != null) {
+            value = this.planDcm.getS(element);
+        }
+        if (value == null && this.structureDcm != null) {
+            value = this.structureDcm.getS(element);
+        }
+        if (value != null) {
+            dcm.set(element, value);
+        }
+    }
+    
+    /**
+     * 
+     * @return FrameOfReferenceUID of the plan, or else of the structure set,
+     *         or null if neither has one
+     * @throws com.archimed.dicom.DicomException
+     */
+    private String getFrameOfReferenceUID() throws DicomException {
+        if (this.planDcm != null && this.planDcm.getS(DDict.dFrameOfReferenceUID) != null) {
+            return this.planDcm.getS(DDict.dFrameOfReferenceUID);
+        }
+        
+        if (this.structureDcm != null
+                && this.structureDcm.getSize(DDict.dReferencedFrameOfReferenceSequence) > 0) {
+            DicomObject ref = this.structureDcm.getSequenceItem(DDict.dReferencedFrameOfReferenceSequence, 0);
+            return ref.getS(DDict.dFrameOfReferenceUID);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * RTDOSE needs even spacing in x and y; z may vary, through the
+     * GridFrameOffsetVector.
+     * @param grid dose grid
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    private void checkGrid(VoxelGrid grid) throws EclipsePlanException {
+        for (int axis = VoxelGrid.X; axis <= VoxelGrid.Y; ++axis) {
+            double size = grid.getVoxelSize(axis, 0);
+            for (int i = 1; i < grid.getN(axis); ++i) {
+                if (Math.abs(grid.getVoxelSize(axis, i) - size) > SPACING_TOLERANCE) {
+                    throw new EclipsePlanException("Uneven dose voxels along "
+                            + (axis == VoxelGrid.X ? "x" : "y") + "; cannot write RTDOSE");
+                }
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @return new UID, from a random UUID (the 2.25 root)
+     */
+    private static String newUID() {
+        UUID uuid = UUID.randomUUID();
+        BigInteger value = new BigInteger(1, ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits()).array());
+        return "2.25." + value.toString();
+    }
+    
+    /**
+     * 
+     * @param value number
+     * @return value as a DICOM DS, at most 16 characters
+     */
+    private static String format(double value) {
+        String s = Double.toString(value);
+        if (s.endsWith(".0")) {
+            s = s.substring(0, s.length() - 2);
+        }
+        if (s.length() > 16) {
+            s = String.format("%.8g", value).trim();
+        }
+        return s;
+    }
+    
+    /** RT Dose Storage SOP class */
+    private static final String RT_DOSE_STORAGE = "1.2.840.10008.5.1.4.1.1.481.2";
+    
+    /** RT Plan Storage SOP class */
+    private static final String RT_PLAN_STORAGE = "1.2.840.10008.5.1.4.1.1.481.5";
+    
+    /** (3004,000C) Grid Frame Offset Vector, as an AT value */
+    private static final int GRID_FRAME_OFFSET_VECTOR_TAG = 0x3004000c;
+    
+    /** largest difference in voxel sizes taken as even spacing (mm) */
+    private static final double SPACING_TOLERANCE = 1.e-3;
+    
+    /** dose grid */
+    private DoseGrid dose;
+    
+    /** RT plan */
+    private DicomObject planDcm;
+    
+    /** RT structure set */
+    private DicomObject structureDcm;
+    
+    /** Gy per unit dose */
+    private double doseScale = 1.;
+    
+    /** bits per voxel */
+    private int bitsAllocated = 32;
+    
+    /** series description */
+    private String seriesDescription = "Monte Carlo dose";
+    
+    /** debug flag */
+    private boolean debug_p = false;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: patient ID, .3ddose file, RTDOSE
+     *        file, dose scale (Gy per unit)
+     */
+    public static void main(String[] args) {
+        Patient patient = new Patient(args[0]);
+        
+        try {
+            DoseGrid dose = DoseGrid.read(new File(args[1]));
+            RTDoseWriter writer = new RTDoseWriter(dose, patient.getPlan(), patient.getStructures());
+            if (args.length > 3) {
+                writer.setDoseScale(Double.parseDouble(args[3]));
+            }
+            writer.write(new File(args[2]));
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -68,7 +68,8 @@ public class Structure {
     /**
      * 
      * @param structDcm Structure meta-data: ROI Name and ROI Number
-     * @param contourSeqDcm Contour sequence 
+     * @param contourSeqDcm Contour sequence, i.e. the ROIContourSequence item 
+     *        of this ROI; null if there is none
      */
     public Structure(DicomObject structDcm, DicomObject contourSeqDcm) {
         this.structDcm = structDcm;
@@ -77,31 +78,118 @@ public class Structure {
         try {
             this.name = this.structDcm.getS(DDict.dROIName);
             this.number = this.structDcm.getI(DDict.dROINumber);
+        } catch (Exception ex) {
+            Logger.getLogger(Structure.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    // Only the name and number are read when the structure is made. The
+    // contours, which can run to hundreds of thousands of points for a BODY,
+    // are decoded the first time anything asks for the geometry. A structure
+    // from a StructureSet does not even have its ContourSequence until then:
+    // the set reads the contour part of the RS file on first demand. The set
+    // is always asked before this structure is locked, so that the locks are
+    // always taken set first.
+    
+    /** Decode the contours, if that has not been done yet. */
+    private void load() {
+        if (!this.loaded_p) {
+            ContourDataDecoder contourData = null;
+            if (this.structureSet != null) {
+                this.structureSet.readContours();
+                contourData = this.structureSet.getContourData();
+            }
             
-            // populate the Vector<Point3d> containing the structure data
+            synchronized (this) {
+                if (!this.loaded_p) {
+                    this.decodeContours(contourData);
+                    this.loaded_p = true;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Decode the contours and find the bounding box. A structure without
+     * contours, or whose contours cannot be decoded, is left with none.
+     * @param contourData bulk decoder of the RS file, or null
+     */
+    private void decodeContours(ContourDataDecoder contourData) {
+        if (this.contourSeqDcm == null) {
+            // structure without contours
+            this.clearContours();
+            return;
+        }
+        
+        try {
+            // populate the packed contour arrays, and find the bounding 
+            // box on the way
             
             int nContours = this.contourSeqDcm.getSize(DDict.dContourSequence);
+            if (nContours < 0) {
+                nContours = 0;
+            }
+            this.contourXY = new double[nContours][];
+            this.contourZ = new double[nContours];
+            this.nPoints = new int[nContours];
+            
+            double xmin = Double.POSITIVE_INFINITY, xmax = Double.NEGATIVE_INFINITY;
+            double ymin = Double.POSITIVE_INFINITY, ymax = Double.NEGATIVE_INFINITY;
+            double zmin = Double.POSITIVE_INFINITY, zmax = Double.NEGATIVE_INFINITY;
+            
             DicomObject contour = null;
-            Double x, y, z;
-            int nPoints = 0;
+            double x, y, z;
+            double[] coords = new double[0];
             for (int i = 0; i < nContours; ++i) {
                 if (this.debug_p)
                     System.out.println("Contour #" + i);
                 
                 contour = this.contourSeqDcm.getSequenceItem(DDict.dContourSequence, i);
-                nPoints = contour.getI(DDict.dNumberOfContourPoints);
+                int n = contour.getI(DDict.dNumberOfContourPoints);
                 
                 if (this.debug_p)
-                    System.out.println("    nPoints = " + nPoints);
+                    System.out.println("    nPoints = " + n);
                 
-                for (int j = 0; j < nPoints; ++j) {
-                    x = new Double(contour.getS(DDict.dContourData, 3*j));
-                    y = new Double(contour.getS(DDict.dContourData, 3*j + 1));
-                    z = new Double(contour.getS(DDict.dContourData, 3*j + 2));
-                    this.points.add(new Point3d(x,y,z));
+                // pull the coordinates out of the RS file in bulk if we can,
+                // otherwise one by one from the Dicom object
+                if (coords.length < 3 * n) {
+                    coords = new double[3 * n];
                 }
                 
-                this.points.trimToSize();
+                int element = this.firstContourElement + i;
+                if (contourData == null 
+                        || contourData.decode(element, coords, 0) != 3 * n) {
+                    for (int j = 0; j < 3 * n; ++j) {
+                        coords[j] = Double.parseDouble(contour.getS(DDict.dContourData, j).trim());
+                    }
+                }
+                
+                double[] xy = new double[2 * n];
+                z = 0.;
+                for (int j = 0; j < n; ++j) {
+                    x = coords[3*j];
+                    y = coords[3*j + 1];
+                    z = coords[3*j + 2];
+                    xy[2*j] = x;
+                    xy[2*j + 1] = y;
+                    
+                    if (x < xmin) xmin = x;
+                    if (x > xmax) xmax = x;
+                    if (y < ymin) ymin = y;
+                    if (y > ymax) ymax = y;
+                    if (z < zmin) zmin = z;
+                    if (z > zmax) zmax = z;
+                }
+                
+                this.contourXY[i] = xy;
+                this.contourZ[i] = z;
+                this.nPoints[i] = n;
+                this.totalPoints += n;
+            }
+            
+            if (this.totalPoints > 0) {
+                this.boundingBox = new BoundingBox(new Point3d(xmin, ymin, zmin), 
+                                                   new Point3d(xmax, ymax, zmax));
             }
             
             if (this.debug_p) {
@@ -109,63 +197,124 @@ public class Structure {
                 System.out.println("==========================");
             }
         } catch (Exception ex) {
-            Logger.getLogger(Structure.class.getName()).log(Level.SEVERE, null, ex);
+            Logger.getLogger(Structure.class.getName()).log(Level.SEVERE, 
+                    "cannot decode the contours of " + this.name, ex);
+            this.clearContours();
         }
         
-        this.findBoundingBox();
+        if (this.boundingBox == null) {
+            // no points at all: an empty box at the origin
+            this.boundingBox = new BoundingBox(new Point3d(), new Point3d());
+        }
     }
     
-    /**
-     * Extracts bounding box from points data.
-     */
-    private void findBoundingBox() {
-        // TODO: implement this
-        int nPoints = this.points.size();
-        Double xmin, xmax, ymin, ymax, zmin, zmax;
-        Vector<Double> x = new Vector<Double>(nPoints);
-        Vector<Double> y = new Vector<Double>(nPoints);
-        Vector<Double> z = new Vector<Double>(nPoints);
-        
-        for (int i = 0; i < nPoints; ++i) {
-            x.add(i, this.points.get(i).x);
-            y.add(i, this.points.get(i).y);
-            z.add(i, this.points.get(i).z);
-        }
-        
-        xmin = 0.; xmax = 0.;
-        ymin = 0.; ymax = 0.;
-        zmin = 0.; zmax = 0.;
-        for (int i = 0; i < nPoints; ++i) {
-            if (x.get(i) < xmin) 
-                xmin = x.get(i);
-            
-            if (x.get(i) > xmax) 
-                xmax = x.get(i);
-            
-            if (y.get(i) < ymin)
-                ymin = y.get(i);
-            
-            if (y.get(i) > ymax)
-                ymax = y.get(i);
-            
-            if (z.get(i) < zmin)
-                zmin = z.get(i);
-            
-            if (z.get(i) > zmax)
-                zmax = z.get(i);
-        }
-        
-        Point3d min = new Point3d(xmin, ymin, zmin);
-        Point3d max = new Point3d(xmax, ymax, zmax);
-        this.boundingBox = new BoundingBox(min, max);
+    /** No contours, and an empty box at the origin */
+    private void clearContours() {
+        this.contourXY = new double[0][];
+        this.contourZ = new double[0];
+        this.nPoints = new int[0];
+        this.totalPoints = 0;
+        this.boundingBox = new BoundingBox(new Point3d(), new Point3d());
     }
     
     /** Debug flag */
     private boolean debug_p = false;
+    
+    /**
+     * Take the contours from a structure set, when they are first needed.
+     * @param structureSet structure set this structure came from
+     */
+    void setStructureSet(StructureSet structureSet) {
+        this.structureSet = structureSet;
+    }
+    
+    /**
+     * Called by the structure set once it has read the contour part of the
+     * RS file.
+     * @param contourSeqDcm Contour sequence, i.e. the ROIContourSequence
+     *        item of this ROI; null if there is none
+     * @param firstContourElement number of the ContourData element of the
+     *        first contour of this structure
+     */
+    void setContours(DicomObject contourSeqDcm, int firstContourElement) {
+        this.contourSeqDcm = contourSeqDcm;
+        this.firstContourElement = firstContourElement;
+    }
+    
+    /** structure set the contours come from, or null */
+    private StructureSet structureSet;
+    
+    /** ContourData element of the first contour */
+    private int firstContourElement;
+    
+    /** contours have been decoded */
+    private volatile boolean loaded_p = false;
 
     
-    /** The actual points forming the structure. */
-    private Vector<Point3d> points = new Vector<Point3d>();
+    // Contours are kept packed, one double[] per contour holding
+    // x0, y0, x1, y1, ... They are closed planar contours, so all the points
+    // of a contour share the same z.
+    
+    /** x and y of the points of each contour, packed */
+    private double[][] contourXY = new double[0][];
+    
+    /** z of each contour */
+    private double[] contourZ = new double[0];
+    
+    /** number of points of each contour */
+    private int[] nPoints = new int[0];
+    
+    /** total number of points of all contours */
+    private int totalPoints = 0;
+    
+    /**
+     * 
+     * @return number of contours
+     */
+    public int getNContours() {
+        this.load();
+        return this.contourXY.length;
+    }
+    
+    /**
+     * 
+     * @param contour contour number
+     * @return number of points in contour
+     */
+    public int getNPoints(int contour) {
+        this.load();
+        return this.nPoints[contour];
+    }
+    
+    /**
+     * 
+     * @return total number of points of all contours
+     */
+    public int getNPoints() {
+        this.load();
+        return this.totalPoints;
+    }
+    
+    /**
+     * 
+     * @param contour contour number
+     * @return z of the (planar) contour
+     */
+    public double getContourZ(int contour) {
+        this.load();
+        return this.contourZ[contour];
+    }
+    
+    /**
+     * 
+     * @param contour contour number
+     * @return x and y of the points of the contour, packed as x0, y0, x1, y1, ...
+     *         Not a copy: do not modify.
+     */
+    public double[] getContourXY(int contour) {
+        this.load();
+        return this.contourXY[contour];
+    }
     
     // TODO: not necessary?
     /** Dicom object of this structure. */
@@ -188,6 +337,9 @@ public class Structure {
      * @return Dicom object of the contours.
      */
     public DicomObject getContourSeqDcm() {
+        if (this.structureSet != null) {
+            this.structureSet.readContours();
+        }
         return contourSeqDcm;
     }
     
@@ -220,19 +372,81 @@ public class Structure {
         String rep = "";
         rep += "(ROI name: " + this.name + "; ";
         rep += " ROI number: " + this.number  + "; ";
-        rep += " No. of points: " + this.points.size() + ")";
+        if (this.loaded_p) {
+            rep += " No. of points: " + this.totalPoints + ")";
+        } else {
+            rep += " contours not loaded)";
+        }
         
         return rep;
     }
     
     /** Bounding box */
     private BoundingBox boundingBox;
+    
+    /** Spatial index, made when first needed */
+    private StructureIndex index;
+    
+    /** Thickness of the CT slices the structure was contoured on (mm), or 0 if unknown */
+    private double sliceThickness = 0.;
+    
+    /**
+     * 
+     * @param sliceThickness thickness of the CT slices the structure was
+     *        contoured on (mm)
+     */
+    public synchronized void setSliceThickness(double sliceThickness) {
+        if (sliceThickness != this.sliceThickness) {
+            this.sliceThickness = sliceThickness;
+            this.index = null;
+        }
+    }
+    
+    /**
+     * 
+     * @return thickness of the CT slices the structure was contoured on
+     *         (mm), or 0 if unknown
+     */
+    public double getSliceThickness() {
+        return this.sliceThickness;
+    }
+    
+    /**
+     * 
+     * @return spatial index for point-in-structure queries
+     */
+    public synchronized StructureIndex getIndex() {
+        if (this.index == null) {
+            this.index = new StructureIndex(this, this.sliceThickness);
+        }
+        return this.index;
+    }
+    
+    /**
+     * If the slice thickness is not known, and the structure is on a single
+     * plane (a point marker, say), its contour plane would have no
+     * thickness, and nothing would be inside it: take it to be one slice of
+     * grid thick instead.
+     * @param grid grid which will be queried
+     * @return spatial index for point-in-structure queries on grid
+     */
+    public StructureIndex getIndex(VoxelGrid grid) {
+        StructureIndex idx = this.getIndex();
+        if (idx.getSliceThickness() > 0. || idx.getNPlanes() == 0 || grid.getNz() == 0) {
+            return idx;
+        }
+        
+        int k = Math.max(0, Math.min(grid.firstCenterAtOrAbove(VoxelGrid.Z, this.getContourZ(0)),
+                grid.getNz() - 1));
+        return new StructureIndex(this, grid.getVoxelSize(VoxelGrid.Z, k));
+    }
 
     /**
      * 
      * @return Bounding box
      */
     public BoundingBox getBoundingBox() {
+        this.load();
         return boundingBox;
     }
     
@@ -0,0 +1,508 @@
+/* StructureIndex.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import javax.media.j3d.BoundingBox;
+import javax.vecmath.Point3d;
+
+// Point-in-structure test without looking at every point of the structure.
+//
+// The contours are grouped by plane, the planes sorted by z, so finding the
+// plane for a given z is a binary search. Each contour has its 2D bounding
+// box, and an edge table: the y range of the contour is cut into bands, and
+// each band lists the edges which overlap it. A point in the plane is then
+// tested against only the edges in its band, with the same even-odd
+// crossing rule (edge crosses y if ymin <= y < ymax) as the rasterizer, and
+// the parities of all contours of the plane combined, so holes work.
+//
+// Which plane does a given z belong to? As with the phantom voxels, whose
+// centres are the CT slice positions, a contour plane is taken to be the
+// middle of a slab one plane spacing thick, so plane p covers from halfway
+// down to plane p-1 to halfway up to plane p+1. Gaps in the planes much
+// larger than the usual spacing (e.g. two separate lesions) are not filled
+// in: the slab then reaches only half the usual spacing into the gap. The usual spacing is given
+// explicitly (the CT slice thickness, when the structure set knows it), or
+// else is the median spacing of the planes. A structure contoured on a
+// single plane, with no slice thickness given, has no usual spacing: see
+// Structure.getIndex(VoxelGrid), which then takes the slice thickness of
+// the grid being queried.
+
+/**
+ * Spatial index of a Structure for fast point-in-structure queries.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class StructureIndex {
+    /**
+     * 
+     * @param structure structure to index
+     */
+    public StructureIndex(Structure structure) {
+        this(structure, 0.);
+    }
+    
+    /**
+     * 
+     * @param structure structure to index
+     * @param sliceThickness thickness of the slab of each contour plane
+     *        (mm); 0 to use the median spacing of the planes, which is 0
+     *        if there are fewer than two
+     */
+    public StructureIndex(Structure structure, double sliceThickness) {
+        this.structure = structure;
+        
+        int nContours = structure.getNContours();
+        
+        // sort the contours by z, and group them into planes
+        Integer[] order = new Integer[nContours];
+        for (int c = 0; c < nContours; ++c) {
+            order[c] = c;
+        }
+        final double[] z = new double[nContours];
+        for (int c = 0; c < nContours; ++c) {
+            z[c] = structure.getContourZ(c);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(z[a], z[b]);
+            }
+        });
+        
+        double[] planeZ = new double[nContours];
+        int[] planeStart = new int[nContours + 1];
+        this.planeContours = new int[nContours];
+        int nPlanes = 0;
+        for (int n = 0; n < nContours; ++n) {
+            int c = order[n];
+            if (nPlanes == 0 || z[c] - planeZ[nPlanes - 1] > Z_TOLERANCE) {
+                planeZ[nPlanes] = z[c];
+                planeStart[nPlanes] = n;
+                ++nPlanes;
+            }
+            this.planeContours[n] = c;
+        }
+        planeStart[nPlanes] = nContours;
+        this.planeZ = Arrays.copyOf(planeZ, nPlanes);
+        this.planeStart = Arrays.copyOf(planeStart, nPlanes + 1);
+        
+        // slab of each plane
+        if (sliceThickness <= 0.) {
+            sliceThickness = this.medianSpacing();
+        }
+        this.sliceThickness = sliceThickness;
+        this.planeBottom = new double[nPlanes];
+        this.planeTop = new double[nPlanes];
+        for (int p = 0; p < nPlanes; ++p) {
+            this.planeBottom[p] = this.planeZ[p] - 0.5 * sliceThickness;
+            this.planeTop[p] = this.planeZ[p] + 0.5 * sliceThickness;
+        }
+        for (int p = 0; p + 1 < nPlanes; ++p) {
+            if (this.planeZ[p+1] - this.planeZ[p] < GAP_FACTOR * sliceThickness) {
+                double middle = 0.5 * (this.planeZ[p] + this.planeZ[p+1]);
+                this.planeTop[p] = middle;
+                this.planeBottom[p+1] = middle;
+            }
+        }
+        
+        // bounding boxes and edge tables of the contours
+        this.xmin = new double[nContours];
+        this.xmax = new double[nContours];
+        this.ymin = new double[nContours];
+        this.ymax = new double[nContours];
+        this.bandHeight = new double[nContours];
+        this.bandStart = new int[nContours][];
+        this.bandEdges = new int[nContours][];
+        for (int c = 0; c < nContours; ++c) {
+            this.buildEdgeTable(c);
+        }
+    }
+    
+    /**
+     * 
+     * @return median spacing of the contour planes, or 0 if there is only one
+     */
+    private double medianSpacing() {
+        int n = this.planeZ.length;
+        if (n < 2) {
+            return 0.;
+        }
+        
+        double[] spacing = new double[n - 1];
+        for (int p = 0; p + 1 < n; ++p) {
+            spacing[p] = this.planeZ[p+1] - this.planeZ[p];
+        }
+        Arrays.sort(spacing);
+        return spacing[spacing.length / 2];
+    }
+    
+    /**
+     * Find the bounding box of contour c, and list the edges overlapping
+     * each band of its y range.
+     * @param c contour number
+     */
+    private void buildEdgeTable(int c) {
+        double[] xy = this.structure.getContourXY(c);
+        int n = this.structure.getNPoints(c);
+        
+        double x0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY;
+        double y0 = Double.POSITIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        for (int p = 0; p < n; ++p) {
+            x0 = Math.min(x0, xy[2*p]);
+            x1 = Math.max(x1, xy[2*p]);
+            y0 = Math.min(y0, xy[2*p + 1]);
+            y1 = Math.max(y1, xy[2*p + 1]);
+        }
+        this.xmin[c] = x0;
+        this.xmax[c] = x1;
+        this.ymin[c] = y0;
+        this.ymax[c] = y1;
+        
+        int nBands = Math.max(1, n / EDGES_PER_BAND);
+        double height = (y1 > y0) ? (y1 - y0) / nBands : 1.;
+        this.bandHeight[c] = height;
+        
+        // count, then fill, the edges of each band
+        int[] start = new int[nBands + 1];
+        for (int p = 0; p < n; ++p) {
+            int q = (p + 1) % n;
+            int b0 = this.band(c, Math.min(xy[2*p + 1], xy[2*q + 1]), nBands);
+            int b1 = this.band(c, Math.max(xy[2*p + 1], xy[2*q + 1]), nBands);
+            for (int b = b0; b <= b1; ++b) {
+                ++start[b + 1];
+            }
+        }
+        for (int b = 1; b <= nBands; ++b) {
+            start[b] += start[b-1];
+        }
+        
+        int[] edges = new int[start[nBands]];
+        int[] fill = Arrays.copyOf(start, nBands);
+        for (int p = 0; p < n; ++p) {
+            int q = (p + 1) % n;
+            int b0 = this.band(c, Math.min(xy[2*p + 1], xy[2*q + 1]), nBands);
+            int b1 = this.band(c, Math.max(xy[2*p + 1], xy[2*q + 1]), nBands);
+            for (int b = b0; b <= b1; ++b) {
+                edges[fill[b]++] = p;
+            }
+        }
+        
+        this.bandStart[c] = start;
+        this.bandEdges[c] = edges;
+    }
+    
+    /**
+     * 
+     * @param c contour number
+     * @param y y (mm), within the y range of the contour
+     * @param nBands number of bands of the contour
+     * @return band of contour c containing y
+     */
+    private int band(int c, double y, int nBands) {
+        int b = (int) ((y - this.ymin[c]) / this.bandHeight[c]);
+        return Math.max(0, Math.min(nBands - 1, b));
+    }
+    
+    /**
+     * 
+     * @return the indexed structure
+     */
+    public Structure getStructure() {
+        return this.structure;
+    }
+    
+    /**
+     * 
+     * @return thickness of the slab of each contour plane (mm), or 0 if
+     *         it was not given and there are fewer than two planes
+     */
+    public double getSliceThickness() {
+        return this.sliceThickness;
+    }
+    
+    /**
+     * 
+     * @return number of contour planes
+     */
+    public int getNPlanes() {
+        return this.planeZ.length;
+    }
+    
+    /**
+     * 
+     * @return z of the bottom of the slab of the lowest contour plane (mm),
+     *         or +infinity if there are no planes
+     */
+    public double getBottom() {
+        return (this.planeBottom.length == 0) ? Double.POSITIVE_INFINITY : this.planeBottom[0];
+    }
+    
+    /**
+     * 
+     * @return z of the top of the slab of the highest contour plane (mm), 
+     *         or -infinity if there are no planes
+     */
+    public double getTop() {
+        int n = this.planeTop.length;
+        return (n == 0) ? Double.NEGATIVE_INFINITY : this.planeTop[n - 1];
+    }
+    
+    /**
+     * 
+     * @param z z (mm)
+     * @return contour plane whose slab contains z, or -1 if none
+     */
+    public int planeOf(double z) {
+        double zq = z + Z_TOLERANCE;
+        int p = Arrays.binarySearch(this.planeBottom, zq);
+        if (p < 0) {
+            p = -p - 2;     // last plane whose slab starts at or below z
+        }
+        
+        if (p < 0 || zq >= this.planeTop[p] + Z_TOLERANCE) {
+            return -1;
+        }
+        return p;
+    }
+    
+    /**
+     * 
+     * @param x x (mm)
+     * @param y y (mm)
+     * @param z z (mm)
+     * @return predicate: point is inside the structure
+     */
+    public boolean contains(double x, double y, double z) {
+        int p = this.planeOf(z);
+        return p >= 0 && this.containsInPlane(p, x, y);
+    }
+    
+    /**
+     * 
+     * @param p contour plane
+     * @param x x (mm)
+     * @param y y (mm)
+     * @return predicate: (x,y) is inside the contours of plane p
+     */
+    public boolean containsInPlane(int p, double x, double y) {
+        boolean inside = false;
+        for (int n = this.planeStart[p]; n < this.planeStart[p+1]; ++n) {
+            int c = this.planeContours[n];
+            if (x < this.xmin[c] || x > this.xmax[c] || y < this.ymin[c] || y >= this.ymax[c]) {
+                // outside this contour: an even number of crossings
+                continue;
+            }
+            
+            if (this.crossingsRightOf(c, x, y) % 2 == 1) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+    
+    /**
+     * 
+     * @param c contour number
+     * @param x x (mm)
+     * @param y y (mm), within the y range of the contour
+     * @return number of edges of contour c crossing the ray from (x,y)
+     *         towards +x
+     */
+    private int crossingsRightOf(int c, double x, double y) {
+        double[] xy = this.structure.getContourXY(c);
+        int n = this.structure.getNPoints(c);
+        int[] start = this.bandStart[c];
+        int b = this.band(c, y, start.length - 1);
+        
+        int crossings = 0;
+        for (int e = start[b]; e < start[b+1]; ++e) {
+            int p = this.bandEdges[c][e];
+            int q = (p + 1) % n;
+            double ya = xy[2*p + 1];
+            double yb = xy[2*q + 1];
+            if ((ya <= y) == (yb <= y)) {
+                continue;
+            }
+            
+            double xc = xy[2*p] + (y - ya) * (xy[2*q] - xy[2*p]) / (yb - ya);
+            if (xc > x) {
+                ++crossings;
+            }
+        }
+        return crossings;
+    }
+    
+    /**
+     * 
+     * @param grid voxel grid
+     * @param i x index
+     * @param j y index
+     * @param k z index
+     * @return predicate: centre of voxel (i,j,k) is inside the structure
+     */
+    public boolean containsVoxel(VoxelGrid grid, int i, int j, int k) {
+        return this.contains(grid.getCenter(VoxelGrid.X, i),
+                grid.getCenter(VoxelGrid.Y, j), grid.getCenter(VoxelGrid.Z, k));
+    }
+    
+    /**
+     * Fraction of a voxel inside the structure, estimated by testing
+     * n x n x n points spread evenly over the voxel.
+     * @param grid voxel grid
+     * @param i x index
+     * @param j y index
+     * @param k z index
+     * @param n number of sample points along each axis
+     * @return fraction of voxel (i,j,k) inside the structure, 0 to 1
+     */
+    public double voxelFraction(VoxelGrid grid, int i, int j, int k, int n) {
+        double x0 = grid.getEdge(VoxelGrid.X, i);
+        double y0 = grid.getEdge(VoxelGrid.Y, j);
+        double z0 = grid.getEdge(VoxelGrid.Z, k);
+        double dx = grid.getVoxelSize(VoxelGrid.X, i) / n;
+        double dy = grid.getVoxelSize(VoxelGrid.Y, j) / n;
+        double dz = grid.getVoxelSize(VoxelGrid.Z, k) / n;
+        
+        // quick rejection: voxel entirely outside the planes or the
+        // bounding box
+        if (!this.overlaps(x0, x0 + n * dx, y0, y0 + n * dy, z0, z0 + n * dz)) {
+            return 0.;
+        }
+        
+        int inside = 0;
+        for (int c = 0; c < n; ++c) {
+            int p = this.planeOf(z0 + (c + 0.5) * dz);
+            if (p < 0) {
+                continue;
+            }
+            for (int b = 0; b < n; ++b) {
+                double y = y0 + (b + 0.5) * dy;
+                for (int a = 0; a < n; ++a) {
+                    if (this.containsInPlane(p, x0 + (a + 0.5) * dx, y)) {
+                        ++inside;
+                    }
+                }
+            }
+        }
+        return (double) inside / (n * n * n);
+    }
+    
+    /**
+     * 
+     * @param x0 lower x of box
+     * @param x1 upper x of box
+     * @param y0 lower y of box
+     * @param y1 upper y of box
+     * @param z0 lower z of box
+     * @param z1 upper z of box
+     * @return predicate: the box may overlap the structure
+     */
+    private boolean overlaps(double x0, double x1, double y0, double y1, double z0, double z1) {
+        if (this.planeZ.length == 0) {
+            return false;
+        }
+        
+        if (z1 < this.planeBottom[0] || z0 >= this.planeTop[this.planeTop.length - 1]) {
+            return false;
+        }
+        
+        BoundingBox bbox = this.structure.getBoundingBox();
+        Point3d lower = new Point3d();
+        Point3d upper = new Point3d();
+        bbox.getLower(lower);
+        bbox.getUpper(upper);
+        return x1 >= lower.x && x0 <= upper.x && y1 >= lower.y && y0 <= upper.y;
+    }
+    
+    /** contour planes closer than this (mm) are the same plane */
+    private static final double Z_TOLERANCE = 1.e-3;
+    
+    /** planes further apart than this many slice thicknesses have a gap */
+    private static final double GAP_FACTOR = 1.5;
+    
+    /** average number of edges listed per band */
+    private static final int EDGES_PER_BAND = 4;
+    
+    /** indexed structure */
+    private Structure structure;
+    
+    /** thickness of the slab of each contour plane (mm), or 0 if unknown */
+    private double sliceThickness;
+    
+    /** z of each contour plane, increasing */
+    private double[] planeZ;
+    
+    /** bottom of the slab of each contour plane */
+    private double[] planeBottom;
+    
+    /** top of the slab of each contour plane */
+    private double[] planeTop;
+    
+    /** index into planeContours of the first contour of each plane */
+    private int[] planeStart;
+    
+    /** contour numbers, plane by plane */
+    private int[] planeContours;
+    
+    /** 2D bounding box of each contour */
+    private double[] xmin, xmax, ymin, ymax;
+    
+    /** height of the bands of each contour */
+    private double[] bandHeight;
+    
+    /** for each contour, index into bandEdges of the first edge of each band */
+    private int[][] bandStart;
+    
+    /** for each contour, the edges (by first point) overlapping each band */
+    private int[][] bandEdges;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: RS file and structure name
+     */
+    public static void main(String[] args) {
+        StructureSet structs = new StructureSet(new File(args[0]));
+        Structure structure = structs.getStructureMap().get(args[1]);
+        StructureIndex index = structure.getIndex();
+        
+        Point3d lower = new Point3d();
+        Point3d upper = new Point3d();
+        structure.getBoundingBox().getLower(lower);
+        structure.getBoundingBox().getUpper(upper);
+        Point3d centre = new Point3d(0.5 * (lower.x + upper.x),
+                0.5 * (lower.y + upper.y), 0.5 * (lower.z + upper.z));
+        
+        System.out.println("no. of planes: " + index.getNPlanes());
+        System.out.println("centre " + centre + " inside: "
+                + index.contains(centre.x, centre.y, centre.z));
+    }
+}
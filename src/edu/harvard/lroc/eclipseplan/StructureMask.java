@@ -0,0 +1,319 @@
+/* StructureMask.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import javax.media.j3d.BoundingBox;
+import javax.vecmath.Point3d;
+
+/**
+ * Voxels of a VoxelGrid which lie inside a structure. Each slice is kept as
+ * runs of voxels along each row (MaskSlice); slices which the structure 
+ * does not touch take no space at all.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class StructureMask {
+    /**
+     * Empty mask
+     * @param grid voxel grid the mask lives on
+     */
+    public StructureMask(VoxelGrid grid) {
+        this.grid = grid;
+        this.nx = grid.getNx();
+        this.ny = grid.getNy();
+        this.slices = new MaskSlice[grid.getNz()];
+    }
+    
+    /**
+     * 
+     * @return voxel grid the mask lives on
+     */
+    public VoxelGrid getGrid() {
+        return this.grid;
+    }
+    
+    /**
+     * 
+     * @param i x index
+     * @param j y index
+     * @param k z index
+     * @return predicate: voxel (i,j,k) is inside the structure
+     */
+    public boolean isSet(int i, int j, int k) {
+        MaskSlice slice = this.slices[k];
+        return slice != null && slice.isSet(i, j);
+    }
+    
+    /**
+     * 
+     * @param k z index
+     * @return the voxels of slice k, or null if the slice is empty
+     */
+    public MaskSlice getSlice(int k) {
+        return this.slices[k];
+    }
+    
+    /**
+     * Replace slice k.
+     * @param k z index
+     * @param slice voxels of the slice; null for none
+     */
+    void setSlice(int k, MaskSlice slice) {
+        if (slice != null && slice.getNy() != this.ny) {
+            throw new IllegalArgumentException("slice has " + slice.getNy() 
+                    + " rows, not " + this.ny);
+        }
+        this.slices[k] = slice;
+    }
+    
+    /**
+     * 
+     * @return number of voxels inside the structure
+     */
+    public long cardinality() {
+        long n = 0;
+        for (MaskSlice slice : this.slices) {
+            if (slice != null) {
+                n += slice.cardinality();
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * 
+     * @return predicate: no voxel is inside the structure
+     */
+    public boolean isEmpty() {
+        for (MaskSlice slice : this.slices) {
+            if (slice != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 
+     * @return index bounds of the voxels inside the structure,
+     *         { imin, imax, jmin, jmax, kmin, kmax } with the upper bounds
+     *         exclusive, or null if the mask is empty
+     */
+    public int[] getIndexBounds() {
+        int[] bounds = null;
+        for (int k = 0; k < this.slices.length; ++k) {
+            MaskSlice slice = this.slices[k];
+            if (slice == null) {
+                continue;
+            }
+            
+            if (bounds == null) {
+                bounds = new int[] { this.nx, 0, this.ny, 0, k, k };
+            }
+            bounds[5] = k + 1;
+            
+            int[] sb = slice.getIndexBounds();
+            bounds[0] = Math.min(bounds[0], sb[0]);
+            bounds[1] = Math.max(bounds[1], sb[1]);
+            bounds[2] = Math.min(bounds[2], sb[2]);
+            bounds[3] = Math.max(bounds[3], sb[3]);
+        }
+        return bounds;
+    }
+    
+    /**
+     * 
+     * @return bounding box of the voxels inside the structure (mm), from
+     *         voxel edge to voxel edge, or null if the mask is empty
+     */
+    public BoundingBox getBoundingBox() {
+        int[] bounds = this.getIndexBounds();
+        if (bounds == null) {
+            return null;
+        }
+        
+        return new BoundingBox(
+                new Point3d(this.grid.getEdge(VoxelGrid.X, bounds[0]),
+                        this.grid.getEdge(VoxelGrid.Y, bounds[2]),
+                        this.grid.getEdge(VoxelGrid.Z, bounds[4])),
+                new Point3d(this.grid.getEdge(VoxelGrid.X, bounds[1]),
+                        this.grid.getEdge(VoxelGrid.Y, bounds[3]),
+                        this.grid.getEdge(VoxelGrid.Z, bounds[5])));
+    }
+    
+    /**
+     * 
+     * @return bytes used by the runs of all the slices
+     */
+    public long getMemoryUse() {
+        long n = 0;
+        for (MaskSlice slice : this.slices) {
+            if (slice != null) {
+                n += slice.getMemoryUse();
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * 
+     * @param other mask on the same grid
+     * @return voxels inside either mask
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public StructureMask union(StructureMask other) throws EclipsePlanException {
+        return this.combine(other, UNION);
+    }
+    
+    /**
+     * 
+     * @param other mask on the same grid
+     * @return voxels inside both masks
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public StructureMask intersect(StructureMask other) throws EclipsePlanException {
+        return this.combine(other, INTERSECT);
+    }
+    
+    /**
+     * e.g. BODY minus PTV
+     * @param other mask on the same grid
+     * @return voxels inside this mask but not inside other
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public StructureMask subtract(StructureMask other) throws EclipsePlanException {
+        return this.combine(other, SUBTRACT);
+    }
+    
+    /**
+     * 
+     * @param masks masks on the same grid; at least one
+     * @return voxels inside any of the masks
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public static StructureMask union(List<StructureMask> masks) throws EclipsePlanException {
+        StructureMask[] all = masks.toArray(new StructureMask[masks.size()]);
+        return all[0].combine(all, UNION);
+    }
+    
+    /**
+     * 
+     * @param other mask on the same grid
+     * @param op UNION, INTERSECT or SUBTRACT
+     * @return this op other
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    private StructureMask combine(StructureMask other, int op) throws EclipsePlanException {
+        return this.combine(new StructureMask[] { this, other }, op);
+    }
+    
+    /**
+     * Combine masks slice by slice, in parallel: the first op the second,
+     * the result op the third, and so on.
+     * @param masks masks on the same grid as this
+     * @param op UNION, INTERSECT or SUBTRACT
+     * @return combined mask
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    private StructureMask combine(final StructureMask[] masks, final int op) throws EclipsePlanException {
+        for (StructureMask mask : masks) {
+            if (!mask.grid.equals(this.grid)) {
+                throw new EclipsePlanException("masks are on different grids");
+            }
+        }
+        
+        final StructureMask result = new StructureMask(this.grid);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int k = 0; k < this.slices.length; ++k) {
+            final int kk = k;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    MaskSlice slice = masks[0].slices[kk];
+                    for (int m = 1; m < masks.length; ++m) {
+                        MaskSlice next = masks[m].slices[kk];
+                        switch (op) {
+                            case UNION:
+                                slice = MaskSlice.union(slice, next);
+                                break;
+                            case INTERSECT:
+                                slice = MaskSlice.intersect(slice, next);
+                                break;
+                            default:
+                                slice = MaskSlice.subtract(slice, next);
+                                break;
+                        }
+                    }
+                    result.slices[kk] = slice;
+                    return null;
+                }
+            });
+        }
+        
+        TaskPool.invokeAll(tasks, "combining masks");
+        
+        return result;
+    }
+    
+    @Override
+    public String toString() {
+        int nSlices = 0;
+        for (MaskSlice slice : this.slices) {
+            if (slice != null) {
+                ++nSlices;
+            }
+        }
+        
+        String rep = "StructureMask -- ";
+        rep += "no. of voxels: " + this.cardinality() + "; ";
+        rep += "no. of slices: " + nSlices + " of " + this.slices.length + "; ";
+        rep += "memory: " + this.getMemoryUse() + " bytes";
+        return rep;
+    }
+    
+    /** voxel grid */
+    private VoxelGrid grid;
+    
+    /** number of voxels along x */
+    private int nx;
+    
+    /** number of voxels along y */
+    private int ny;
+    
+    /** combining rules */
+    private static final int UNION = 0;
+    private static final int INTERSECT = 1;
+    private static final int SUBTRACT = 2;
+    
+    /** runs of each slice; null for empty slices */
+    private MaskSlice[] slices;
+}
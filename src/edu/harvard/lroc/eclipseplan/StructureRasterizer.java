@@ -0,0 +1,264 @@
+/* StructureRasterizer.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Each contour of a structure is a closed planar polygon lying on one CT
+// slice. A voxel is inside the contour if its centre is, using the usual
+// scanline fill: for each row of voxel centres, find where the row crosses
+// the polygon edges, sort the crossings, and fill between successive pairs.
+// An edge counts as crossing a row if the row lies in [ymin, ymax) of the
+// edge, which takes care of vertices sitting exactly on a row.
+//
+// Holes (and islands within holes) come as separate contours on the same
+// slice, so the contours of a slice are combined with XOR, i.e. the
+// even-odd rule applied across contours. The fill produces the runs of
+// each row directly, so the XOR works on runs too.
+//
+// Contours are filled in parallel, and then the slices are combined in
+// parallel.
+
+/**
+ * Converts the planar contours of a Structure into a StructureMask on a
+ * voxel grid.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class StructureRasterizer {
+    /**
+     * 
+     * @param grid voxel grid to rasterize onto
+     */
+    public StructureRasterizer(VoxelGrid grid) {
+        this.grid = grid;
+    }
+    
+    /**
+     * 
+     * @return voxel grid rasterized onto
+     */
+    public VoxelGrid getGrid() {
+        return this.grid;
+    }
+    
+    /**
+     * 
+     * @param structure structure to rasterize
+     * @return voxels of the grid inside the structure
+     * @throws EclipsePlanException
+     */
+    public StructureMask rasterize(final Structure structure) throws EclipsePlanException {
+        StructureMask mask = new StructureMask(this.grid);
+        
+        // which slice does each contour lie on?
+        TreeMap<Integer, List<Integer>> sliceContours = new TreeMap<Integer, List<Integer>>();
+        for (int c = 0; c < structure.getNContours(); ++c) {
+            int k = this.sliceOf(structure.getContourZ(c));
+            if (k < 0 || structure.getNPoints(c) < 3) {
+                continue;
+            }
+            
+            if (!sliceContours.containsKey(k)) {
+                sliceContours.put(k, new ArrayList<Integer>());
+            }
+            sliceContours.get(k).add(c);
+        }
+        
+        if (sliceContours.isEmpty()) {
+            return mask;
+        }
+        
+        String what = "rasterizing " + structure.getName();
+        
+        // fill the contours
+        List<Integer> contourNumbers = new ArrayList<Integer>();
+        List<Callable<MaskSlice>> fillTasks = new ArrayList<Callable<MaskSlice>>();
+        for (List<Integer> contours : sliceContours.values()) {
+            for (final int c : contours) {
+                contourNumbers.add(c);
+                fillTasks.add(new Callable<MaskSlice>() {
+                    public MaskSlice call() {
+                        return fillContour(structure.getContourXY(c));
+                    }
+                });
+            }
+        }
+        
+        List<MaskSlice> filled = TaskPool.invokeAll(fillTasks, what);
+        final TreeMap<Integer, MaskSlice> contourBits = new TreeMap<Integer, MaskSlice>();
+        for (int n = 0; n < filled.size(); ++n) {
+            contourBits.put(contourNumbers.get(n), filled.get(n));
+        }
+        
+        // combine the contours of each slice
+        List<Integer> sliceNumbers = new ArrayList<Integer>(sliceContours.keySet());
+        List<Callable<MaskSlice>> combineTasks = new ArrayList<Callable<MaskSlice>>();
+        for (final List<Integer> contours : sliceContours.values()) {
+            combineTasks.add(new Callable<MaskSlice>() {
+                public MaskSlice call() {
+                    MaskSlice runs = null;
+                    for (int c : contours) {
+                        runs = MaskSlice.xor(runs, contourBits.get(c));
+                    }
+                    return runs;
+                }
+            });
+        }
+        
+        List<MaskSlice> combined = TaskPool.invokeAll(combineTasks, what);
+        for (int n = 0; n < combined.size(); ++n) {
+            mask.setSlice(sliceNumbers.get(n), combined.get(n));
+        }
+        
+        if (this.debug_p) {
+            System.out.println(structure.getName() + ": " + mask);
+        }
+        
+        return mask;
+    }
+    
+    /**
+     * Contours lie on the CT slice planes, which are the centres of the
+     * phantom voxels.
+     * @param z z of contour (mm)
+     * @return index of the slice containing z, or -1 if z is outside the
+     *         grid
+     */
+    private int sliceOf(double z) {
+        return this.grid.indexOf(VoxelGrid.Z, z);
+    }
+    
+    /**
+     * Scanline fill of one contour.
+     * @param xy contour points, packed as x0, y0, x1, y1, ...
+     * @return voxels of one slice whose centres are inside the contour, or
+     *         null if none
+     */
+    MaskSlice fillContour(double[] xy) {
+        int n = xy.length / 2;
+        
+        double ymin = Double.POSITIVE_INFINITY;
+        double ymax = Double.NEGATIVE_INFINITY;
+        for (int p = 0; p < n; ++p) {
+            ymin = Math.min(ymin, xy[2*p + 1]);
+            ymax = Math.max(ymax, xy[2*p + 1]);
+        }
+        
+        // rows whose centres lie in [ymin, ymax)
+        int j0 = this.grid.firstCenterAtOrAbove(VoxelGrid.Y, ymin);
+        int j1 = this.grid.firstCenterAtOrAbove(VoxelGrid.Y, ymax);
+        if (j0 >= j1) {
+            return null;
+        }
+        
+        // count the crossings of each row, then fill them in, so that all
+        // the crossings fit in one array
+        int[] start = new int[j1 - j0 + 1];
+        for (int p = 0; p < n; ++p) {
+            int q = (p + 1) % n;
+            double ya = Math.min(xy[2*p + 1], xy[2*q + 1]);
+            double yb = Math.max(xy[2*p + 1], xy[2*q + 1]);
+            int ja = this.grid.firstCenterAtOrAbove(VoxelGrid.Y, ya);
+            int jb = this.grid.firstCenterAtOrAbove(VoxelGrid.Y, yb);
+            for (int j = ja; j < jb; ++j) {
+                ++start[j - j0 + 1];
+            }
+        }
+        
+        for (int r = 1; r < start.length; ++r) {
+            start[r] += start[r-1];
+        }
+        
+        double[] crossings = new double[start[start.length - 1]];
+        int[] fill = Arrays.copyOf(start, start.length - 1);
+        for (int p = 0; p < n; ++p) {
+            int q = (p + 1) % n;
+            double xa = xy[2*p];
+            double ya = xy[2*p + 1];
+            double xb = xy[2*q];
+            double yb = xy[2*q + 1];
+            if (ya == yb) {
+                continue;
+            }
+            
+            int ja = this.grid.firstCenterAtOrAbove(VoxelGrid.Y, Math.min(ya, yb));
+            int jb = this.grid.firstCenterAtOrAbove(VoxelGrid.Y, Math.max(ya, yb));
+            double slope = (xb - xa) / (yb - ya);
+            for (int j = ja; j < jb; ++j) {
+                double yc = this.grid.getCenter(VoxelGrid.Y, j);
+                crossings[fill[j - j0]++] = xa + (yc - ya) * slope;
+            }
+        }
+        
+        // fill between pairs of crossings
+        MaskSlice.Builder runs = new MaskSlice.Builder(this.grid.getNy(), crossings.length);
+        for (int j = j0; j < j1; ++j) {
+            int from = start[j - j0];
+            int to = start[j - j0 + 1];
+            Arrays.sort(crossings, from, to);
+            for (int c = from; c + 1 < to; c += 2) {
+                int ia = this.grid.firstCenterAtOrAbove(VoxelGrid.X, crossings[c]);
+                int ib = this.grid.firstCenterAtOrAbove(VoxelGrid.X, crossings[c+1]);
+                runs.addRun(j, ia, ib);
+            }
+        }
+        
+        return runs.build();
+    }
+    
+    /** voxel grid */
+    private VoxelGrid grid;
+    
+    /** debug flag */
+    private boolean debug_p = false;
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: patient ID and structure name
+     */
+    public static void main(String[] args) {
+        Phantom phantom = new Phantom(args[0]);
+        
+        try {
+            StructureMask mask = phantom.getMask(args[1]);
+            System.out.println(phantom.getVoxelGrid());
+            System.out.println(mask);
+        } catch (EclipsePlanException ex) {
+            Logger.getLogger(StructureRasterizer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
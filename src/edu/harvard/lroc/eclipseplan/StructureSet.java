@@ -91,10 +91,11 @@ public class StructureSet {
     }
 
     /**
-     * 
+     * The whole file is parsed, if it has not been already.
      * @return Dicom object from structure file.
      */
     public DicomObject getStructureDcm() {
+        this.readContours();
         return structureDcm;
     }
     
@@ -145,41 +146,51 @@ public class StructureSet {
     // appropriate structure using the ReferencedROINumber. To do so, we 
     // introduce a mapping between ROINumber and the ROIName, viz. numberToNameMap
               
+    // Parsing the RS file builds a Dicom object for every ContourData element,
+    // which for a big BODY is most of the file. Listing the structures only
+    // needs the StructureSetROISequence, which comes before the
+    // ROIContourSequence (DICOM elements are in tag order), so only the bytes
+    // up to the ROIContourSequence are parsed to begin with. The whole file
+    // is parsed the first time a structure wants its contours, or anyone
+    // wants the Dicom object. Should the short parse go wrong, the whole file
+    // is parsed there and then.
+    
     /**
-     * Read in structures and populate the map of structures.
+     * Read in structure names and numbers, and populate the map of structures.
      */
     private void read() {
-        FileInputStream fin = null;
-        BufferedInputStream bis = null;
-        
         DicomObject struct = null;
-        DicomObject contourSeq = null;
-
-        // These two maps are keyed by ROI Number. The nameNumberMap
-        TreeMap<Integer, DicomObject> structMetaData = new TreeMap<Integer, DicomObject>();
-        TreeMap<Integer, DicomObject> structContours = new TreeMap<Integer, DicomObject>();
         
         try {
-            fin = new FileInputStream(this.structureFile);
-            bis = new BufferedInputStream(fin);
-            this.structureDcm = new DicomObject();
-            this.structureDcm.read(bis, false);
-            this.patientID = this.structureDcm.getS(DDict.dPatientID);
+            DicomObject header = null;
+            long end = this.findContourSequence();
+            if (end > 0) {
+                try {
+                    header = this.parse(end);
+                } catch (DicomException ex) {
+                    Logger.getLogger(StructureSet.class.getName()).log(Level.FINE, null, ex);
+                }
+            }
+            if (header == null || header.getSize(DDict.dStructureSetROISequence) <= 0) {
+                this.structureDcm = this.parse(-1);
+                header = this.structureDcm;
+            }
+            this.patientID = header.getS(DDict.dPatientID);
             
-            int seqlen = this.structureDcm.getSize(DDict.dStructureSetROISequence);
+            TreeMap<Integer, DicomObject> structMetaData = new TreeMap<Integer, DicomObject>();
+            int seqlen = header.getSize(DDict.dStructureSetROISequence);
             for (int i = 0; i < seqlen; ++i) {
-                struct = this.structureDcm.getSequenceItem(DDict.dStructureSetROISequence, i);
+                struct = header.getSequenceItem(DDict.dStructureSetROISequence, i);
                 structMetaData.put(struct.getI(DDict.dROINumber), struct);
                 nameNumberMap.put(struct.getS(DDict.dROIName), struct.getI(DDict.dROINumber));
-                contourSeq = this.structureDcm.getSequenceItem(DDict.dROIContourSequence, i);
-                structContours.put(struct.getI(DDict.dROINumber), contourSeq);                
             }
             
+            // the contours are only read, and then decoded, when needed
             for (String roiName : nameNumberMap.navigableKeySet()) {
                 Integer roiNumber = nameNumberMap.get(roiName);
-                structureMap.put(roiName, 
-                        new Structure(structMetaData.get(roiNumber),
-                                      structContours.get(roiNumber)));
+                Structure structure = new Structure(structMetaData.get(roiNumber), null);
+                structure.setStructureSet(this);
+                structureMap.put(roiName, structure);
             }
             
             this.fillNumberNameMap();
@@ -191,22 +202,179 @@ public class StructureSet {
             Logger.getLogger(StructureSet.class.getName()).log(Level.SEVERE, null, ex);
         } catch (DicomException ex) {
             Logger.getLogger(StructureSet.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * Read the contour part of the structure file, if that has not been done
+     * yet, and hand each structure its ROIContourSequence item.
+     */
+    synchronized void readContours() {
+        if (this.contoursRead_p) {
+            return;
+        }
+        this.contoursRead_p = true;
+        
+        DicomObject contourSeq = null;
+        try {
+            if (this.structureDcm == null) {
+                this.structureDcm = this.parse(-1);
+            }
+            
+            // the ROIContourSequence need not be in the same order as the
+            // StructureSetROISequence, nor have an item for every ROI
+            // The ContourData elements of the file are in the same order as
+            // the contours, so note which element each ROI's contours start at
+            TreeMap<Integer, DicomObject> structContours = new TreeMap<Integer, DicomObject>();
+            TreeMap<Integer, Integer> firstElements = new TreeMap<Integer, Integer>();
+            int nElements = 0;
+            int contourlen = this.structureDcm.getSize(DDict.dROIContourSequence);
+            for (int i = 0; i < contourlen; ++i) {
+                contourSeq = this.structureDcm.getSequenceItem(DDict.dROIContourSequence, i);
+                structContours.put(contourSeq.getI(DDict.dReferencedROINumber), contourSeq);
+                firstElements.put(contourSeq.getI(DDict.dReferencedROINumber), nElements);
+                nElements += Math.max(0, contourSeq.getSize(DDict.dContourSequence));
+            }
+            this.nContourElements = nElements;
+            
+            for (Structure structure : this.structureMap.values()) {
+                Integer roiNumber = structure.getNumber();
+                if (structContours.containsKey(roiNumber)) {
+                    structure.setContours(structContours.get(roiNumber),
+                                          firstElements.get(roiNumber));
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(StructureSet.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (DicomException ex) {
+            Logger.getLogger(StructureSet.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * 
+     * @return offset in the structure file of the ROIContourSequence, or -1
+     *         if it cannot be found
+     * @throws java.io.IOException
+     */
+    private long findContourSequence() throws IOException {
+        long size = this.structureFile.length();
+        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(this.structureFile));
+        try {
+            // (3006,0039), little endian, then either the VR "SQ" (explicit
+            // VR) or a length which is undefined or fits in the file
+            int window = 0;
+            long position = 0;
+            int b;
+            while ((b = bis.read()) >= 0) {
+                ++position;
+                window = (window << 8) | b;
+                if (window != CONTOUR_SEQUENCE_TAG) {
+                    continue;
+                }
+                
+                byte[] next = new byte[4];
+                int n = bis.read(next);
+                long length = (next[0] & 0xffL) | (next[1] & 0xffL) << 8
+                        | (next[2] & 0xffL) << 16 | (next[3] & 0xffL) << 24;
+                if (n == 4 && ((next[0] == 'S' && next[1] == 'Q')
+                        || length == 0xffffffffL || position + 4 + length <= size)) {
+                    return position - 4;
+                }
+                position += Math.max(n, 0);
+            }
         } finally {
+            bis.close();
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * 
+     * @param length number of bytes of the structure file to parse, or -1 
+     *        for all of it
+     * @return Dicom object of those bytes
+     * @throws java.io.IOException
+     * @throws com.archimed.dicom.DicomException
+     */
+    private DicomObject parse(long length) throws IOException, DicomException {
+        InputStream in;
+        if (length < 0) {
+            in = new BufferedInputStream(new FileInputStream(this.structureFile));
+        } else {
+            byte[] bytes = new byte[(int) length];
+            RandomAccessFile raf = new RandomAccessFile(this.structureFile, "r");
             try {
-                fin.close();
-            } catch (IOException ex) {
-                Logger.getLogger(StructureSet.class.getName()).log(Level.SEVERE, null, ex);
+                raf.readFully(bytes);
+            } finally {
+                raf.close();
             }
+            in = new ByteArrayInputStream(bytes);
+        }
+        
+        try {
+            DicomObject dcm = new DicomObject();
+            dcm.read(in, false);
+            return dcm;
+        } finally {
+            in.close();
         }
     }
     
+    /** (3006,0039) ROIContourSequence, as the bytes of the file run */
+    private static final int CONTOUR_SEQUENCE_TAG = 0x06303900;
+    
+    /** the contour part of the file has been read */
+    private boolean contoursRead_p = false;
+    
+    // The decoder maps and scans the whole file, so it is only made when a
+    // structure first wants its contours, and then shared by all of them.
+    
+    /**
+     * 
+     * @return bulk decoder of the ContourData of the structure file, or null 
+     *         if it cannot be used, in which case structures decode their
+     *         contours through the Dicom object
+     */
+    synchronized ContourDataDecoder getContourData() {
+        this.readContours();
+        if (this.contourDataOpened_p) {
+            return this.contourData;
+        }
+        this.contourDataOpened_p = true;
+        
+        try {
+            ContourDataDecoder decoder = new ContourDataDecoder(this.structureFile);
+            if (decoder.getNElements() == this.nContourElements) {
+                this.contourData = decoder;
+            } else if (this.debug_p) {
+                System.out.println("found " + decoder.getNElements() 
+                        + " ContourData elements for " + this.nContourElements + " contours");
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(StructureSet.class.getName()).log(Level.WARNING, null, ex);
+        }
+        
+        return this.contourData;
+    }
+    
+    /** number of contours in the file */
+    private int nContourElements;
+    
+    /** bulk decoder of ContourData, or null */
+    private ContourDataDecoder contourData;
+    
+    /** the decoder has been tried */
+    private boolean contourDataOpened_p = false;
+    
     /**
      * Check that patient ID number is consistent with directory name.
      * @return predicate: Patient ID is consistent with directory name.
      * @throws com.archimed.dicom.DicomException
      */
     private boolean patientIDConsistent_p() throws DicomException {
-        return this.patientID.equalsIgnoreCase(this.structureDcm.getS(DDict.dPatientID));
+        return this.patientID.equalsIgnoreCase(this.getStructureDcm().getS(DDict.dPatientID));
     }
     
     /**
@@ -264,6 +432,48 @@ public class StructureSet {
         }
     }
     
+    // Masks are expensive to make, and the same ones are wanted over and over
+    // (overrides, cropping, DVHs), so keep them. A mask is only good for the
+    // grid it was made on; asking for another grid replaces it.
+    
+    /**
+     * 
+     * @param structureName name of structure
+     * @param grid voxel grid
+     * @return voxels of grid inside the structure
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException
+     */
+    public synchronized StructureMask getMask(String structureName, VoxelGrid grid) throws EclipsePlanException {
+        StructureMask mask = this.maskCache.get(structureName);
+        if (mask != null && mask.getGrid().equals(grid)) {
+            return mask;
+        }
+        
+        Structure structure = this.structureMap.get(structureName);
+        if (structure == null) {
+            throw new EclipsePlanException("No such structure: " + structureName);
+        }
+        
+        mask = new StructureRasterizer(grid).rasterize(structure);
+        this.maskCache.put(structureName, mask);
+        
+        return mask;
+    }
+    
+    /**
+     * Tell every structure the thickness of the CT slices it was contoured
+     * on, which gives the thickness of its contour planes.
+     * @param sliceThickness CT slice thickness (mm)
+     */
+    public synchronized void setSliceThickness(double sliceThickness) {
+        for (Structure structure : this.structureMap.values()) {
+            structure.setSliceThickness(sliceThickness);
+        }
+    }
+    
+    /** Structure masks, by structure name */
+    private HashMap<String, StructureMask> maskCache = new HashMap<String, StructureMask>();
+    
     /** Directory containing the structure file */
     private File planDir;
     
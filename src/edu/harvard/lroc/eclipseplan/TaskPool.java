@@ -0,0 +1,180 @@
+/* TaskPool.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// One pool of worker threads, one per processor, for every engine, instead of
+// a pool per call: a plan run rasterizes, transforms and merges many times
+// over, and each new pool started and stopped its own threads. The workers
+// are daemons, so nothing has to shut the pool down.
+//
+// A task which itself calls invokeAll() (a dose read by a merge task, say)
+// would wait for workers which may all be waiting in turn, so tasks handed
+// over from a worker are run there, one after the other: the outer tasks
+// already keep every processor busy.
+
+/**
+ * The thread pool shared by the engines.
+ * @author David Chin
+ * @version $Revision$
+ */
+final class TaskPool {
+    private TaskPool() {}
+    
+    /**
+     *
+     * @return number of worker threads
+     */
+    static int getNThreads() {
+        return N_THREADS;
+    }
+    
+    /**
+     * Run tasks, and wait for them all to finish.
+     * @param tasks tasks
+     * @return their results, in order
+     * @throws java.lang.InterruptedException
+     * @throws java.util.concurrent.ExecutionException if a task threw
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks)
+            throws InterruptedException, ExecutionException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if (Thread.currentThread() instanceof Worker) {
+            for (Callable<T> task : tasks) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                try {
+                    results.add(task.call());
+                } catch (Exception ex) {
+                    throw new ExecutionException(ex);
+                }
+            }
+        } else {
+            for (Future<T> done : POOL.invokeAll(tasks)) {
+                results.add(done.get());
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Run tasks, and wait for them all to finish.
+     * @param tasks tasks
+     * @param what what the tasks are doing, for the error message
+     * @return their results, in order
+     * @throws edu.harvard.lroc.eclipseplan.EclipsePlanException if a task
+     *         threw, or the wait was interrupted
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, String what)
+            throws EclipsePlanException {
+        try {
+            return invokeAll(tasks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new EclipsePlanException("interrupted " + what, ex);
+        } catch (ExecutionException ex) {
+            throw new EclipsePlanException("error " + what, ex.getCause());
+        }
+    }
+    
+    /**
+     * Worker thread of the pool.
+     */
+    private static class Worker extends Thread {
+        Worker(Runnable r, int n) {
+            super(r, "TaskPool-" + n);
+            this.setDaemon(true);
+        }
+    }
+    
+    /** number of worker threads */
+    private static final int N_THREADS = Runtime.getRuntime().availableProcessors();
+    
+    /** the pool */
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(N_THREADS,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Worker(r, ++this.count);
+                }
+    
+                private int count = 0;
+            });
+    
+    
+    /** Simple test program
+     * @param args commandline arguments: none
+     */
+    public static void main(String[] args) {
+        // tasks which themselves hand tasks to the pool
+        List<Callable<Integer>> outer = new ArrayList<Callable<Integer>>();
+        for (int n = 0; n < 4 * N_THREADS; ++n) {
+            final int nn = n;
+            outer.add(new Callable<Integer>() {
+                public Integer call() throws EclipsePlanException {
+                    List<Callable<Integer>> inner = new ArrayList<Callable<Integer>>();
+                    for (int m = 0; m <= nn; ++m) {
+                        final int mm = m;
+                        inner.add(new Callable<Integer>() {
+                            public Integer call() {
+                                return mm;
+                            }
+                        });
+                    }
+                    int sum = 0;
+                    for (int value : invokeAll(inner, "in inner tasks")) {
+                        sum += value;
+                    }
+                    return sum;
+                }
+            });
+        }
+    
+        try {
+            List<Integer> sums = invokeAll(outer, "in outer tasks");
+            for (int n = 0; n < sums.size(); ++n) {
+                if (sums.get(n) != n * (n + 1) / 2) {
+                    System.out.println("MISMATCH at " + n + ": " + sums.get(n));
+                }
+            }
+            System.out.println(sums.size() + " nested tasks on " + N_THREADS + " threads");
+        } catch (EclipsePlanException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
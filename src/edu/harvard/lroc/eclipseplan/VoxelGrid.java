@@ -0,0 +1,333 @@
+/* VoxelGrid.java */
+
+/*  This file is part of EclipsePlan.
+ *
+ *  Copyright (C) 2008  Dana-Farber/Brigham & Women's Cancer Center
+ *
+ *  EclipsePlan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  EclipsePlan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  
+ *  NOTE: This program is not to be used for ANY clinical purpose, or
+ *        in any situation which will affect patient care. This program
+ *        is to be used only for research purposes.
+ *
+ *  Author: David Chin <dwchin@lroc.harvard.edu>  
+ */
+
+/* $Id$ */
+
+package edu.harvard.lroc.eclipseplan;
+
+import java.util.Arrays;
+import javax.vecmath.Point3d;
+
+// A voxel grid is described by its voxel edges along each axis, in mm, the
+// same way the egsphant and 3ddose files describe theirs (those are in cm).
+// Voxel (i,j,k) spans [x[i], x[i+1]) x [y[j], y[j+1]) x [z[k], z[k+1]).
+//
+// NB ImagePositionPatient is, as DICOM has it, the centre of the first
+// voxel, of a CT image or an RT Dose alike, so the voxel edges of a phantom
+// are position + (i - 1/2) * voxelSize, and phantom coordinates are
+// patient coordinates.
+
+/**
+ * Geometry of a rectilinear voxel grid.
+ * @author David Chin
+ * @version $Revision$
+ */
+public class VoxelGrid {
+    /** x axis */
+    public static final int X = 0;
+    
+    /** y axis */
+    public static final int Y = 1;
+    
+    /** z axis */
+    public static final int Z = 2;
+    
+    /**
+     * 
+     * @param xEdges voxel edges along x (mm), in increasing order
+     * @param yEdges voxel edges along y (mm), in increasing order
+     * @param zEdges voxel edges along z (mm), in increasing order
+     */
+    public VoxelGrid(double[] xEdges, double[] yEdges, double[] zEdges) {
+        this.edges[X] = xEdges.clone();
+        this.edges[Y] = yEdges.clone();
+        this.edges[Z] = zEdges.clone();
+        
+        for (int axis = X; axis <= Z; ++axis) {
+            this.centers[axis] = new double[this.edges[axis].length - 1];
+            for (int i = 0; i < this.centers[axis].length; ++i) {
+                this.centers[axis][i] = 0.5 * (this.edges[axis][i] + this.edges[axis][i+1]);
+            }
+        }
+    }
+    
+    /**
+     * Regular grid.
+     * @param position lower corner of first voxel (mm)
+     * @param voxelSize size of a voxel (mm)
+     * @param nx number of voxels along x
+     * @param ny number of voxels along y
+     * @param nz number of voxels along z
+     */
+    public VoxelGrid(Point3d position, Point3d voxelSize, int nx, int ny, int nz) {
+        this(regularEdges(position.x, voxelSize.x, nx),
+             regularEdges(position.y, voxelSize.y, ny),
+             regularEdges(position.z, voxelSize.z, nz));
+    }
+    
+    /**
+     * 
+     * @param start first edge
+     * @param step voxel size
+     * @param n number of voxels
+     * @return n+1 equally spaced edges
+     */
+    private static double[] regularEdges(double start, double step, int n) {
+        double[] e = new double[n + 1];
+        for (int i = 0; i <= n; ++i) {
+            e[i] = start + i * step;
+        }
+        return e;
+    }
+    
+    /**
+     * 
+     * @return number of voxels along x
+     */
+    public int getNx() {
+        return this.centers[X].length;
+    }
+    
+    /**
+     * 
+     * @return number of voxels along y
+     */
+    public int getNy() {
+        return this.centers[Y].length;
+    }
+    
+    /**
+     * 
+     * @return number of voxels along z
+     */
+    public int getNz() {
+        return this.centers[Z].length;
+    }
+    
+    /**
+     * 
+     * @param axis X, Y or Z
+     * @return number of voxels along axis
+     */
+    public int getN(int axis) {
+        return this.centers[axis].length;
+    }
+    
+    /**
+     * 
+     * @return total number of voxels
+     */
+    public int getNVoxels() {
+        return this.getNx() * this.getNy() * this.getNz();
+    }
+    
+    /**
+     * 
+     * @param axis X, Y or Z
+     * @return voxel edges along axis (mm)
+     */
+    public double[] getEdges(int axis) {
+        return this.edges[axis].clone();
+    }
+    
+    /**
+     * 
+     * @param axis X, Y or Z
+     * @param i edge index, 0 to getN(axis)
+     * @return position of edge (mm)
+     */
+    public double getEdge(int axis, int i) {
+        return this.edges[axis][i];
+    }
+    
+    /**
+     * 
+     * @param axis X, Y or Z
+     * @param i voxel index
+     * @return position of voxel centre (mm)
+     */
+    public double getCenter(int axis, int i) {
+        return this.centers[axis][i];
+    }
+    
+    /**
+     * 
+     * @param axis X, Y or Z
+     * @param i voxel index
+     * @return size of voxel along axis (mm)
+     */
+    public double getVoxelSize(int axis, int i) {
+        return this.edges[axis][i+1] - this.edges[axis][i];
+    }
+    
+    /**
+     * 
+     * @param axis X, Y or Z
+     * @param value position (mm)
+     * @return index of the voxel containing value, or -1 if it is outside
+     *         the grid
+     */
+    public int indexOf(int axis, double value) {
+        double[] e = this.edges[axis];
+        if (value < e[0] || value >= e[e.length - 1]) {
+            return -1;
+        }
+        
+        int i = Arrays.binarySearch(e, value);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return i;
+    }
+    
+    /**
+     * 
+     * @param axis X, Y or Z
+     * @param value position (mm)
+     * @return index of the first voxel whose centre is at or above value;
+     *         getN(axis) if there is none
+     */
+    public int firstCenterAtOrAbove(int axis, double value) {
+        double[] c = this.centers[axis];
+        int lo = 0;
+        int hi = c.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (c[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    
+    /**
+     * 
+     * @param axis X, Y or Z
+     * @param value position (mm)
+     * @return index of the voxel edge nearest to value, 0 to getN(axis)
+     */
+    public int nearestEdge(int axis, double value) {
+        double[] e = this.edges[axis];
+        int i = Arrays.binarySearch(e, value);
+        if (i >= 0) {
+            return i;
+        }
+        
+        i = -i - 1;  // first edge above value
+        if (i == 0) {
+            return 0;
+        } else if (i == e.length) {
+            return e.length - 1;
+        }
+        return (value - e[i-1] <= e[i] - value) ? i - 1 : i;
+    }
+    
+    /**
+     * 
+     * @param i x index
+     * @param j y index
+     * @param k z index
+     * @return linear index of voxel, x fastest, as in egsphant and 3ddose
+     */
+    public int index(int i, int j, int k) {
+        return i + this.getNx() * (j + this.getNy() * k);
+    }
+    
+    /**
+     * 
+     * @return predicate: voxels are all the same size along each axis
+     */
+    public boolean isRegular() {
+        for (int axis = X; axis <= Z; ++axis) {
+            double[] e = this.edges[axis];
+            double step = (e[e.length - 1] - e[0]) / (e.length - 1);
+            for (int i = 1; i < e.length; ++i) {
+                if (Math.abs(e[i] - e[i-1] - step) > 1.e-6 * Math.abs(step)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        
+        if (!(obj instanceof VoxelGrid)) {
+            return false;
+        }
+        
+        VoxelGrid other = (VoxelGrid) obj;
+        return Arrays.equals(this.edges[X], other.edges[X])
+                && Arrays.equals(this.edges[Y], other.edges[Y])
+                && Arrays.equals(this.edges[Z], other.edges[Z]);
+    }
+    
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + Arrays.hashCode(this.edges[X]);
+        hash = 31 * hash + Arrays.hashCode(this.edges[Y]);
+        hash = 31 * hash + Arrays.hashCode(this.edges[Z]);
+        return hash;
+    }
+    
+    @Override
+    public String toString() {
+        String rep = "VoxelGrid -- ";
+        rep += "dimensions: (" + this.getNx() + ", " + this.getNy() + ", " + this.getNz() + "); ";
+        rep += "lower corner (mm): (" + this.edges[X][0] + ", " + this.edges[Y][0] + ", " + this.edges[Z][0] + "); ";
+        rep += "upper corner (mm): (" + this.edges[X][this.getNx()] + ", "
+                + this.edges[Y][this.getNy()] + ", " + this.edges[Z][this.getNz()] + ")";
+        return rep;
+    }
+    
+    /** voxel edges along each axis (mm) */
+    private double[][] edges = new double[3][];
+    
+    /** voxel centres along each axis (mm) */
+    private double[][] centers = new double[3][];
+    
+    
+    /** Simple test program
+     * @param args
+     */
+    public static void main(String[] args) {
+        VoxelGrid grid = new VoxelGrid(new Point3d(-10., -10., 0.), new Point3d(2., 2., 3.), 10, 10, 4);
+        System.out.println(grid);
+        System.out.println("indexOf(X, -10.) = " + grid.indexOf(X, -10.));
+        System.out.println("indexOf(X, 9.99) = " + grid.indexOf(X, 9.99));
+        System.out.println("indexOf(X, 10.) = " + grid.indexOf(X, 10.));
+        System.out.println("firstCenterAtOrAbove(Y, 0.) = " + grid.firstCenterAtOrAbove(Y, 0.));
+        System.out.println("regular: " + grid.isRegular());
+    }
+}